@@ -0,0 +1,416 @@
+package data;
+
+import exception.DataAccessException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Bounded pool of JDBC connections used by Dao.
+A connection is borrowed for the duration of one transaction and returned on commit or rollback.
+Idle connections are kept in LIFO order so that the most recently used (and most likely still valid)
+connection is handed out first, while the ones at the tail age out and get evicted.
+ */
+public class ConnectionPool {
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalNanos;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+    private final boolean cursorFetch;
+    private final int cursorFetchSize;
+    private final int readOnlyIsolation;
+    private final ConnectionFactory connectionFactory;
+
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore borrowPermits; // one permit per connection that may be handed out
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown = false;
+
+    // metrics
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowTimeouts = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    private ConnectionPool(Builder builder) {
+        this.url = builder.url;
+        this.connectionProperties = new Properties();
+        this.connectionProperties.setProperty("user", builder.username);
+        this.connectionProperties.setProperty("password", builder.password);
+        // let the server parse each cached statement once instead of Connector/J inlining the parameters
+        this.connectionProperties.setProperty("useServerPrepStmts", String.valueOf(builder.serverPreparedStatements));
+        // send each JDBC batch of inserts as one multi-row INSERT
+        this.connectionProperties.setProperty("rewriteBatchedStatements", String.valueOf(builder.rewriteBatchedStatements));
+        // statements with a fetch size read through a server-side cursor instead of buffering the whole result
+        this.connectionProperties.setProperty("useCursorFetch", String.valueOf(builder.cursorFetch));
+        this.minSize = builder.minSize;
+        this.maxSize = builder.maxSize;
+        this.borrowTimeoutMillis = builder.borrowTimeoutMillis;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeoutMillis);
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.validationIntervalMillis);
+        this.validationTimeoutSeconds = builder.validationTimeoutSeconds;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.cursorFetch = builder.cursorFetch;
+        this.cursorFetchSize = builder.cursorFetchSize;
+        this.readOnlyIsolation = builder.readOnlyIsolation;
+        this.connectionFactory = builder.connectionFactory != null
+                ? builder.connectionFactory : () -> DriverManager.getConnection(url, connectionProperties);
+        this.borrowPermits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the first run also fills the pool up to minSize, without blocking the caller if the database is down
+        this.evictor.scheduleWithFixedDelay(this::evictIdleConnections,
+                0, builder.evictionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    PooledConnection borrow() {
+        if (shutdown) {
+            throw new DataAccessException("Connection pool has been shut down");
+        }
+        long startNanos = System.nanoTime();
+        try {
+            if (!borrowPermits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.increment();
+                throw new DataAccessException(String.format(
+                        "Timed out after %d ms waiting for a database connection (%d in use)",
+                        borrowTimeoutMillis, maxSize));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idleConnections.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                validationFailures.increment();
+                discard(pooled);
+            }
+            if (pooled == null) {
+                pooled = createConnection();
+            }
+            recordBorrow(System.nanoTime() - startNanos);
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            borrowPermits.release();
+            throw new DataAccessException("Error getting connection from pool", e);
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        try {
+            if (shutdown || pooled.isClosed()) {
+                discard(pooled);
+            } else {
+                pooled.resetSession();
+                pooled.touch();
+                idleConnections.offerFirst(pooled);
+            }
+        } catch (SQLException e) {
+            // the session could not be reset, don't hand it to the next borrower
+            discard(pooled);
+        } finally {
+            borrowPermits.release();
+        }
+    }
+
+    // Close a connection that failed mid-transaction instead of handing it to the next borrower
+    void invalidate(PooledConnection pooled) {
+        try {
+            discard(pooled);
+        } finally {
+            borrowPermits.release();
+        }
+    }
+
+    /*
+    Stops handing out connections, waits up to timeoutMillis for borrowed connections to be returned and
+    then closes everything. Connections still borrowed after the timeout are closed when they are released.
+     */
+    public void shutdown(long timeoutMillis) {
+        shutdown = true;
+        evictor.shutdownNow();
+        boolean drained = false;
+        try {
+            drained = borrowPermits.tryAcquire(maxSize, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            discard(pooled);
+        }
+        if (drained) {
+            borrowPermits.release(maxSize);
+        } else {
+            logger.warn("Connection pool shut down with {} connections still in use", totalConnections.get());
+        }
+    }
+
+    boolean cursorFetch() {
+        return cursorFetch;
+    }
+
+    int cursorFetchSize() {
+        return cursorFetchSize;
+    }
+
+    int readOnlyIsolation() {
+        return readOnlyIsolation;
+    }
+
+    public Stats getStats() {
+        long borrows = borrowCount.sum();
+        return new Stats(
+                totalConnections.get(),
+                idleConnections.size(),
+                maxSize - borrowPermits.availablePermits(),
+                borrows,
+                borrowTimeouts.sum(),
+                borrows == 0 ? 0.0 : borrowWaitNanos.sum() / (double) borrows / 1_000_000.0,
+                maxBorrowWaitNanos.get() / 1_000_000.0,
+                createdCount.sum(),
+                validationFailures.sum(),
+                evictedCount.sum(),
+                statementCacheHits.sum(),
+                statementCacheMisses.sum());
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        if (pooled.isClosed()) {
+            return false;
+        }
+        // skip the round trip for connections that were in use very recently
+        if (System.nanoTime() - pooled.lastUsedNanos() < validationIntervalNanos) {
+            return true;
+        }
+        try {
+            return pooled.connection().isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        Connection conn = connectionFactory.connect();
+        totalConnections.incrementAndGet();
+        createdCount.increment();
+        return new PooledConnection(conn,
+                new StatementCache(conn, statementCacheSize, statementCacheHits, statementCacheMisses));
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        pooled.closeQuietly();
+    }
+
+    private void recordBorrow(long waitNanos) {
+        borrowCount.increment();
+        borrowWaitNanos.add(waitNanos);
+        maxBorrowWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    private void evictIdleConnections() {
+        try {
+            long now = System.nanoTime();
+            Iterator<PooledConnection> oldestFirst = idleConnections.descendingIterator();
+            while (oldestFirst.hasNext() && totalConnections.get() > minSize) {
+                PooledConnection pooled = oldestFirst.next();
+                if (now - pooled.lastUsedNanos() > idleTimeoutNanos && idleConnections.remove(pooled)) {
+                    evictedCount.increment();
+                    discard(pooled);
+                }
+            }
+            while (!shutdown && totalConnections.get() < minSize && borrowPermits.tryAcquire()) {
+                try {
+                    idleConnections.offerLast(createConnection());
+                } finally {
+                    borrowPermits.release();
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Unable to fill connection pool up to its minimum size: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Error evicting idle connections", e);
+        }
+    }
+
+    // opens the physical connections of the pool
+    @FunctionalInterface
+    interface ConnectionFactory {
+        Connection connect() throws SQLException;
+    }
+
+    public record Stats(int totalConnections, int idleConnections, int activeConnections,
+                        long borrowCount, long borrowTimeouts, double averageBorrowWaitMillis,
+                        double maxBorrowWaitMillis, long createdConnections, long validationFailures,
+                        long evictedConnections, long statementCacheHits, long statementCacheMisses) {
+
+        public double statementCacheHitRatio() {
+            long lookups = statementCacheHits + statementCacheMisses;
+            return lookups == 0 ? 0.0 : statementCacheHits / (double) lookups;
+        }
+    }
+
+    public static class Builder {
+        private final String url;
+        private final String username;
+        private final String password;
+        private int minSize = 1;
+        private int maxSize = 10;
+        private long borrowTimeoutMillis = 30_000;
+        private long idleTimeoutMillis = 10 * 60_000;
+        private long evictionIntervalMillis = 30_000;
+        private long validationIntervalMillis = 500;
+        private int validationTimeoutSeconds = 5;
+        private int statementCacheSize = 64;
+        private boolean serverPreparedStatements = true;
+        private boolean rewriteBatchedStatements = true;
+        private boolean cursorFetch = true;
+        private int cursorFetchSize = 1000;
+        private int readOnlyIsolation = Connection.TRANSACTION_READ_COMMITTED;
+        private ConnectionFactory connectionFactory; // null to connect to url through DriverManager
+
+        public Builder(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        public Builder withMinSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        public Builder withMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder withBorrowTimeoutMillis(long borrowTimeoutMillis) {
+            this.borrowTimeoutMillis = borrowTimeoutMillis;
+            return this;
+        }
+
+        // idle connections above minSize are closed after this long
+        public Builder withIdleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        public Builder withEvictionIntervalMillis(long evictionIntervalMillis) {
+            this.evictionIntervalMillis = evictionIntervalMillis;
+            return this;
+        }
+
+        // connections idle for less than this are handed out without a validation round trip
+        public Builder withValidationIntervalMillis(long validationIntervalMillis) {
+            this.validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        public Builder withValidationTimeoutSeconds(int validationTimeoutSeconds) {
+            this.validationTimeoutSeconds = validationTimeoutSeconds;
+            return this;
+        }
+
+        // maximum number of prepared statements kept open per connection
+        public Builder withStatementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        public Builder withServerPreparedStatements(boolean serverPreparedStatements) {
+            this.serverPreparedStatements = serverPreparedStatements;
+            return this;
+        }
+
+        public Builder withRewriteBatchedStatements(boolean rewriteBatchedStatements) {
+            this.rewriteBatchedStatements = rewriteBatchedStatements;
+            return this;
+        }
+
+        /*
+        Whether the streaming Dao.forEach* queries read through a server-side cursor. Connector/J can only open a cursor
+        on a server-side prepared statement, so this needs withServerPreparedStatements(true).
+        Without it, the rows are streamed one by one over the connection instead, which also keeps memory flat but
+        means the consumer must not run other queries on the transaction until the scan is done
+         */
+        public Builder withCursorFetch(boolean cursorFetch) {
+            this.cursorFetch = cursorFetch;
+            return this;
+        }
+
+        // number of rows fetched per round trip by the streaming Dao.forEach* queries, when reading through a cursor
+        public Builder withCursorFetchSize(int cursorFetchSize) {
+            this.cursorFetchSize = cursorFetchSize;
+            return this;
+        }
+
+        // isolation level of Dao.startReadOnlyTransaction, one of the Connection.TRANSACTION_* constants
+        public Builder withReadOnlyIsolation(int readOnlyIsolation) {
+            this.readOnlyIsolation = readOnlyIsolation;
+            return this;
+        }
+
+        // opens connections with connectionFactory instead of DriverManager, so the pool can be tested without a database
+        Builder withConnectionFactory(ConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+            return this;
+        }
+
+        public ConnectionPool build() {
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid pool size, min: %d, max: %d", minSize, maxSize));
+            }
+            if (statementCacheSize < 1) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid statement cache size: %d", statementCacheSize));
+            }
+            if (cursorFetch && !serverPreparedStatements) {
+                // Connector/J would quietly turn server-side prepared statements back on to open the cursors
+                throw new IllegalArgumentException(
+                        "Cursor fetch needs server-side prepared statements, disable it with withCursorFetch(false)");
+            }
+            if (cursorFetchSize < 1) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid cursor fetch size: %d", cursorFetchSize));
+            }
+            return new ConnectionPool(this);
+        }
+    }
+}
@@ -4,54 +4,78 @@ import domain.*;
 
 import exception.DataAccessException;
 import filter.ListingFilter;
+import filter.ListingPage;
 import filter.UserFilter;
 
-import java.awt.geom.Point2D;
-import java.lang.reflect.RecordComponent;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.sql.Date;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
 
 public class Dao {
-    private final String url;
-    private final String username;
-    private final String password;
-    private static ThreadLocal<Connection> threadLocalConnection = new ThreadLocal<>();
+    // rows sent per executeBatch call, keeps each rewritten multi-row INSERT well under max_allowed_packet
+    private static final int BATCH_SIZE = 500;
+
+    private final ConnectionPool connectionPool;
+    private final ListingQueryPlanCache listingQueryPlanCache = new ListingQueryPlanCache();
+    private static ThreadLocal<PooledConnection> threadLocalConnection = new ThreadLocal<>();
 
     public Dao(String url, String username, String password) {
-        this.url = url;
-        this.username = username;
-        this.password = password;
+        this(new ConnectionPool.Builder(url, username, password).build());
+    }
+
+    public Dao(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
 
     // For testing purposes
     public Dao() {
-        this.url = "jdbc:mysql://localhost:3307/mydb";
-        this.username = "root";
-        this.password = "";
+        this("jdbc:mysql://localhost:3307/mydb", "root", "");
     }
 
     public void startTransaction() {
+        startTransaction(false);
+    }
+
+    /*
+    Starts a transaction for methods that only query. The connection is put in read-only mode, so InnoDB starts a
+    READ ONLY transaction that needs no transaction id, and runs at the pool's read-only isolation level
+    (READ COMMITTED by default) so that long reads don't hold locks or old snapshots that slow down writers.
+    End it with commitTransaction or rollbackTransaction as usual
+     */
+    public void startReadOnlyTransaction() {
+        startTransaction(true);
+    }
+
+    private void startTransaction(boolean readOnly) {
+        if (threadLocalConnection.get() != null) {
+            // a previous transaction on this thread was never ended. Give its connection back instead of leaking it
+            rollbackTransaction();
+        }
+        PooledConnection pooled = connectionPool.borrow();
         try {
-            Connection conn = DriverManager.getConnection(url, username, password);
-            conn.setAutoCommit(false);
-            threadLocalConnection.set(conn);
+            if (readOnly) {
+                pooled.setReadOnly(connectionPool.readOnlyIsolation());
+            }
+            pooled.connection().setAutoCommit(false);
+            threadLocalConnection.set(pooled);
         } catch (SQLException e) {
+            connectionPool.invalidate(pooled);
             throw new DataAccessException("Error starting transaction", e);
         }
     }
 
     public void commitTransaction() {
-        Connection conn = threadLocalConnection.get();
+        PooledConnection pooled = threadLocalConnection.get();
         try {
-            if (conn != null && !conn.isClosed()) {
-                conn.commit();
+            if (pooled != null && !pooled.isClosed()) {
+                pooled.connection().commit();
             }
         } catch (SQLException e) {
+            invalidateConnection();
             throw new DataAccessException("Error committing transaction", e);
         } finally {
             closeConnection();
@@ -60,127 +84,255 @@ public class Dao {
 
 
     public void rollbackTransaction() {
-        Connection conn = threadLocalConnection.get();
+        PooledConnection pooled = threadLocalConnection.get();
         try {
-            if (conn != null && !conn.isClosed()) {
-                conn.rollback();
+            if (pooled != null && !pooled.isClosed()) {
+                pooled.connection().rollback();
             }
         } catch (SQLException e) {
+            invalidateConnection();
             throw new DataAccessException("Error rolling back transaction", e);
         } finally {
             closeConnection();
         }
     }
 
+    // returns the connection to the pool
     private void closeConnection() {
-        Connection conn = threadLocalConnection.get();
-        if (conn != null) {
+        PooledConnection pooled = threadLocalConnection.get();
+        if (pooled != null) {
             try {
-                conn.close();
-            } catch (SQLException e) {
-                throw new DataAccessException("Error closing threadLocalConnection", e);
+                connectionPool.release(pooled);
             } finally {
                 threadLocalConnection.remove(); // clean up thread-local variable
             }
         }
     }
 
+    // a connection whose commit or rollback failed is in an unknown state, so it must not be reused
+    private void invalidateConnection() {
+        PooledConnection pooled = threadLocalConnection.get();
+        if (pooled != null) {
+            threadLocalConnection.remove();
+            connectionPool.invalidate(pooled);
+        }
+    }
+
+    private PooledConnection getPooledConnection() {
+        PooledConnection pooled = threadLocalConnection.get();
+        if (pooled == null) {
+            throw new DataAccessException("No transaction in progress on this thread");
+        }
+        return pooled;
+    }
+
+    // Statements come from the per-connection cache and must not be closed by the caller.
+    // Close the result sets instead, so the statement can be reused by the next query.
+    private PreparedStatement prepareStatement(String sql, boolean returnGeneratedKeys) throws SQLException {
+        return getPooledConnection().prepareStatement(sql, returnGeneratedKeys);
+    }
+
+    public ConnectionPool.Stats getConnectionPoolStats() {
+        return connectionPool.getStats();
+    }
+
+    public ListingQueryPlanCache.Stats getListingQueryPlanStats() {
+        return listingQueryPlanCache.getStats();
+    }
+
+    // Compiles the listing search plans of common filter shapes before the first search
+    public void prewarmListingQueryPlans(Collection<ListingFilter> sampleFilters) {
+        listingQueryPlanCache.prewarm(sampleFilters);
+    }
+
+    // Closes all pooled connections. Waits up to timeoutMillis for transactions in progress to end
+    public void shutdown(long timeoutMillis) {
+        connectionPool.shutdown(timeoutMillis);
+    }
+
 
     // if the query is an insert statement where the key is automatically inserted, return the generated id
     // otherwise, return null
     private Long executeStatement(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get(); // Note: this is the thread-local connection! We close this at the end of the transaction
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql(), Statement.RETURN_GENERATED_KEYS)) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                if (query.parameters()[i] instanceof Point2D) {
-                    String pointWkt = String.format("POINT(%f %f)", ((Point2D) query.parameters()[i]).getX(), ((Point2D) query.parameters()[i]).getY());
-                    stmt.setString(i + 1, pointWkt);
-                } else {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-            }
-            stmt.executeUpdate();
-            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    return generatedKeys.getLong(1);
-                } else {
-                    return null; // no keys generated
-                }
+        PreparedStatement stmt = prepareStatement(query.sql(), true);
+        bindParameters(stmt, query.parameters());
+        return executeUpdate(stmt);
+    }
+
+    private Long executeUpdate(PreparedStatement stmt) throws SQLException {
+        stmt.executeUpdate();
+        try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+            if (generatedKeys.next()) {
+                return generatedKeys.getLong(1);
+            } else {
+                return null; // no keys generated
             }
         }
     }
 
-    // Note: will not work for geometry types
-    private SqlQuery getInsertStatement(Object domainObject, String tableName) {
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(tableName + " (");
-        ArrayList<Object> parameters = new ArrayList<>();
+    private void bindParameters(PreparedStatement stmt, Object[] parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            RecordMapper.bindValue(stmt, i + 1, parameters[i]);
+        }
+    }
 
-        int count = 0;
-        RecordComponent[] components = domainObject.getClass().getRecordComponents();
-        for (RecordComponent component : components) {
-            try {
-                Object name = component.getName();
-                Object value = component.getAccessor().invoke(domainObject);
-                if (count < components.length - 1) {
-                    sql.append(name + ", ");
-                } else {
-                    sql.append(name + ")");
-                }
-                count++;
+    // inserts every field of the record into the table whose columns are named after the record components
+    @SuppressWarnings("unchecked")
+    private <T extends Record> Long insertRecord(T record, String tableName) throws SQLException {
+        RecordMapper<T> mapper = RecordMapper.of((Class<T>) record.getClass());
+        PreparedStatement stmt = prepareStatement(mapper.insertSql(tableName), true);
+        mapper.bind(stmt, record, 1);
+        return executeUpdate(stmt);
+    }
 
-                parameters.add(value);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+    /*
+    Inserts the records with JDBC batching. With rewriteBatchedStatements enabled on the pool, each batch is sent
+    as a single multi-row INSERT. Returns the generated keys in the same order as the records, or an empty list
+    if the table has no generated key
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Record> List<Long> insertRecords(List<T> records, String tableName) throws SQLException {
+        List<Long> generatedKeys = new ArrayList<>(records.size());
+        if (records.isEmpty()) {
+            return generatedKeys;
+        }
+        RecordMapper<T> mapper = RecordMapper.of((Class<T>) records.get(0).getClass());
+        PreparedStatement stmt = prepareStatement(mapper.insertSql(tableName), true);
+        for (int start = 0; start < records.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, records.size());
+            for (T record : records.subList(start, end)) {
+                mapper.bind(stmt, record, 1);
+                stmt.addBatch();
             }
+            executeBatch(stmt, generatedKeys);
         }
-        for (int i = 0; i < components.length; i++) {
-            if (i == 0) {
-                sql.append(" VALUES (");
+        return generatedKeys;
+    }
+
+    // runs the pending batch and appends its generated keys to generatedKeys, unless it is null
+    private void executeBatch(PreparedStatement stmt, List<Long> generatedKeys) throws SQLException {
+        try {
+            stmt.executeBatch();
+        } finally {
+            stmt.clearBatch(); // the statement is cached, don't leave rows behind for the next caller
+        }
+        if (generatedKeys == null) {
+            return;
+        }
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            while (keys.next()) {
+                generatedKeys.add(keys.getLong(1));
             }
-            if (i < components.length - 1) {
-                sql.append("?, ");
-            } else {
-                sql.append("?)");
+        }
+    }
+
+    // "?, ?, ?" for an IN list of the given size
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /*
+    The values of an IN list, with the last one repeated up to the next power of two. Every list length is its own
+    entry in the statement cache, so this keeps lists of similar sizes on one statement instead of evicting hot ones
+     */
+    private static List<Object> padded(Collection<?> values) {
+        List<Object> padded = new ArrayList<>(values);
+        Object last = padded.get(padded.size() - 1);
+        int size = ListingQueryPlan.paddedCandidateCount(padded.size());
+        while (padded.size() < size) {
+            padded.add(last);
+        }
+        return padded;
+    }
+
+    /*
+    Hands each row to the consumer as it is read instead of collecting the whole table into a list.
+    The rows are fetched through a server-side cursor, cursorFetchSize rows per round trip, so memory stays flat
+    regardless of the table size and other queries can still run on the transaction's connection from the consumer.
+    If the pool has cursor fetch turned off, the rows are streamed over the connection instead, and the consumer must
+    not run other queries until the scan is done. The statement is not cached and is closed before this method returns
+     */
+    private <T extends Record> void forEachRecord(SqlQuery query, Class<T> type, Consumer<? super T> consumer) throws SQLException {
+        try (PreparedStatement stmt = getPooledConnection().connection().prepareStatement(
+                query.sql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // Integer.MIN_VALUE asks Connector/J to stream the rows when it cannot use a cursor
+            stmt.setFetchSize(connectionPool.cursorFetch() ? connectionPool.cursorFetchSize() : Integer.MIN_VALUE);
+            bindParameters(stmt, query.parameters());
+            try (ResultSet rs = stmt.executeQuery()) {
+                RecordMapper.RowMapper<T> rowMapper = RecordMapper.of(type).rowMapper(rs);
+                while (rs.next()) {
+                    consumer.accept(rowMapper.map(rs));
+                }
+            }
+        }
+    }
+
+    private <T extends Record> List<T> executeRecordQuery(SqlQuery query, Class<T> type) throws SQLException {
+        PreparedStatement stmt = prepareStatement(query.sql(), false);
+        bindParameters(stmt, query.parameters());
+        try (ResultSet rs = stmt.executeQuery()) {
+            RecordMapper.RowMapper<T> rowMapper = RecordMapper.of(type).rowMapper(rs);
+            List<T> records = new ArrayList<>();
+            while (rs.next()) {
+                records.add(rowMapper.map(rs));
             }
+            return records;
         }
-        return new SqlQuery(sql.toString(), parameters.toArray());
     }
 
     public Long insertUser(User user) {
         try {
-            return executeStatement(getInsertStatement(user, "users"));
+            return insertRecord(user, "users");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting user", e);
         }
     }
 
-    public void deleteUser(Long sin) {
-        SqlQuery query = new SqlQuery("DELETE FROM users WHERE sin=?", sin);
+    // The users table has no generated key, the sins of the inserted users are the ones in the list
+    public void insertUsers(List<User> users) {
         try {
-            executeStatement(query);
+            insertRecords(users, "users");
         } catch (SQLException e) {
-            throw new DataAccessException("Error deleting user", e);
+            throw new DataAccessException("Error inserting users", e);
         }
     }
 
-    private List<User> executeUserQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
+    // Returns the sins out of the given ones that belong to an existing user
+    public Set<Long> getExistingUserSins(Collection<Long> sins) {
+        Set<Long> existing = new HashSet<>();
+        if (sins.isEmpty()) {
+            return existing;
+        }
+        List<Object> parameters = padded(sins);
+        SqlQuery query = new SqlQuery("SELECT sin FROM users WHERE sin IN (" + placeholders(parameters.size()) + ")",
+                parameters.toArray());
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            bindParameters(stmt, query.parameters());
             try (ResultSet rs = stmt.executeQuery()) {
-                List<User> users = new ArrayList<>();
                 while (rs.next()) {
-                    users.add(new User(rs.getLong("sin"), rs.getString("name"), rs.getString("address"),
-                            rs.getDate("birthdate").toLocalDate(), rs.getString("occupation")));
+                    existing.add(rs.getLong(1));
                 }
-                return users;
             }
+            return existing;
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting existing users", e);
+        }
+    }
+
+    public void deleteUser(Long sin) {
+        SqlQuery query = new SqlQuery("DELETE FROM users WHERE sin=?", sin);
+        try {
+            executeStatement(query);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error deleting user", e);
         }
     }
 
+    private List<User> executeUserQuery(SqlQuery query) throws SQLException {
+        return executeRecordQuery(query, User.class);
+    }
+
     public boolean userExists(Long sin) {
         SqlQuery query = new SqlQuery("SELECT * FROM users WHERE sin=?", sin);
         try {
@@ -203,15 +355,12 @@ public class Dao {
         StringBuilder sql = new StringBuilder("SELECT * FROM users WHERE 1 = 1");
         List<Object> parameters = new ArrayList<>();
         if (filter.user() != null) {
-            for (RecordComponent component : filter.user().getClass().getRecordComponents()) {
-                try {
-                    Object value = component.getAccessor().invoke(filter.user());
-                    if (value != null) {
-                        sql.append(" AND " + component.getName() + " = ?");
-                        parameters.add(value);
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+            RecordMapper<User> userMapper = RecordMapper.of(User.class);
+            for (int i = 0; i < userMapper.columnCount(); i++) {
+                Object value = userMapper.value(filter.user(), i);
+                if (value != null) {
+                    sql.append(" AND " + userMapper.column(i) + " = ?");
+                    parameters.add(value);
                 }
             }
         }
@@ -237,54 +386,96 @@ public class Dao {
         }
     }
 
-    public List<Listing> executeListingQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                if (query.parameters()[i] instanceof Point2D) {
-                    String pointWkt = String.format("POINT(%f %f)", ((Point2D) query.parameters()[i]).getX(), ((Point2D) query.parameters()[i]).getY());
-                    stmt.setString(i + 1, pointWkt);
-                } else {
-                    stmt.setObject(i + 1, query.parameters()[i]);
+    // Looks up many users at once, BATCH_SIZE sins per query. Sins without a user are left out of the map
+    public Map<Long, User> getUsersBySins(Collection<Long> sins) {
+        Map<Long, User> users = new HashMap<>();
+        List<Long> distinctSins = new ArrayList<>(new LinkedHashSet<>(sins));
+        try {
+            for (int from = 0; from < distinctSins.size(); from += BATCH_SIZE) {
+                List<Long> batch = distinctSins.subList(from, Math.min(from + BATCH_SIZE, distinctSins.size()));
+                List<Object> parameters = padded(batch);
+                SqlQuery query = new SqlQuery("SELECT * FROM users WHERE sin IN (" + placeholders(parameters.size()) + ")",
+                        parameters.toArray());
+                for (User user : executeUserQuery(query)) {
+                    users.put(user.sin(), user);
                 }
             }
+            return users;
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting users", e);
+        }
+    }
+
+    // Map<host, Map<country, Map<city, numberOfListings>>>, counted by the database with one join of listings and users
+    public Map<User, Map<String, Map<String, Long>>> getNumberOfListingsPerCityPerCountryPerHost() {
+        String sql = "SELECT users.*, listings.country AS listing_country, listings.city AS listing_city, COUNT(*) AS listings " +
+                "FROM listings JOIN users ON listings.users_sin = users.sin " +
+                "GROUP BY users.sin, listings.country, listings.city";
+        try {
+            PreparedStatement stmt = prepareStatement(sql, false);
             try (ResultSet rs = stmt.executeQuery()) {
-                List<Listing> listings = new ArrayList<>();
+                RecordMapper.RowMapper<User> userMapper = RecordMapper.of(User.class).rowMapper(rs);
+                Map<User, Map<String, Map<String, Long>>> listingsPerHost = new HashMap<>();
                 while (rs.next()) {
-                    String wkt = rs.getString("location_wkt");
-                    Matcher matcher = Pattern.compile("POINT\\s*\\(\\s*(-?\\d+\\.?\\d*)\\s+(-?\\d+\\.?\\d*)\\s*\\)").matcher(wkt);
-                    Point2D location = null;
-                    if (matcher.find()) {
-                        double longitude = Double.parseDouble(matcher.group(1));
-                        double latitude = Double.parseDouble(matcher.group(2));
-                        location = new Point2D.Double(longitude, latitude);
-                    }
-                    listings.add(new Listing(rs.getLong("listing_id"), rs.getString("listing_type"),
-                            rs.getString("address"), rs.getString("postal_code"),
-                            location, rs.getString("city"), rs.getString("country"),
-                            rs.getLong("users_sin")));
+                    listingsPerHost.computeIfAbsent(userMapper.map(rs), host -> new HashMap<>())
+                            .computeIfAbsent(rs.getString("listing_country"), country -> new HashMap<>())
+                            .put(rs.getString("listing_city"), rs.getLong("listings"));
                 }
-                return listings;
+                return listingsPerHost;
             }
+        } catch (SQLException e) {
+            throw new DataAccessException("Error counting listings per host", e);
         }
     }
 
+    public List<Listing> executeListingQuery(SqlQuery query) throws SQLException {
+        return executeRecordQuery(query, Listing.class);
+    }
+
 
     public Long insertListing(Listing listing) {
-        // Not using getInsertStatement because of the location field is not supported by JDBC
-        SqlQuery sql = new SqlQuery("INSERT INTO listings (listing_type, address, postal_code, location, city, country, users_sin) " +
-                "VALUES (?, ?, ?, ST_GeomFromText(?), ?, ?, ?)",
-                listing.listing_type(), listing.address(), listing.postal_code(),
-                listing.location(), listing.city(), listing.country(), listing.users_sin());
         try {
-            return executeStatement(sql);
+            return insertRecord(listing, "listings");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting listing", e);
         }
     }
 
+    // Returns the ids of the inserted listings, in the same order as the given listings
+    public List<Long> insertListings(List<Listing> listings) {
+        try {
+            return insertRecords(listings, "listings");
+        } catch (SQLException e) {
+            throw new DataAccessException("Error inserting listings", e);
+        }
+    }
+
+    // Returns the existing listings that are at the same address as any of the given listings
+    public List<Listing> getListingsAtSameAddress(List<Listing> listings) {
+        if (listings.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder sql = new StringBuilder("SELECT * FROM listings WHERE (postal_code, city, country, address) IN (");
+        List<Object> parameters = new ArrayList<>();
+        List<Object> paddedListings = padded(listings);
+        for (int i = 0; i < paddedListings.size(); i++) {
+            Listing listing = (Listing) paddedListings.get(i);
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            parameters.add(listing.postal_code());
+            parameters.add(listing.city());
+            parameters.add(listing.country());
+            parameters.add(listing.address());
+        }
+        sql.append(")");
+        try {
+            return executeListingQuery(new SqlQuery(sql.toString(), parameters.toArray()));
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting listings at the same address", e);
+        }
+    }
+
     public boolean listingExists(Listing listing) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE postal_code = ? " +
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE postal_code = ? " +
                 "AND city = ? AND country = ? AND address = ?",
                 listing.postal_code(), listing.city(), listing.country(), listing.address());
         try {
@@ -295,7 +486,7 @@ public class Dao {
     }
 
     public Listing getListingByLocation(String postal_code, String city, String country) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE postal_code = ? AND city = ? AND country = ?",
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE postal_code = ? AND city = ? AND country = ?",
                 postal_code, city, country);
         try {
             List<Listing> listings = executeListingQuery(query);
@@ -310,7 +501,7 @@ public class Dao {
     }
 
     public List<Listing> getListingsByHostSin(Long host_sin) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE users_sin = ?", host_sin);
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE users_sin = ?", host_sin);
         try {
             return executeListingQuery(query);
         } catch (SQLException e) {
@@ -319,7 +510,7 @@ public class Dao {
     }
 
     public boolean listingIdExists(Long listing_id) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE listing_id = ?", listing_id);
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE listing_id = ?", listing_id);
         try {
             return !executeListingQuery(query).isEmpty();
         } catch (SQLException e) {
@@ -328,7 +519,7 @@ public class Dao {
     }
 
     public Listing getListingById(Long listing_id) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE listing_id = ?", listing_id);
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE listing_id = ?", listing_id);
         try {
             return executeListingQuery(query).get(0);
         } catch (SQLException e) {
@@ -338,8 +529,8 @@ public class Dao {
 
     public Float getListingPricePerNight(Long listing_id) {
         SqlQuery query = new SqlQuery("SELECT price_per_night FROM availabilities INNER JOIN listings ON availabilities.listings_listing_id = listings.listing_id  WHERE listing_id = ?", listing_id);
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
             stmt.setObject(1, listing_id);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -355,8 +546,8 @@ public class Dao {
 
     public Float getAverageListingPriceByCity(String city) {
         SqlQuery query = new SqlQuery("SELECT AVG(price_per_night) FROM availabilities INNER JOIN listings ON availabilities.listings_listing_id = listings.listing_id  WHERE city = ?", city);
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
             stmt.setObject(1, city);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -372,7 +563,7 @@ public class Dao {
     }
 
     public boolean doesCityExists(String city) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE city = ?", city);
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE city = ?", city);
         try {
             return !executeListingQuery(query).isEmpty();
         } catch (SQLException e) {
@@ -381,7 +572,7 @@ public class Dao {
     }
 
     public boolean doesListingIdHaveHostSin(Long listing_id, Long host_sin) {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings WHERE listing_id = ? AND users_sin = ?", listing_id, host_sin);
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE listing_id = ? AND users_sin = ?", listing_id, host_sin);
 
         try {
             return !executeListingQuery(query).isEmpty();
@@ -400,7 +591,7 @@ public class Dao {
     }
 
     public List<Listing> getListings() {
-        SqlQuery query = new SqlQuery("SELECT *, ST_AsText(location) as location_wkt FROM listings");
+        SqlQuery query = new SqlQuery("SELECT * FROM listings");
         try {
             return executeListingQuery(query);
         } catch (SQLException e) {
@@ -408,151 +599,76 @@ public class Dao {
         }
     }
 
-
-    public List<Listing> getListingsByFilter(ListingFilter filter) {
-        StringBuilder sql = new StringBuilder("SELECT DISTINCT listings.*, ST_AsText(location) as location_wkt");
-
-        List<Object> parameters = new ArrayList<>();
-
-        if (filter.groupByPriceAscend() || filter.groupByPriceDescend()) {
-            sql.append(", availabilities.price_per_night AS price_per_night");
-        } else if (filter.listing() != null && filter.listing().location() != null && filter.searchRadius() != null) {
-            sql.append(", ST_Distance_Sphere(location, ST_GeomFromText(?)) AS distance");
-            parameters.add(filter.listing().location());
-        }
-        // FROM listings ");
-        sql.append(" FROM listings ");
-
-        // join with availabilities table if availability filter is not empty
-        if (filter.availability() != null || filter.groupByPriceAscend() || filter.groupByPriceDescend()) {
-            sql.append("JOIN availabilities ON listings.listing_id = availabilities.listings_listing_id ");
-        }
-
-        // join with amenities table if amenities filter is not empty
-        if (filter.amenities() != null && !filter.amenities().isEmpty()) {
-            sql.append("JOIN listing_amenities ON listings.listing_id = listing_amenities.listing_id ");
-            sql.append("JOIN amenities ON listing_amenities.amenity_id = amenities.amenity_id ");
-        }
-
-        sql.append("WHERE 1 = 1"); // This is always true, and allows us to use AND in the following statements
-
-        // filter by listing fields
-        if (filter.listing() != null) {
-            for (RecordComponent component : filter.listing().getClass().getRecordComponents()) {
-                try {
-                    Object value = component.getAccessor().invoke(filter.listing());
-                    if (value != null) {
-                        if (component.getName().equals("listing_type") && filter.listingTypes() != null) {
-                            sql.append(" AND listing_type IN (");
-                            for (int i = 0; i < filter.listingTypes().size(); i++) {
-                                sql.append("?");
-                                parameters.add(filter.listingTypes().get(i));
-                                if (i < filter.listingTypes().size() - 1) {
-                                    sql.append(", ");
-                                }
-                            }
-                            sql.append(")");
-                        } else if (component.getName().equals("location") && filter.searchRadius() != null) {
-                            // sql.append(" AND ST_Distance_Sphere(location, ST_MakePoint(?, ?)) <= ?");
-                            // parameters.add(((Point2D) value).getX());
-                            // parameters.add(((Point2D) value).getY());
-                            // ST_MakePoint is not supported by this version of mysql. Use ST_GeomFromText instead
-                            sql.append(" AND ST_Distance_Sphere(location, ST_GeomFromText(?)) <= ?");
-                            parameters.add(value);
-                            parameters.add(filter.searchRadius().multiply(BigDecimal.valueOf(100))); // convert km to m since ST_Distance_Sphere returns distance in m
-                        } else {
-                            sql.append(" AND " + component.getName() + " = ?");
-                            parameters.add(value);
-                        }
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        // filter by availability fields
-        if (filter.availability() != null) {
-            for (RecordComponent component : filter.availability().getClass().getRecordComponents()) {
-                try {
-                    Object value = component.getAccessor().invoke(filter.availability());
-                    if (component.getName().equals("start_date") && filter.startDateRange() != null) {
-                        sql.append(" AND start_date >= ?");
-                        parameters.add(filter.startDateRange());
-                    } else if (component.getName().equals("end_date") && filter.endDateRange() != null) {
-                        sql.append(" AND end_date <= ?");
-                        parameters.add(filter.endDateRange());
-                    } else if (component.getName().equals("price_per_night") && filter.minPricePerNight() != null && filter.maxPricePerNight() != null) {
-                        sql.append(" AND price_per_night >= ?");
-                        parameters.add(filter.minPricePerNight());
-                        sql.append(" AND price_per_night <= ?");
-                        parameters.add(filter.maxPricePerNight());
-                    } else if (component.getName().equals("price_per_night") && filter.minPricePerNight() != null && filter.maxPricePerNight() == null) {
-                        sql.append(" AND price_per_night >= ?");
-                        parameters.add(filter.minPricePerNight());
-                    } else if (component.getName().equals("price_per_night") && filter.minPricePerNight() == null && filter.maxPricePerNight() != null) {
-                        sql.append(" AND price_per_night <= ?");
-                        parameters.add(filter.maxPricePerNight());
-                    } else if (value != null) {
-                        sql.append(" AND " + component.getName() + " = ?");
-                        parameters.add(value);
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        // first, find all listings that have any of the amenities in the filter
-        if (filter.amenities() != null && !filter.amenities().isEmpty()) {
-            sql.append(" AND amenities.amenity_name IN (");
-            for (int i = 0; i < filter.amenities().size(); i++) {
-                sql.append("?");
-                if (i < filter.amenities().size() - 1) {
-                    sql.append(", ");
-                }
-                parameters.add(filter.amenities().get(i));
-            }
-            sql.append(")");
-        }
-        // then, only select listings that match all the amenities in the filter
-        if (filter.amenities() != null && !filter.amenities().isEmpty()) {
-            sql.append(" GROUP BY listings.listing_id");
-            sql.append(" HAVING COUNT(DISTINCT amenities.amenity_name) = ?");
-            parameters.add(filter.amenities().size());
-        }
-
-        if (filter.groupByPriceAscend()) {
-            sql.append(" ORDER BY price_per_night");
-        } else if (filter.groupByPriceDescend()) {
-            sql.append(" ORDER BY price_per_night DESC");
-        } else if (filter.listing() != null && filter.listing().location() != null && filter.searchRadius() != null) {
-            sql.append(" ORDER BY distance");
+    public void forEachListing(Consumer<? super Listing> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM listings");
+        try {
+            forEachRecord(query, Listing.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming all listings", e);
         }
+    }
 
-            SqlQuery query = new SqlQuery(sql.toString(), parameters.toArray());
+    // Streams the listings added or updated at or after changedSince
+    public void forEachListingChangedSince(LocalDateTime changedSince, Consumer<? super Listing> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM listings WHERE changed_at >= ?", changedSince);
         try {
-            return executeListingQuery(query);
+            forEachRecord(query, Listing.class, consumer);
         } catch (SQLException e) {
-            throw new DataAccessException("Error getting listings by filter", e);
+            throw new DataAccessException("Error streaming changed listings", e);
         }
     }
 
-    private List<Amenity> executeAmenityQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
+    public TableVersion getListingTableVersion() {
+        return getTableVersion("listings");
+    }
+
+
+    // Returns every matching listing, or only the requested page if the filter has a page size
+    public List<Listing> getListingsByFilter(ListingFilter filter) {
+        return getListingPageByFilter(filter).listings();
+    }
+
+    /*
+    Returns the listings matching the filter in the sort order of the search, at most filter.pageSize() of them.
+    Pages are keyset paginated on (sort value, listing_id): the continuation token holds the sort value and id of
+    the last listing returned, and the next page continues strictly after it
+     */
+    public ListingPage getListingPageByFilter(ListingFilter filter) {
+        // the SQL only depends on which filter fields are set, so it is compiled once per shape
+        ListingQueryPlan plan = listingQueryPlanCache.plan(filter);
+        ListingCursor.SortOrder sortOrder = plan.sortOrder();
+        SqlQuery query = plan.bind(filter);
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            bindParameters(stmt, query.parameters());
             try (ResultSet rs = stmt.executeQuery()) {
-                List<Amenity> amenities = new ArrayList<>();
+                RecordMapper.RowMapper<Listing> rowMapper = RecordMapper.of(Listing.class).rowMapper(rs);
+                List<Listing> listings = new ArrayList<>();
+                String lastSortValue = null;
                 while (rs.next()) {
-                    amenities.add(new Amenity(rs.getLong("amenity_id"), rs.getString("amenity_name"),
-                            rs.getBigDecimal("impact_on_revenue")));
+                    if (filter.pageSize() != null && listings.size() == filter.pageSize()) {
+                        Listing last = listings.get(listings.size() - 1);
+                        ListingCursor next = new ListingCursor(sortOrder, lastSortValue, last.listing_id());
+                        return new ListingPage(listings, next.encode());
+                    }
+                    listings.add(rowMapper.map(rs));
+                    lastSortValue = switch (sortOrder) {
+                        case PRICE_ASCEND, PRICE_DESCEND -> rs.getBigDecimal("price_per_night").toPlainString();
+                        case DISTANCE -> Double.toString(rs.getDouble("distance"));
+                        case LISTING_ID -> null;
+                    };
                 }
-                return amenities;
+                return new ListingPage(listings, null);
             }
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting listings by filter", e);
         }
     }
 
+    private List<Amenity> executeAmenityQuery(SqlQuery query) throws SQLException {
+        return executeRecordQuery(query, Amenity.class);
+    }
+
     public List<String> getAmenitiesByListingId(Long listing_id) {
 
         SqlQuery query = new SqlQuery("SELECT * FROM amenities " +
@@ -579,11 +695,34 @@ public class Dao {
         }
     }
 
+    /*
+    What an in-memory copy of a table needs to know to tell whether it is still complete: the generation the table
+    was created in, and when its rows last changed. Inserts and updates set changed_at, so rows changed after
+    changedUpTo are the ones to load, and a different generation means the tables were reset
+     */
+    public record TableVersion(String generation, LocalDateTime changedUpTo) {
+    }
+
+    // table is never user input
+    private TableVersion getTableVersion(String table) {
+        SqlQuery query = new SqlQuery("SELECT (SELECT generation FROM table_generations WHERE table_name = ?), " +
+                "(SELECT COALESCE(MAX(changed_at), TIMESTAMP '1970-01-01 00:00:01') FROM " + table + ")", table);
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            bindParameters(stmt, query.parameters());
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return new TableVersion(rs.getString(1), rs.getObject(2, LocalDateTime.class));
+            }
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting the version of " + table, e);
+        }
+    }
+
     public Date getCurrentDate() {
         SqlQuery query = new SqlQuery("SELECT CURRENT_DATE()");
-        Connection conn = threadLocalConnection.get();
-
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
+        try {
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
                     return rs.getDate(1);
@@ -608,23 +747,7 @@ public class Dao {
     }
 
     public List<Booking> executeBookingQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<Booking> bookings = new ArrayList<>();
-                while (rs.next()) {
-                    bookings.add(new Booking(rs.getLong("booking_id"), rs.getDate("start_date").toLocalDate(),
-                            rs.getDate("end_date").toLocalDate(), rs.getDate("transaction_date").toLocalDate(),
-                            rs.getBigDecimal("amount"), rs.getString("payment_method"),
-                            rs.getLong("card_number"), rs.getLong("tenant_sin"),
-                            rs.getLong("listings_listing_id")));
-                }
-                return bookings;
-            }
-        }
+        return executeRecordQuery(query, Booking.class);
     }
 
     public boolean bookingExists(Long booking_id) {
@@ -647,30 +770,14 @@ public class Dao {
 
     public void insertCancelledBooking(CancelledBooking cancelledBooking) {
         try {
-            executeStatement(getInsertStatement(cancelledBooking, "cancelled_bookings"));
+            insertRecord(cancelledBooking, "cancelled_bookings");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting cancelled booking", e);
         }
     }
 
     public List<CancelledBooking> executeCancelledBookingQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<CancelledBooking> cancelledBookings = new ArrayList<>();
-                while (rs.next()) {
-                    cancelledBookings.add(new CancelledBooking(rs.getLong("cancelled_booking_id"), rs.getDate("start_date").toLocalDate(),
-                            rs.getDate("end_date").toLocalDate(), rs.getDate("transaction_date").toLocalDate(),
-                            rs.getBigDecimal("amount"), rs.getString("payment_method"),
-                            rs.getLong("card_number"), rs.getLong("tenant_sin"),
-                            rs.getLong("listings_listing_id")));
-                }
-                return cancelledBookings;
-            }
-        }
+        return executeRecordQuery(query, CancelledBooking.class);
     }
 
     public List<CancelledBooking> getCancelledBookings() {
@@ -694,12 +801,21 @@ public class Dao {
 
     public Long insertAvailability(Availability availability) {
         try {
-            return executeStatement(getInsertStatement(availability, "availabilities"));
+            return insertRecord(availability, "availabilities");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting availability", e);
         }
     }
 
+    // Returns the ids of the inserted availabilities, in the same order as the given availabilities
+    public List<Long> insertAvailabilities(List<Availability> availabilities) {
+        try {
+            return insertRecords(availabilities, "availabilities");
+        } catch (SQLException e) {
+            throw new DataAccessException("Error inserting availabilities", e);
+        }
+    }
+
     public void deleteAvailability(Long availability_id) {
         SqlQuery query = new SqlQuery("DELETE FROM availabilities WHERE availability_id = ?", availability_id);
         try {
@@ -720,21 +836,7 @@ public class Dao {
     }
 
     private List<Availability> executeAvailabilityQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<Availability> availabilities = new ArrayList<>();
-                while (rs.next()) {
-                    availabilities.add(new Availability(rs.getLong("availability_id"),
-                            rs.getDate("start_date").toLocalDate(), rs.getDate("end_date").toLocalDate(),
-                            rs.getBigDecimal("price_per_night"), rs.getLong("listings_listing_id")));
-                }
-                return availabilities;
-            }
-        }
+        return executeRecordQuery(query, Availability.class);
     }
 
     public List<Availability> getAvailabilities() {
@@ -746,6 +848,29 @@ public class Dao {
         }
     }
 
+    public void forEachAvailability(Consumer<? super Availability> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM availabilities");
+        try {
+            forEachRecord(query, Availability.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming all availabilities", e);
+        }
+    }
+
+    // Streams the availabilities added or updated at or after changedSince
+    public void forEachAvailabilityChangedSince(LocalDateTime changedSince, Consumer<? super Availability> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM availabilities WHERE changed_at >= ?", changedSince);
+        try {
+            forEachRecord(query, Availability.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming changed availabilities", e);
+        }
+    }
+
+    public TableVersion getAvailabilityTableVersion() {
+        return getTableVersion("availabilities");
+    }
+
     public List<Availability> getAvailabilitiesOfListing(Long listing_id, LocalDate currentDate) {
 //        SqlQuery query = new SqlQuery("SELECT * FROM availabilities WHERE listings_listing_id = ?", listing_id);
         SqlQuery query = new SqlQuery("SELECT * FROM availabilities WHERE listings_listing_id = ? AND start_date >= ?",
@@ -805,24 +930,25 @@ public class Dao {
         }
     }
 
+    /*
+    Returns the availability whose range contains start_date to end_date, and locks it until the transaction ends.
+    Availabilities of a listing never overlap, so only the one starting last on or before start_date can contain
+    the range. Reading just that row keeps the lookup to one row of idx_availabilities_listing_dates and the lock to
+    one row, so concurrent bookings of the same availability wait for each other and then see its latest state
+     */
     public Availability getAffectedAvailability(Long listing_id, LocalDate start_date, LocalDate end_date) {
         SqlQuery query = new SqlQuery(
-                "SELECT * FROM availabilities WHERE listings_listing_id = ?", listing_id);
+                "SELECT * FROM availabilities WHERE listings_listing_id = ? AND start_date <= ? " +
+                        "ORDER BY start_date DESC LIMIT 1 FOR UPDATE", listing_id, start_date);
 
         try {
             List<Availability> availabilities = executeAvailabilityQuery(query);
 
-            for (int i = 0; i < availabilities.size(); i++) {
-                // Check if start_date and end_date is within range
-                LocalDate availableStartDate = availabilities.get(i).start_date();
-                LocalDate availableEndDate = availabilities.get(i).end_date();
-
-                // !isAfter === isEqual and isBefore
-                if (!availableStartDate.isAfter(start_date) && !availableEndDate.isBefore(end_date)) {
-                    return availabilities.get(i);
-                }
+            // !isBefore === isEqual or isAfter
+            if (!availabilities.isEmpty() && !availabilities.get(0).end_date().isBefore(end_date)) {
+                return availabilities.get(0);
             }
-            
+
             throw new DataAccessException(String.format("No availability between %tF to %tF", start_date, end_date));
         } catch (SQLException e) {
             throw new DataAccessException("Error getting availabilities.", e);
@@ -876,20 +1002,7 @@ public class Dao {
     }
 
     private List<Amenity> executeListingAmenityQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<Amenity> amenities = new ArrayList<>();
-                while (rs.next()) {
-                    amenities.add(new Amenity(rs.getLong("amenity_id"), rs.getString("amenity_name"),
-                            rs.getBigDecimal("impact_on_revenue")));
-                }
-                return amenities;
-            }
-        }
+        return executeRecordQuery(query, Amenity.class);
     }
 
     public void insertAmenityForListing(Long listing_id, String amenityName) {
@@ -897,21 +1010,57 @@ public class Dao {
                 "VALUES (?, (SELECT amenity_id FROM amenities WHERE amenity_name = ?))", listing_id, amenityName);
         try {
             executeStatement(query);
+            updateAmenityMask(listing_id, List.of(amenityName), true);
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting amenity for listing", e);
         }
     }
 
+    public void insertAmenitiesForListing(Long listing_id, List<String> amenityNames) {
+        if (amenityNames.isEmpty()) {
+            return;
+        }
+        try {
+            PreparedStatement stmt = prepareStatement("INSERT INTO listing_amenities (listing_id, amenity_id) " +
+                    "VALUES (?, (SELECT amenity_id FROM amenities WHERE amenity_name = ?))", false);
+            for (int start = 0; start < amenityNames.size(); start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, amenityNames.size());
+                for (String amenityName : amenityNames.subList(start, end)) {
+                    stmt.setLong(1, listing_id);
+                    stmt.setString(2, amenityName);
+                    stmt.addBatch();
+                }
+                executeBatch(stmt, null);
+            }
+            updateAmenityMask(listing_id, amenityNames, true);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error inserting amenities for listing", e);
+        }
+    }
+
     public void deleteAmenityForListing(Long listing_id, String amenityName) {
         SqlQuery query = new SqlQuery("DELETE FROM listing_amenities WHERE listing_id = ? AND amenity_id = " +
                 "(SELECT amenity_id FROM amenities WHERE amenity_name = ?)", listing_id, amenityName);
         try {
             executeStatement(query);
+            updateAmenityMask(listing_id, List.of(amenityName), false);
         } catch (SQLException e) {
             throw new DataAccessException("Error deleting amenity for listing", e);
         }
     }
 
+    // Sets or clears the bits of the amenities in listings.amenity_mask. Changing the bits in place, under the lock of
+    // the listing row, keeps concurrent amenity changes of the same listing from overwriting each other
+    private void updateAmenityMask(Long listing_id, List<String> amenityNames, boolean set) throws SQLException {
+        List<Object> parameters = padded(amenityNames);
+        String bits = "(SELECT BIT_OR(1 << (amenity_id - 1)) FROM amenities WHERE amenity_name IN (" +
+                placeholders(parameters.size()) + "))";
+        parameters.add(listing_id);
+        executeStatement(new SqlQuery("UPDATE listings SET amenity_mask = " +
+                (set ? "amenity_mask | " + bits : "amenity_mask & ~" + bits) +
+                " WHERE listing_id = ?", parameters.toArray()));
+    }
+
     public boolean listingHasAmenity(Long listing_id, String amenityName) {
         SqlQuery query = new SqlQuery("SELECT amenities.* FROM amenities " +
                 "JOIN listing_amenities ON amenities.amenity_id = listing_amenities.amenity_id " +
@@ -926,12 +1075,38 @@ public class Dao {
 
     public Long insertBooking(Booking booking) {
         try {
-            return executeStatement(getInsertStatement(booking, "bookings"));
+            return insertRecord(booking, "bookings");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting booking", e);
         }
     }
 
+    /*
+    Books the listing through the add_booking procedure, in a single round trip. The amount of the booking is
+    calculated from the price of the availability it falls in, and booking.amount() is ignored.
+    If the booking is not possible, the message of the DataAccessException says why
+     */
+    public Long addBooking(Booking booking) {
+        try {
+            PreparedStatement stmt = prepareStatement("CALL add_booking(?, ?, ?, ?, ?, ?, ?)", false);
+            bindParameters(stmt, new Object[] {booking.listings_listing_id(), booking.tenant_sin(),
+                    booking.start_date(), booking.end_date(), booking.transaction_date(),
+                    booking.payment_method(), booking.card_number()});
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new DataAccessException("Error adding booking: add_booking did not return the booking id");
+                }
+                return rs.getLong("booking_id");
+            }
+        } catch (SQLException e) {
+            if ("45000".equals(e.getSQLState())) {
+                // raised by one of the checks of add_booking
+                throw new DataAccessException(e.getMessage(), e);
+            }
+            throw new DataAccessException("Error adding booking", e);
+        }
+    }
+
     public void deleteBooking(long bookingId) {
         SqlQuery query = new SqlQuery("DELETE FROM bookings WHERE booking_id = ?", bookingId);
         try {
@@ -950,6 +1125,15 @@ public class Dao {
         }
     }
 
+    public void forEachBooking(Consumer<? super Booking> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM bookings");
+        try {
+            forEachRecord(query, Booking.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming all bookings", e);
+        }
+    }
+
     public Booking getBooking(Long booking_id) {
         SqlQuery query = new SqlQuery("SELECT * FROM bookings WHERE booking_id = ?", booking_id);
         try {
@@ -1022,7 +1206,7 @@ public class Dao {
 
     public void insertReview(Review review) {
         try {
-            executeStatement(getInsertStatement(review, "reviews"));
+            insertRecord(review, "reviews");
         } catch (SQLException e) {
             throw new DataAccessException("Error inserting review", e);
         }
@@ -1048,35 +1232,7 @@ public class Dao {
     }
 
     private List<Review> executeReviewQuery(SqlQuery query) throws SQLException {
-        Connection conn = threadLocalConnection.get();
-        try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-            for (int i = 0; i < query.parameters().length; i++) {
-                stmt.setObject(i + 1, query.parameters()[i]);
-            }
-            try (ResultSet rs = stmt.executeQuery()) {
-                List<Review> reviews = new ArrayList<>();
-                while (rs.next()) {
-                    // the follow handle the case where JDBC's getInt returns 0 for null
-                    Integer ratingOfListing = rs.getInt("rating_of_listing");
-                    if (rs.wasNull()) {
-                        ratingOfListing = null;
-                    }
-                    Integer ratingOfHost = rs.getInt("rating_of_host");
-                    if (rs.wasNull()) {
-                        ratingOfHost = null;
-                    }
-                    Integer ratingOfRenter = rs.getInt("rating_of_tenant");
-                    if (rs.wasNull()) {
-                        ratingOfRenter = null;
-                    }
-                    reviews.add(new Review(rs.getLong("review_id"), ratingOfListing, ratingOfHost,
-                            ratingOfRenter, rs.getString("comment_from_tenant"),
-                            rs.getString("comment_from_host"), rs.getLong("bookings_booking_id")));
-                }
-
-                return reviews;
-            }
-        }
+        return executeRecordQuery(query, Review.class);
     }
 
     public List<Review> getReviews() {
@@ -1088,6 +1244,66 @@ public class Dao {
         }
     }
 
+    public void forEachReview(Consumer<? super Review> consumer) {
+        SqlQuery query = new SqlQuery("SELECT * FROM reviews");
+        try {
+            forEachRecord(query, Review.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming all reviews", e);
+        }
+    }
+
+    /*
+    Streams every non-empty tenant comment with the id of the reviewed listing, in one query.
+    Comments whose noun phrases are cached for exactly their current text come with the cached phrases instead
+    of the comment
+     */
+    public void forEachTenantComment(Consumer<? super TenantComment> consumer) {
+        SqlQuery query = new SqlQuery("SELECT reviews.review_id, bookings.listings_listing_id AS listing_id, " +
+                "IF(review_noun_phrases.noun_phrases IS NULL, reviews.comment_from_tenant, NULL) AS comment, " +
+                "review_noun_phrases.noun_phrases " +
+                "FROM reviews JOIN bookings ON reviews.bookings_booking_id = bookings.booking_id " +
+                "LEFT JOIN review_noun_phrases ON review_noun_phrases.reviews_review_id = reviews.review_id " +
+                "AND review_noun_phrases.comment_hash = UNHEX(SHA2(reviews.comment_from_tenant, 256)) " +
+                "WHERE reviews.comment_from_tenant IS NOT NULL AND reviews.comment_from_tenant <> ''");
+        try {
+            forEachRecord(query, TenantComment.class, consumer);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error streaming tenant comments", e);
+        }
+    }
+
+    // Caches the noun phrases of each comment, keyed by its review and a hash of the comment they were extracted from
+    public void saveReviewNounPhrases(List<TenantComment> comments) {
+        String sql = "INSERT INTO review_noun_phrases (reviews_review_id, comment_hash, noun_phrases) " +
+                "VALUES (?, UNHEX(SHA2(?, 256)), ?) " +
+                "ON DUPLICATE KEY UPDATE comment_hash = VALUES(comment_hash), noun_phrases = VALUES(noun_phrases)";
+        try {
+            PreparedStatement stmt = prepareStatement(sql, false);
+            for (int start = 0; start < comments.size(); start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, comments.size());
+                for (TenantComment comment : comments.subList(start, end)) {
+                    bindParameters(stmt, new Object[] {comment.review_id(), comment.comment(), comment.noun_phrases()});
+                    stmt.addBatch();
+                }
+                executeBatch(stmt, null);
+            }
+        } catch (SQLException e) {
+            throw new DataAccessException("Error saving review noun phrases", e);
+        }
+    }
+
+    public void deleteReviewNounPhrases(Long booking_id) {
+        SqlQuery query = new SqlQuery("DELETE review_noun_phrases FROM review_noun_phrases " +
+                "JOIN reviews ON review_noun_phrases.reviews_review_id = reviews.review_id " +
+                "WHERE reviews.bookings_booking_id = ?", booking_id);
+        try {
+            executeStatement(query);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error deleting review noun phrases", e);
+        }
+    }
+
     public List<Review> getReviewsAsTenant(Long tenantId) {
         SqlQuery query = new SqlQuery("SELECT * FROM reviews WHERE bookings_booking_id IN " +
                 "(SELECT booking_id FROM bookings WHERE tenant_sin = ?)", tenantId);
@@ -1175,24 +1391,62 @@ public class Dao {
         }
     }
 
+    /*
+    Counts listings per country, per city and per postal code in one pass over the listings table.
+    WITH ROLLUP adds a subtotal row for every country and city and a grand total row. GROUPING() tells those
+    subtotal rows apart from groups whose column is actually NULL
+     */
+    public ListingLocationCounts getListingLocationCounts() {
+        String sql = "SELECT country, city, postal_code, COUNT(*) AS listings, " +
+                "GROUPING(country) AS all_countries, GROUPING(city) AS all_cities, GROUPING(postal_code) AS all_postal_codes " +
+                "FROM listings " +
+                "GROUP BY country, city, postal_code WITH ROLLUP";
+        try {
+            PreparedStatement stmt = prepareStatement(sql, false);
+            try (ResultSet rs = stmt.executeQuery()) {
+                Map<String, Long> perCountry = new HashMap<>();
+                Map<String, Map<String, Long>> perCity = new HashMap<>();
+                Map<String, Map<String, Map<String, Long>>> perPostalCode = new HashMap<>();
+                long total = 0;
+                while (rs.next()) {
+                    String country = rs.getString("country");
+                    String city = rs.getString("city");
+                    long count = rs.getLong("listings");
+                    if (rs.getInt("all_countries") == 1) {
+                        total = count;
+                    } else if (rs.getInt("all_cities") == 1) {
+                        perCountry.put(country, count);
+                    } else if (rs.getInt("all_postal_codes") == 1) {
+                        perCity.computeIfAbsent(country, key -> new HashMap<>()).put(city, count);
+                    } else {
+                        perPostalCode.computeIfAbsent(country, key -> new HashMap<>())
+                                .computeIfAbsent(city, key -> new HashMap<>())
+                                .put(rs.getString("postal_code"), count);
+                    }
+                }
+                return new ListingLocationCounts(perCountry, perCity, perPostalCode, total);
+            }
+        } catch (SQLException e) {
+            throw new DataAccessException("Error counting listings by location", e);
+        }
+    }
+
     public Map<String, Long> getNumberOfBookingsInDateRangePerCity(LocalDate startDate, LocalDate endDate) {
         SqlQuery query = new SqlQuery("SELECT city, COUNT(*) FROM bookings " +
                 "JOIN listings ON bookings.listings_listing_id = listings.listing_id " +
                 "WHERE start_date >= ? AND end_date <= ? " +
                 "GROUP BY city", startDate, endDate);
         try {
-            Connection conn = threadLocalConnection.get();
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    Map<String, Long> bookingsByCity = new HashMap<>();
-                    while (rs.next()) {
-                        bookingsByCity.put(rs.getString("city"), rs.getLong("COUNT(*)"));
-                    }
-                    return bookingsByCity;
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                Map<String, Long> bookingsByCity = new HashMap<>();
+                while (rs.next()) {
+                    bookingsByCity.put(rs.getString("city"), rs.getLong("COUNT(*)"));
                 }
+                return bookingsByCity;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of bookings by date range and city", e);
@@ -1205,27 +1459,25 @@ public class Dao {
                 "WHERE start_date >= ? AND end_date <= ? " +
                 "GROUP BY city, postal_code", startDate, endDate);
         try {
-            Connection conn = threadLocalConnection.get();
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    Map<String, Map<String, Long>> bookingsByCityAndPostalCode = new HashMap<>();
-                    while (rs.next()) {
-                        String city = rs.getString("city");
-                        String postalCode = rs.getString("postal_code");
-                        Long count = rs.getLong("COUNT(*)");
-                        if (bookingsByCityAndPostalCode.containsKey(city)) {
-                            bookingsByCityAndPostalCode.get(city).put(postalCode, count);
-                        } else {
-                            HashMap<String, Long> postalCodeCount = new HashMap<>();
-                            postalCodeCount.put(postalCode, count);
-                            bookingsByCityAndPostalCode.put(city, postalCodeCount);
-                        }
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                Map<String, Map<String, Long>> bookingsByCityAndPostalCode = new HashMap<>();
+                while (rs.next()) {
+                    String city = rs.getString("city");
+                    String postalCode = rs.getString("postal_code");
+                    Long count = rs.getLong("COUNT(*)");
+                    if (bookingsByCityAndPostalCode.containsKey(city)) {
+                        bookingsByCityAndPostalCode.get(city).put(postalCode, count);
+                    } else {
+                        HashMap<String, Long> postalCodeCount = new HashMap<>();
+                        postalCodeCount.put(postalCode, count);
+                        bookingsByCityAndPostalCode.put(city, postalCodeCount);
                     }
-                    return bookingsByCityAndPostalCode;
                 }
+                return bookingsByCityAndPostalCode;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of bookings by date range and city", e);
@@ -1242,20 +1494,18 @@ public class Dao {
                 startDate, endDate);
         try {
             List<User> users = executeUserQuery(query);
-            Connection conn = threadLocalConnection.get();
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    // Use ordered map to preserve order of results
-                    Map<User, Long> bookingsByRenter = new LinkedHashMap<>();
-                    int counter = 0;
-                    while (rs.next() && counter < users.size()) {
-                        bookingsByRenter.put(users.get(counter++), rs.getLong("COUNT(*)"));
-                    }
-                    return bookingsByRenter;
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                // Use ordered map to preserve order of results
+                Map<User, Long> bookingsByRenter = new LinkedHashMap<>();
+                int counter = 0;
+                while (rs.next() && counter < users.size()) {
+                    bookingsByRenter.put(users.get(counter++), rs.getLong("COUNT(*)"));
                 }
+                return bookingsByRenter;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of bookings by date range and renter", e);
@@ -1273,30 +1523,27 @@ public class Dao {
                 startDate, endDate);
         try {
             List<User> users = executeUserQuery(query);
-            Connection conn = threadLocalConnection.get();
-
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    // Use ordered map to preserve order of results
-                    Map<String, Map<User, Long>> bookingsByRenterByCity = new LinkedHashMap<>();
-                    int counter = 0;
-                    while (rs.next() && counter < users.size()) {
-                        String city = rs.getString("city");
-                        User renter = users.get(counter++);
-                        Long count = rs.getLong("COUNT(*)");
-                        if (bookingsByRenterByCity.containsKey(city)) {
-                            bookingsByRenterByCity.get(city).put(renter, count);
-                        } else {
-                            HashMap<User, Long> renterCount = new HashMap<>();
-                            renterCount.put(renter, count);
-                            bookingsByRenterByCity.put(city, renterCount);
-                        }
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                // Use ordered map to preserve order of results
+                Map<String, Map<User, Long>> bookingsByRenterByCity = new LinkedHashMap<>();
+                int counter = 0;
+                while (rs.next() && counter < users.size()) {
+                    String city = rs.getString("city");
+                    User renter = users.get(counter++);
+                    Long count = rs.getLong("COUNT(*)");
+                    if (bookingsByRenterByCity.containsKey(city)) {
+                        bookingsByRenterByCity.get(city).put(renter, count);
+                    } else {
+                        HashMap<User, Long> renterCount = new HashMap<>();
+                        renterCount.put(renter, count);
+                        bookingsByRenterByCity.put(city, renterCount);
                     }
-                    return bookingsByRenterByCity;
                 }
+                return bookingsByRenterByCity;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of bookings by date range and renter", e);
@@ -1313,20 +1560,18 @@ public class Dao {
                 startDate, endDate);
         try {
             List<User> users = executeUserQuery(query);
-            Connection conn = threadLocalConnection.get();
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    // Use ordered map to preserve order of results
-                    Map<User, Long> bookingsByRenter = new LinkedHashMap<>();
-                    int counter = 0;
-                    while (rs.next() && counter < users.size()) {
-                        bookingsByRenter.put(users.get(counter++), rs.getLong("COUNT(*)"));
-                    }
-                    return bookingsByRenter;
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                // Use ordered map to preserve order of results
+                Map<User, Long> bookingsByRenter = new LinkedHashMap<>();
+                int counter = 0;
+                while (rs.next() && counter < users.size()) {
+                    bookingsByRenter.put(users.get(counter++), rs.getLong("COUNT(*)"));
                 }
+                return bookingsByRenter;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of cancelled bookings by date range and renter", e);
@@ -1343,20 +1588,18 @@ public class Dao {
                 startDate, endDate);
         try {
             List<User> users = executeUserQuery(query);
-            Connection conn = threadLocalConnection.get();
-            try (PreparedStatement stmt = conn.prepareStatement(query.sql())) {
-                for (int i = 0; i < query.parameters().length; i++) {
-                    stmt.setObject(i + 1, query.parameters()[i]);
-                }
-                try (ResultSet rs = stmt.executeQuery()) {
-                    // Use ordered map to preserve order of results
-                    Map<User, Long> bookingsByHost = new LinkedHashMap<>();
-                    int counter = 0;
-                    while (rs.next() && counter < users.size()) {
-                        bookingsByHost.put(users.get(counter++), rs.getLong("COUNT(*)"));
-                    }
-                    return bookingsByHost;
+            PreparedStatement stmt = prepareStatement(query.sql(), false);
+            for (int i = 0; i < query.parameters().length; i++) {
+                stmt.setObject(i + 1, query.parameters()[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                // Use ordered map to preserve order of results
+                Map<User, Long> bookingsByHost = new LinkedHashMap<>();
+                int counter = 0;
+                while (rs.next() && counter < users.size()) {
+                    bookingsByHost.put(users.get(counter++), rs.getLong("COUNT(*)"));
                 }
+                return bookingsByHost;
             }
         } catch (SQLException e) {
             throw new DataAccessException("Error getting number of cancelled bookings by date range and host", e);
@@ -12,9 +12,12 @@ public class DbConfig {
     private final String username;
     private final String password;
     private final List<String> tables = Arrays.asList(
+            "schema_version",
+            "table_generations",
             "listing_amenities",
             "amenities",
             "availabilities",
+            "review_noun_phrases",
             "reviews",
             "bookings",
             "cancelled_bookings",
@@ -23,6 +26,157 @@ public class DbConfig {
 
     private Map<String, BigDecimal> amenityImpactMap = new HashMap<>();
 
+    /*
+    Books a listing in one call: runs the same checks as BookingService used to run one query at a time, splits the
+    availability containing the booking, and inserts the booking and its empty review.
+    Failed checks raise SQLSTATE 45000 with the message shown to the user. Returns the booking id as a result set.
+    The caller owns the transaction.
+     */
+    private static final String ADD_BOOKING_PROCEDURE = "CREATE PROCEDURE add_booking(" +
+            "IN p_listing_id BIGINT UNSIGNED, IN p_tenant_sin BIGINT, IN p_start_date date, IN p_end_date date, " +
+            "IN p_transaction_date date, IN p_payment_method varchar(20), IN p_card_number BIGINT) " +
+            "BEGIN " +
+            "DECLARE v_host_sin BIGINT; " +
+            "DECLARE v_availability_id BIGINT UNSIGNED; " +
+            "DECLARE v_available_start date; " +
+            "DECLARE v_available_end date; " +
+            "DECLARE v_price decimal(10,2); " +
+            "DECLARE v_booking_id BIGINT UNSIGNED; " +
+            "DECLARE v_message varchar(200); " +
+            "DECLARE CONTINUE HANDLER FOR NOT FOUND SET v_availability_id = NULL; " +
+
+            "IF EXISTS (SELECT 1 FROM bookings WHERE listings_listing_id = p_listing_id " +
+            "AND start_date = p_start_date AND end_date = p_end_date) THEN " +
+            "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = 'Booking already exists for the given date range.'; " +
+            "END IF; " +
+
+            "SET v_host_sin = (SELECT users_sin FROM listings WHERE listing_id = p_listing_id); " +
+            "IF v_host_sin IS NULL THEN " +
+            "SET v_message = CONCAT('listing with id, ', p_listing_id, ', does not exist.'); " +
+            "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = v_message; " +
+            "END IF; " +
+
+            "IF NOT EXISTS (SELECT 1 FROM users WHERE sin = p_tenant_sin) THEN " +
+            "SET v_message = CONCAT('user with sin, ', p_tenant_sin, ', does not exist.'); " +
+            "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = v_message; " +
+            "END IF; " +
+
+            "IF v_host_sin = p_tenant_sin THEN " +
+            "SET v_message = CONCAT('Cannot book! User with sin, ', p_tenant_sin, ', is a host.'); " +
+            "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = v_message; " +
+            "END IF; " +
+
+            // availabilities never overlap, so only the last one starting on or before the booking can contain it
+            "SELECT availability_id, start_date, end_date, price_per_night " +
+            "INTO v_availability_id, v_available_start, v_available_end, v_price " +
+            "FROM availabilities WHERE listings_listing_id = p_listing_id AND start_date <= p_start_date " +
+            "ORDER BY start_date DESC LIMIT 1 FOR UPDATE; " +
+            "IF v_availability_id IS NULL OR v_available_end < p_end_date THEN " +
+            "SIGNAL SQLSTATE '45000' SET MESSAGE_TEXT = 'There is no availability for the given date range.'; " +
+            "END IF; " +
+
+            // keep the parts of the availability before and after the booking
+            "DELETE FROM availabilities WHERE availability_id = v_availability_id; " +
+            "IF v_available_start < p_start_date THEN " +
+            "INSERT INTO availabilities (start_date, end_date, price_per_night, listings_listing_id) " +
+            "VALUES (v_available_start, p_start_date, v_price, p_listing_id); " +
+            "END IF; " +
+            "IF v_available_end > p_end_date THEN " +
+            "INSERT INTO availabilities (start_date, end_date, price_per_night, listings_listing_id) " +
+            "VALUES (p_end_date, v_available_end, v_price, p_listing_id); " +
+            "END IF; " +
+
+            "INSERT INTO bookings (start_date, end_date, transaction_date, amount, payment_method, card_number, " +
+            "tenant_sin, listings_listing_id) " +
+            "VALUES (p_start_date, p_end_date, p_transaction_date, v_price * DATEDIFF(p_end_date, p_start_date), " +
+            "p_payment_method, p_card_number, p_tenant_sin, p_listing_id); " +
+            "SET v_booking_id = LAST_INSERT_ID(); " +
+            "INSERT INTO reviews (bookings_booking_id) VALUES (v_booking_id); " +
+            "SELECT v_booking_id AS booking_id; " +
+            "END";
+
+    /*
+    Schema changes made after the tables in createTables, applied in order by migrate.
+    Never edit or reorder a released migration, append a new one with the next version instead.
+    Each step must be idempotent, so that a migration interrupted half-way can simply be run again.
+     */
+    private final List<Migration> migrations = List.of(
+            new Migration(1, "Index bookings by listing and dates", conn ->
+                    createIndexIfMissing(conn, "bookings", "idx_bookings_listing_dates",
+                            "listings_listing_id, start_date, end_date")),
+            new Migration(2, "Index bookings by tenant and dates", conn ->
+                    createIndexIfMissing(conn, "bookings", "idx_bookings_tenant_dates",
+                            "tenant_sin, start_date, end_date")),
+            new Migration(3, "Index bookings by dates for the reports", conn ->
+                    createIndexIfMissing(conn, "bookings", "idx_bookings_dates",
+                            "start_date, end_date")),
+            new Migration(4, "Index availabilities by listing and dates", conn ->
+                    createIndexIfMissing(conn, "availabilities", "idx_availabilities_listing_dates",
+                            "listings_listing_id, start_date, end_date")),
+            new Migration(5, "Index listings by city", conn ->
+                    createIndexIfMissing(conn, "listings", "idx_listings_city", "city")),
+            new Migration(6, "Index listings by address", conn ->
+                    createIndexIfMissing(conn, "listings", "idx_listings_address",
+                            "postal_code, city, country, address")),
+            new Migration(7, "Index cancelled bookings by tenant and by dates", conn -> {
+                createIndexIfMissing(conn, "cancelled_bookings", "idx_cancelled_bookings_tenant_dates",
+                        "tenant_sin, start_date, end_date");
+                createIndexIfMissing(conn, "cancelled_bookings", "idx_cancelled_bookings_dates",
+                        "start_date, end_date");
+            }),
+            new Migration(8, "Add the add_booking procedure", conn -> {
+                execute(conn, "DROP PROCEDURE IF EXISTS add_booking");
+                execute(conn, ADD_BOOKING_PROCEDURE);
+            }),
+            // noun phrases extracted from comment_from_tenant, valid while comment_hash matches the comment
+            new Migration(9, "Add the review noun phrase cache", conn ->
+                    execute(conn, "CREATE TABLE IF NOT EXISTS review_noun_phrases (" +
+                            "reviews_review_id BIGINT UNSIGNED NOT NULL," +
+                            "comment_hash BINARY(32) NOT NULL," +
+                            "noun_phrases TEXT NOT NULL," +
+                            "PRIMARY KEY (reviews_review_id)," +
+                            "CONSTRAINT review_noun_phrases_reviews FOREIGN KEY (reviews_review_id) " +
+                            "REFERENCES reviews (review_id) ON DELETE CASCADE" +
+                            ")")),
+            // the optimizer ignores a SPATIAL INDEX on a column without an SRID. Locations are stored with SRID 0
+            new Migration(10, "Give listings.location an SRID so radius searches use its spatial index", conn -> {
+                if (!columnHasSrid(conn, "listings", "location")) {
+                    execute(conn, "ALTER TABLE listings DROP INDEX location, " +
+                            "MODIFY location POINT NOT NULL SRID 0, " +
+                            "ADD SPATIAL INDEX location (location)");
+                }
+            }),
+            // bit amenity_id - 1 is set for every amenity of the listing. The amenity catalogue is fixed and has
+            // fewer than 64 amenities, so one BIGINT holds them all
+            new Migration(11, "Add listings.amenity_mask so amenity searches test one column", conn -> {
+                if (!columnExists(conn, "listings", "amenity_mask")) {
+                    execute(conn, "ALTER TABLE listings ADD COLUMN amenity_mask BIGINT UNSIGNED NOT NULL DEFAULT 0");
+                }
+                execute(conn, "UPDATE listings SET amenity_mask = (SELECT BIT_OR(1 << (amenity_id - 1)) " +
+                        "FROM listing_amenities WHERE listing_amenities.listing_id = listings.listing_id)");
+            }),
+            // a new generation is drawn whenever the tables are created, and changed_at follows every insert and
+            // update, so that in-memory copies of the tables can tell a reset from the rows changed since they loaded
+            new Migration(12, "Track table generations and row changes for the in-memory indexes", conn -> {
+                execute(conn, "CREATE TABLE IF NOT EXISTS table_generations (" +
+                        "table_name varchar(64) NOT NULL," +
+                        "generation char(36) NOT NULL," +
+                        "PRIMARY KEY (table_name)" +
+                        ")");
+                execute(conn, "INSERT IGNORE INTO table_generations (table_name, generation) " +
+                        "VALUES ('listings', UUID()), ('availabilities', UUID())");
+                for (String table : List.of("listings", "availabilities")) {
+                    if (!columnExists(conn, table, "changed_at")) {
+                        execute(conn, "ALTER TABLE " + table + " ADD COLUMN changed_at TIMESTAMP(6) NOT NULL " +
+                                "DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6)");
+                    }
+                    createIndexIfMissing(conn, table, "idx_" + table + "_changed_at", "changed_at");
+                }
+            })
+            // listings.users_sin and reviews.bookings_booking_id are already indexed by their
+            // foreign key and UNIQUE constraints
+    );
+
     public DbConfig(String url, String username, String password) {
         this.url = url;
         this.username = username;
@@ -268,11 +422,133 @@ public class DbConfig {
             }
             stmt.close();
 
+            migrate(conn);
         } catch (SQLException e) {
             throw new DataAccessException("Error creating tables", e);
         }
     }
 
+    // Brings an existing database up to the latest schema version in place, keeping its data
+    public void migrate() {
+        try (Connection conn = DriverManager.getConnection(url, username, password)) {
+            migrate(conn);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error migrating database", e);
+        }
+    }
+
+    public int getSchemaVersion() {
+        try (Connection conn = DriverManager.getConnection(url, username, password)) {
+            createSchemaVersionTable(conn);
+            return getSchemaVersion(conn);
+        } catch (SQLException e) {
+            throw new DataAccessException("Error getting schema version", e);
+        }
+    }
+
+    private void migrate(Connection conn) throws SQLException {
+        createSchemaVersionTable(conn);
+        // DDL commits implicitly, so a lock instead of a transaction keeps two instances from migrating at once
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT GET_LOCK('mybnb_schema_migration', 60)");
+             ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next() || rs.getInt(1) != 1) {
+                throw new SQLException("Timed out waiting for another schema migration to finish");
+            }
+        }
+        try {
+            int currentVersion = getSchemaVersion(conn);
+            for (Migration migration : migrations) {
+                if (migration.version() <= currentVersion) {
+                    continue;
+                }
+                migration.step().apply(conn);
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "INSERT INTO schema_version (version, description, applied_on) VALUES (?, ?, NOW())")) {
+                    stmt.setInt(1, migration.version());
+                    stmt.setString(2, migration.description());
+                    stmt.executeUpdate();
+                }
+            }
+        } finally {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT RELEASE_LOCK('mybnb_schema_migration')")) {
+                stmt.executeQuery().close();
+            }
+        }
+    }
+
+    private void createSchemaVersionTable(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("CREATE TABLE IF NOT EXISTS schema_version (" +
+                "version int NOT NULL," +
+                "description varchar(200) NOT NULL," +
+                "applied_on datetime NOT NULL," +
+                "PRIMARY KEY (version)" +
+                ");")) {
+            stmt.executeUpdate();
+        }
+    }
+
+    private int getSchemaVersion(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(version), 0) FROM schema_version");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.executeUpdate();
+        }
+    }
+
+    private static void createIndexIfMissing(Connection conn, String table, String indexName, String columns) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.statistics " +
+                "WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, indexName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                if (rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "CREATE INDEX " + indexName + " ON " + table + " (" + columns + ")")) {
+            stmt.executeUpdate();
+        }
+    }
+
+    private static boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.columns " +
+                "WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, column);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    private static boolean columnHasSrid(Connection conn, String table, String column) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT SRS_ID FROM information_schema.columns " +
+                "WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?")) {
+            stmt.setString(1, table);
+            stmt.setString(2, column);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getObject(1) != null;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MigrationStep {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private record Migration(int version, String description, MigrationStep step) {}
+
     public void dropTables() {
         try (Connection conn = DriverManager.getConnection(url, username, password)) {
             for (String table : tables) {
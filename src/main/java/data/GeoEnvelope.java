@@ -0,0 +1,38 @@
+package data;
+
+import java.awt.geom.Point2D;
+
+/*
+The smallest longitude/latitude rectangle containing every point within a distance of a center point on the sphere
+used by ST_Distance_Sphere. A spatial index can find the points in the rectangle, and only those need the exact
+distance check. x is longitude and y is latitude, in degrees, as everywhere else.
+ */
+record GeoEnvelope(Point2D lowerCorner, Point2D upperCorner) {
+    // the radius ST_Distance_Sphere uses by default, in meters
+    private static final double EARTH_RADIUS = 6370986.0;
+    // widens the rectangle slightly so rounding never drops a point right on the circle
+    private static final double MARGIN_DEGREES = 1e-9;
+
+    static GeoEnvelope around(Point2D center, double radiusMeters) {
+        double angularRadius = Math.max(radiusMeters, 0) / EARTH_RADIUS;
+        double latitude = Math.toRadians(center.getY());
+        double minLatitude = Math.toDegrees(latitude - angularRadius) - MARGIN_DEGREES;
+        double maxLatitude = Math.toDegrees(latitude + angularRadius) + MARGIN_DEGREES;
+        if (angularRadius >= Math.PI || minLatitude <= -90 || maxLatitude >= 90) {
+            // the circle covers a pole, so it spans every longitude
+            return new GeoEnvelope(new Point2D.Double(-180, Math.max(minLatitude, -90)),
+                    new Point2D.Double(180, Math.min(maxLatitude, 90)));
+        }
+        // widest longitude reached by the circle, which is not at the center's latitude
+        double longitudeDelta = Math.toDegrees(Math.asin(Math.sin(angularRadius) / Math.cos(latitude))) + MARGIN_DEGREES;
+        double minLongitude = center.getX() - longitudeDelta;
+        double maxLongitude = center.getX() + longitudeDelta;
+        if (minLongitude < -180 || maxLongitude > 180) {
+            // the circle crosses the antimeridian. A single rectangle that contains it has to span every longitude
+            minLongitude = -180;
+            maxLongitude = 180;
+        }
+        return new GeoEnvelope(new Point2D.Double(minLongitude, minLatitude),
+                new Point2D.Double(maxLongitude, maxLatitude));
+    }
+}
@@ -0,0 +1,58 @@
+package data;
+
+import exception.DataAccessException;
+
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+Converts points to and from binary geometry values, so that locations never go through WKT text.
+MySQL returns a geometry column selected as-is in its internal format: a 4 byte little-endian SRID followed by
+the WKB of the geometry. Points are written as WKB through ST_GeomFromWKB(?).
+As everywhere else in the project, x is the longitude and y is the latitude.
+ */
+final class GeometryCodec {
+    static final String POINT_PLACEHOLDER = "ST_GeomFromWKB(?)";
+
+    private static final int SRID_LENGTH = 4;
+    private static final int WKB_POINT_LENGTH = 21; // byte order, type, x, y
+    private static final int WKB_POINT_TYPE = 1;
+    private static final byte WKB_LITTLE_ENDIAN = 1;
+
+    private GeometryCodec() {}
+
+    static byte[] encodePoint(Point2D point) {
+        return ByteBuffer.allocate(WKB_POINT_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(WKB_LITTLE_ENDIAN)
+                .putInt(WKB_POINT_TYPE)
+                .putDouble(point.getX())
+                .putDouble(point.getY())
+                .array();
+    }
+
+    // accepts either the internal MySQL format or plain WKB, as returned by ST_AsWKB
+    static Point2D decodePoint(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        int offset;
+        if (bytes.length == SRID_LENGTH + WKB_POINT_LENGTH) {
+            offset = SRID_LENGTH;
+        } else if (bytes.length == WKB_POINT_LENGTH) {
+            offset = 0;
+        } else {
+            throw new DataAccessException("Unexpected geometry value of " + bytes.length + " bytes, expected a point");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, WKB_POINT_LENGTH);
+        buffer.order(buffer.get() == WKB_LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int type = buffer.getInt();
+        if (type != WKB_POINT_TYPE) {
+            throw new DataAccessException("Unexpected geometry type " + type + ", expected a point");
+        }
+        double longitude = buffer.getDouble();
+        double latitude = buffer.getDouble();
+        return new Point2D.Double(longitude, latitude);
+    }
+}
@@ -0,0 +1,67 @@
+package data;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/*
+Position of the last listing on a page of a listing search, encoded into the opaque continuation token.
+The next page starts right after (sortValue, listingId) in the sort order of the search, so it is found through
+the index instead of skipping over all the previous rows like OFFSET would.
+ */
+record ListingCursor(SortOrder sortOrder, String sortValue, long listingId) {
+
+    enum SortOrder {
+        PRICE_ASCEND, PRICE_DESCEND, DISTANCE, LISTING_ID
+    }
+
+    String encode() {
+        String token = sortOrder.name() + ":" + (sortValue == null ? "" : sortValue) + ":" + listingId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ListingCursor decode(String continuationToken, SortOrder expectedSortOrder) {
+        try {
+            String token = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            String[] parts = token.split(":", -1);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid continuation token");
+            }
+            SortOrder sortOrder = SortOrder.valueOf(parts[0]);
+            if (sortOrder != expectedSortOrder) {
+                throw new IllegalArgumentException("Continuation token was created for a search with a different sort order");
+            }
+            ListingCursor cursor = new ListingCursor(sortOrder, parts[1].isEmpty() ? null : parts[1], Long.parseLong(parts[2]));
+            // the sort value is bound as a number when the next page is searched, so it has to be one
+            switch (sortOrder) {
+                case PRICE_ASCEND, PRICE_DESCEND -> cursor.price();
+                case DISTANCE -> cursor.distance();
+                case LISTING_ID -> { }
+            }
+            return cursor;
+        } catch (IllegalArgumentException e) {
+            // also covers malformed base64, unknown sort orders and ids or sort values that are not numbers
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken, e);
+        }
+    }
+
+    // the price per night of the last listing, for searches sorted by price
+    BigDecimal price() {
+        if (sortValue == null) {
+            throw new IllegalArgumentException("Missing price");
+        }
+        return new BigDecimal(sortValue);
+    }
+
+    // the distance in meters of the last listing, for searches sorted by distance
+    double distance() {
+        if (sortValue == null) {
+            throw new IllegalArgumentException("Missing distance");
+        }
+        double distance = Double.parseDouble(sortValue);
+        if (!Double.isFinite(distance)) {
+            throw new IllegalArgumentException("Distance is not a finite number");
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,12 @@
+package data;
+
+import java.util.Map;
+
+/*
+Number of listings at every level of the location hierarchy, as produced by one ROLLUP query.
+perPostalCode is keyed by country, then city, then postal code; perCity by country, then city.
+ */
+public record ListingLocationCounts(Map<String, Long> perCountry,
+                                    Map<String, Map<String, Long>> perCity,
+                                    Map<String, Map<String, Map<String, Long>>> perPostalCode,
+                                    long total) {}
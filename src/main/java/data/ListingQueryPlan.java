@@ -0,0 +1,284 @@
+package data;
+
+import domain.Availability;
+import domain.Listing;
+import filter.ListingFilter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+The SQL of a listing search, compiled once per filter shape. The shape is which fields of the ListingFilter are
+set (and how many listing types and amenities it has), not their values, so every search with the same shape
+shares the same SQL text and only has to extract and bind its parameters.
+ */
+final class ListingQueryPlan {
+    @FunctionalInterface
+    interface ParameterExtractor {
+        Object extract(ListingFilter filter, ListingCursor cursor);
+    }
+
+    private static final RecordMapper<Listing> LISTING_MAPPER = RecordMapper.of(Listing.class);
+    private static final RecordMapper<Availability> AVAILABILITY_MAPPER = RecordMapper.of(Availability.class);
+
+    private final String sql;
+    private final ListingCursor.SortOrder sortOrder;
+    private final ParameterExtractor[] parameters;
+
+    private ListingQueryPlan(String sql, ListingCursor.SortOrder sortOrder, List<ParameterExtractor> parameters) {
+        this.sql = sql;
+        this.sortOrder = sortOrder;
+        this.parameters = parameters.toArray(new ParameterExtractor[0]);
+    }
+
+    String sql() {
+        return sql;
+    }
+
+    ListingCursor.SortOrder sortOrder() {
+        return sortOrder;
+    }
+
+    SqlQuery bind(ListingFilter filter) {
+        ListingCursor cursor = filter.continuationToken() == null ? null
+                : ListingCursor.decode(filter.continuationToken(), sortOrder);
+        Object[] values = new Object[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            values[i] = parameters[i].extract(filter, cursor);
+        }
+        return new SqlQuery(sql, values);
+    }
+
+    record Shape(int listingFields, int listingTypeCount, boolean searchRadius,
+                 boolean availability, int availabilityFields,
+                 boolean startDateRange, boolean endDateRange, boolean stay, boolean minPricePerNight, boolean maxPricePerNight,
+                 int amenityCount, boolean groupByPriceAscend, boolean groupByPriceDescend,
+                 boolean continued, boolean paged, int candidateCount) {
+
+        static Shape of(ListingFilter filter) {
+            return new Shape(
+                    filter.listing() == null ? 0 : fieldMask(LISTING_MAPPER, filter.listing()),
+                    filter.listingTypes() == null ? -1 : filter.listingTypes().size(),
+                    filter.searchRadius() != null,
+                    filter.availability() != null,
+                    filter.availability() == null ? 0 : fieldMask(AVAILABILITY_MAPPER, filter.availability()),
+                    filter.startDateRange() != null,
+                    filter.endDateRange() != null,
+                    filter.checkInDate() != null,
+                    filter.minPricePerNight() != null,
+                    filter.maxPricePerNight() != null,
+                    filter.amenities() == null ? 0 : filter.amenities().size(),
+                    filter.groupByPriceAscend(),
+                    filter.groupByPriceDescend(),
+                    filter.continuationToken() != null,
+                    filter.pageSize() != null,
+                    filter.candidateListingIds() == null ? -1 : paddedCandidateCount(filter.candidateListingIds().size()));
+        }
+
+        // bit i is set if record component i is not null
+        private static <T extends Record> int fieldMask(RecordMapper<T> mapper, T record) {
+            int mask = 0;
+            for (int i = 0; i < mapper.columnCount(); i++) {
+                if (mapper.value(record, i) != null) {
+                    mask |= 1 << i;
+                }
+            }
+            return mask;
+        }
+
+        boolean hasListingField(int index) {
+            return (listingFields & (1 << index)) != 0;
+        }
+
+        boolean hasAvailabilityField(int index) {
+            return (availabilityFields & (1 << index)) != 0;
+        }
+    }
+
+    static ListingQueryPlan compile(Shape shape) {
+        StringBuilder sql = new StringBuilder("SELECT DISTINCT listings.*");
+
+        List<ParameterExtractor> parameters = new ArrayList<>();
+
+        int locationIndex = indexOf(LISTING_MAPPER, "location");
+        boolean searchByDistance = shape.hasListingField(locationIndex) && shape.searchRadius();
+
+        ListingCursor.SortOrder sortOrder;
+        if (shape.groupByPriceAscend()) {
+            sortOrder = ListingCursor.SortOrder.PRICE_ASCEND;
+        } else if (shape.groupByPriceDescend()) {
+            sortOrder = ListingCursor.SortOrder.PRICE_DESCEND;
+        } else if (searchByDistance) {
+            sortOrder = ListingCursor.SortOrder.DISTANCE;
+        } else {
+            sortOrder = ListingCursor.SortOrder.LISTING_ID;
+        }
+
+        if (shape.groupByPriceAscend() || shape.groupByPriceDescend()) {
+            sql.append(", availabilities.price_per_night AS price_per_night");
+        } else if (searchByDistance) {
+            sql.append(", ST_Distance_Sphere(location, ST_GeomFromWKB(?)) AS distance");
+            parameters.add((filter, cursor) -> filter.listing().location());
+        }
+        sql.append(" FROM listings ");
+
+        // join with availabilities table if availability filter is not empty
+        if (shape.availability() || shape.groupByPriceAscend() || shape.groupByPriceDescend()) {
+            sql.append("JOIN availabilities ON listings.listing_id = availabilities.listings_listing_id ");
+        }
+
+        // the amenity_mask bits of the amenities in the filter, as a single row. The row only joins if every amenity
+        // in the filter exists, and has a bit, so unknown amenities still match no listing
+        if (shape.amenityCount() > 0) {
+            sql.append("JOIN (SELECT BIT_OR(1 << (amenity_id - 1)) AS mask, COUNT(*) AS found FROM amenities ");
+            sql.append("WHERE amenity_id <= 64 AND amenity_name IN (");
+            for (int i = 0; i < shape.amenityCount(); i++) {
+                int amenityIndex = i;
+                sql.append(i == 0 ? "?" : ", ?");
+                parameters.add((filter, cursor) -> filter.amenities().get(amenityIndex));
+            }
+            sql.append(")) wanted_amenities ON wanted_amenities.found = ? ");
+            parameters.add((filter, cursor) -> filter.amenities().stream().distinct().count());
+        }
+
+        sql.append("WHERE 1 = 1"); // This is always true, and allows us to use AND in the following statements
+
+        // filter by listing fields
+        for (int c = 0; c < LISTING_MAPPER.columnCount(); c++) {
+            if (!shape.hasListingField(c)) {
+                continue;
+            }
+            String column = LISTING_MAPPER.column(c);
+            if (column.equals("listing_type") && shape.listingTypeCount() >= 0) {
+                sql.append(" AND listing_type IN (");
+                for (int i = 0; i < shape.listingTypeCount(); i++) {
+                    int typeIndex = i;
+                    sql.append("?");
+                    parameters.add((filter, cursor) -> filter.listingTypes().get(typeIndex));
+                    if (i < shape.listingTypeCount() - 1) {
+                        sql.append(", ");
+                    }
+                }
+                sql.append(")");
+            } else if (column.equals("location") && shape.searchRadius()) {
+                // the bounding rectangle of the circle can be answered from the spatial index on location,
+                // then only the listings inside it get the exact distance check
+                sql.append(" AND MBRContains(ST_MakeEnvelope(ST_GeomFromWKB(?), ST_GeomFromWKB(?)), location)");
+                parameters.add((filter, cursor) -> envelope(filter).lowerCorner());
+                parameters.add((filter, cursor) -> envelope(filter).upperCorner());
+                // ST_MakePoint is not supported by this version of mysql. Use ST_GeomFromWKB instead
+                sql.append(" AND ST_Distance_Sphere(location, ST_GeomFromWKB(?)) <= ?");
+                parameters.add((filter, cursor) -> filter.listing().location());
+                parameters.add((filter, cursor) -> filter.searchRadiusMeters());
+            } else {
+                int columnIndex = c;
+                sql.append(" AND " + column + " = ?");
+                parameters.add((filter, cursor) -> LISTING_MAPPER.value(filter.listing(), columnIndex));
+            }
+        }
+        // only the listings the in-memory indexes found, padded by repeating the last id
+        if (shape.candidateCount() >= 0) {
+            sql.append(" AND listings.listing_id IN (");
+            for (int i = 0; i < shape.candidateCount(); i++) {
+                int candidateIndex = i;
+                sql.append(i == 0 ? "?" : ", ?");
+                parameters.add((filter, cursor) -> {
+                    List<Long> candidates = filter.candidateListingIds();
+                    return candidates.get(Math.min(candidateIndex, candidates.size() - 1));
+                });
+            }
+            sql.append(")");
+        }
+        // filter by availability fields
+        if (shape.availability()) {
+            for (int c = 0; c < AVAILABILITY_MAPPER.columnCount(); c++) {
+                String column = AVAILABILITY_MAPPER.column(c);
+                if (column.equals("start_date") && shape.startDateRange()) {
+                    sql.append(" AND start_date >= ?");
+                    parameters.add((filter, cursor) -> filter.startDateRange());
+                } else if (column.equals("end_date") && shape.endDateRange()) {
+                    sql.append(" AND end_date <= ?");
+                    parameters.add((filter, cursor) -> filter.endDateRange());
+                } else if (column.equals("price_per_night") && (shape.minPricePerNight() || shape.maxPricePerNight())) {
+                    if (shape.minPricePerNight()) {
+                        sql.append(" AND price_per_night >= ?");
+                        parameters.add((filter, cursor) -> filter.minPricePerNight());
+                    }
+                    if (shape.maxPricePerNight()) {
+                        sql.append(" AND price_per_night <= ?");
+                        parameters.add((filter, cursor) -> filter.maxPricePerNight());
+                    }
+                } else if (shape.hasAvailabilityField(c)) {
+                    int columnIndex = c;
+                    sql.append(" AND " + column + " = ?");
+                    parameters.add((filter, cursor) -> AVAILABILITY_MAPPER.value(filter.availability(), columnIndex));
+                }
+            }
+        }
+        // the same test as add_booking: the availability starting last on or before check-in must last until check-out
+        if (shape.stay()) {
+            sql.append(" AND (SELECT stay.end_date FROM availabilities stay WHERE stay.listings_listing_id = listings.listing_id" +
+                    " AND stay.start_date <= ? ORDER BY stay.start_date DESC LIMIT 1) >= ?");
+            parameters.add((filter, cursor) -> filter.checkInDate());
+            parameters.add((filter, cursor) -> filter.checkOutDate());
+        }
+        // listings that have all the amenities in the filter
+        if (shape.amenityCount() > 0) {
+            sql.append(" AND (listings.amenity_mask & wanted_amenities.mask) = wanted_amenities.mask");
+        }
+        // continue after the last listing of the previous page
+        if (shape.continued()) {
+            switch (sortOrder) {
+                case PRICE_ASCEND -> {
+                    sql.append(" AND (availabilities.price_per_night, listings.listing_id) > (?, ?)");
+                    parameters.add((filter, cursor) -> cursor.price());
+                }
+                case PRICE_DESCEND -> {
+                    sql.append(" AND (availabilities.price_per_night, listings.listing_id) < (?, ?)");
+                    parameters.add((filter, cursor) -> cursor.price());
+                }
+                case DISTANCE -> {
+                    sql.append(" AND (ST_Distance_Sphere(location, ST_GeomFromWKB(?)), listings.listing_id) > (?, ?)");
+                    parameters.add((filter, cursor) -> filter.listing().location());
+                    parameters.add((filter, cursor) -> cursor.distance());
+                }
+                case LISTING_ID -> sql.append(" AND listings.listing_id > ?");
+            }
+            parameters.add((filter, cursor) -> cursor.listingId());
+        }
+        // listing_id breaks ties so that every listing has a unique position for the continuation token
+        switch (sortOrder) {
+            case PRICE_ASCEND -> sql.append(" ORDER BY price_per_night, listings.listing_id");
+            case PRICE_DESCEND -> sql.append(" ORDER BY price_per_night DESC, listings.listing_id DESC");
+            case DISTANCE -> sql.append(" ORDER BY distance, listings.listing_id");
+            case LISTING_ID -> sql.append(" ORDER BY listings.listing_id");
+        }
+        if (shape.paged()) {
+            // one extra row tells whether there is a next page
+            sql.append(" LIMIT ?");
+            parameters.add((filter, cursor) -> filter.pageSize() + 1);
+        }
+
+        return new ListingQueryPlan(sql.toString(), sortOrder, parameters);
+    }
+
+    private static GeoEnvelope envelope(ListingFilter filter) {
+        return GeoEnvelope.around(filter.listing().location(), filter.searchRadiusMeters().doubleValue());
+    }
+
+    // the smallest power of two that is at least count, so that searches with similar numbers of candidates share a plan.
+    // Dao pads its other IN lists the same way
+    static int paddedCandidateCount(int count) {
+        return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+    }
+
+    private static int indexOf(RecordMapper<?> mapper, String column) {
+        for (int i = 0; i < mapper.columnCount(); i++) {
+            if (mapper.column(i).equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No column " + column);
+    }
+}
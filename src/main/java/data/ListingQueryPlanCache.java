@@ -0,0 +1,66 @@
+package data;
+
+import filter.ListingFilter;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Compiled listing search plans keyed by filter shape. Search traffic only uses a few dozen shapes, so the cache is
+bounded only as a safeguard: once it is full, plans for new shapes are compiled for each search and not kept.
+ */
+public class ListingQueryPlanCache {
+    private static final int DEFAULT_MAX_PLANS = 256;
+
+    private final int maxPlans;
+    private final Map<ListingQueryPlan.Shape, ListingQueryPlan> plans = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ListingQueryPlanCache() {
+        this(DEFAULT_MAX_PLANS);
+    }
+
+    public ListingQueryPlanCache(int maxPlans) {
+        this.maxPlans = maxPlans;
+    }
+
+    ListingQueryPlan plan(ListingFilter filter) {
+        ListingQueryPlan.Shape shape = ListingQueryPlan.Shape.of(filter);
+        ListingQueryPlan plan = plans.get(shape);
+        if (plan != null) {
+            hits.increment();
+            return plan;
+        }
+        misses.increment();
+        plan = ListingQueryPlan.compile(shape);
+        if (plans.size() < maxPlans) {
+            plans.putIfAbsent(shape, plan);
+        }
+        return plan;
+    }
+
+    // Compiles the plans for the shapes of the given filters ahead of the first search. Their values are not used
+    public void prewarm(Collection<ListingFilter> sampleFilters) {
+        for (ListingFilter filter : sampleFilters) {
+            ListingQueryPlan.Shape shape = ListingQueryPlan.Shape.of(filter);
+            if (plans.size() < maxPlans) {
+                plans.computeIfAbsent(shape, ListingQueryPlan::compile);
+            }
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(plans.size(), hits.sum(), misses.sum());
+    }
+
+    public record Stats(int cachedPlans, long hits, long misses) {
+
+        public double hitRatio() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : hits / (double) lookups;
+        }
+    }
+}
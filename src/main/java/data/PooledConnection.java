@@ -0,0 +1,78 @@
+package data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// A physical connection owned by a ConnectionPool. Only one thread may hold it at a time.
+class PooledConnection {
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final long createdAtNanos;
+    private long lastUsedNanos;
+    private int defaultIsolation = -1; // isolation level to restore after a read-only transaction, -1 if unchanged
+
+    PooledConnection(Connection connection, StatementCache statementCache) {
+        this.connection = connection;
+        this.statementCache = statementCache;
+        this.createdAtNanos = System.nanoTime();
+        this.lastUsedNanos = createdAtNanos;
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    PreparedStatement prepareStatement(String sql, boolean returnGeneratedKeys) throws SQLException {
+        return statementCache.prepare(sql, returnGeneratedKeys);
+    }
+
+    // Switches the session to read-only at the given isolation level until resetSession is called
+    void setReadOnly(int isolation) throws SQLException {
+        if (defaultIsolation == -1) {
+            defaultIsolation = connection.getTransactionIsolation();
+        }
+        connection.setReadOnly(true);
+        if (isolation != defaultIsolation) {
+            connection.setTransactionIsolation(isolation);
+        }
+    }
+
+    // Puts the session back into the state the next borrower expects
+    void resetSession() throws SQLException {
+        if (defaultIsolation != -1) {
+            connection.setReadOnly(false);
+            connection.setTransactionIsolation(defaultIsolation);
+            defaultIsolation = -1;
+        }
+    }
+
+    long createdAtNanos() {
+        return createdAtNanos;
+    }
+
+    long lastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    void closeQuietly() {
+        statementCache.close();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // the connection is being discarded anyway
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package data;
+
+import exception.DataAccessException;
+
+import java.awt.geom.Point2D;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Binds domain records to statement parameters and maps result set rows back to records.
+Record components are resolved through reflection only once per record type; after that, bind parameters are read
+through method handles for the accessors, and rows are mapped through a typed reader per column and a method handle
+for the canonical constructor.
+Record component names are expected to match the column names, as they do for every table in DbConfig.
+ */
+final class RecordMapper<T extends Record> {
+    private static final ClassValue<RecordMapper<?>> MAPPERS = new ClassValue<>() {
+        @Override
+        protected RecordMapper<?> computeValue(Class<?> type) {
+            return new RecordMapper<>(type.asSubclass(Record.class));
+        }
+    };
+
+    private final Class<T> type;
+    private final String[] columns;
+    private final String[] placeholders;
+    private final MethodHandle[] accessors; // (Object) -> Object
+    private final ColumnReader[] readers;
+    private final MethodHandle constructor; // (Object[]) -> Object
+    private final Map<String, String> insertSqlByTable = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    static <T extends Record> RecordMapper<T> of(Class<T> type) {
+        return (RecordMapper<T>) MAPPERS.get(type);
+    }
+
+    private RecordMapper(Class<T> type) {
+        this.type = type;
+        RecordComponent[] components = type.getRecordComponents();
+        int count = components.length;
+        this.columns = new String[count];
+        this.placeholders = new String[count];
+        this.accessors = new MethodHandle[count];
+        this.readers = new ColumnReader[count];
+        Class<?>[] parameterTypes = new Class<?>[count];
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            for (int i = 0; i < count; i++) {
+                RecordComponent component = components[i];
+                Class<?> componentType = component.getType();
+                parameterTypes[i] = componentType;
+                columns[i] = component.getName();
+                accessors[i] = lookup.unreflect(component.getAccessor())
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                placeholders[i] = Point2D.class.isAssignableFrom(componentType) ? GeometryCodec.POINT_PLACEHOLDER : "?";
+                readers[i] = readerFor(componentType);
+            }
+            this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class, parameterTypes))
+                    .asSpreader(Object[].class, count)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new DataAccessException("Unable to create record mapper for " + type.getName(), e);
+        }
+    }
+
+    int columnCount() {
+        return columns.length;
+    }
+
+    String column(int index) {
+        return columns[index];
+    }
+
+    Object value(T record, int index) {
+        try {
+            return (Object) accessors[index].invokeExact((Object) record);
+        } catch (Throwable e) {
+            throw new DataAccessException("Unable to read " + columns[index] + " of " + type.getSimpleName(), e);
+        }
+    }
+
+    // INSERT statement covering every record component. Null ids are filled in by AUTO_INCREMENT.
+    String insertSql(String tableName) {
+        return insertSqlByTable.computeIfAbsent(tableName, table -> {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            sql.append(String.join(", ", columns));
+            sql.append(") VALUES (");
+            sql.append(String.join(", ", placeholders));
+            sql.append(")");
+            return sql.toString();
+        });
+    }
+
+    // binds every component of the record, starting at parameter firstIndex. Returns the next free index
+    int bind(PreparedStatement stmt, T record, int firstIndex) throws SQLException {
+        for (int i = 0; i < columns.length; i++) {
+            bindValue(stmt, firstIndex + i, value(record, i));
+        }
+        return firstIndex + columns.length;
+    }
+
+    static void bindValue(PreparedStatement stmt, int index, Object value) throws SQLException {
+        if (value instanceof Point2D point) {
+            stmt.setBytes(index, GeometryCodec.encodePoint(point));
+        } else {
+            stmt.setObject(index, value);
+        }
+    }
+
+    // Column positions are looked up once per result set, not once per row
+    RowMapper<T> rowMapper(ResultSet rs) throws SQLException {
+        int[] columnIndexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIndexes[i] = rs.findColumn(columns[i]);
+        }
+        return new RowMapper<>(this, columnIndexes);
+    }
+
+    static final class RowMapper<T extends Record> {
+        private final RecordMapper<T> mapper;
+        private final int[] columnIndexes;
+        private final Object[] values; // reused for every row, the record constructor copies the values out
+
+        private RowMapper(RecordMapper<T> mapper, int[] columnIndexes) {
+            this.mapper = mapper;
+            this.columnIndexes = columnIndexes;
+            this.values = new Object[columnIndexes.length];
+        }
+
+        T map(ResultSet rs) throws SQLException {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = mapper.readers[i].read(rs, columnIndexes[i]);
+            }
+            try {
+                return mapper.type.cast((Object) mapper.constructor.invokeExact(values));
+            } catch (Throwable e) {
+                throw new DataAccessException("Unable to create " + mapper.type.getSimpleName() + " from row", e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ColumnReader {
+        Object read(ResultSet rs, int index) throws SQLException;
+    }
+
+    private static ColumnReader readerFor(Class<?> componentType) {
+        if (componentType == Long.class) {
+            return (rs, index) -> {
+                long value = rs.getLong(index);
+                return rs.wasNull() ? null : value;
+            };
+        } else if (componentType == Integer.class) {
+            return (rs, index) -> {
+                int value = rs.getInt(index);
+                return rs.wasNull() ? null : value;
+            };
+        } else if (componentType == String.class) {
+            return ResultSet::getString;
+        } else if (componentType == BigDecimal.class) {
+            return ResultSet::getBigDecimal;
+        } else if (componentType == LocalDate.class) {
+            return (rs, index) -> rs.getObject(index, LocalDate.class);
+        } else if (Point2D.class.isAssignableFrom(componentType)) {
+            return (rs, index) -> GeometryCodec.decodePoint(rs.getBytes(index));
+        }
+        return (rs, index) -> rs.getObject(index, componentType);
+    }
+}
@@ -0,0 +1,74 @@
+package data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+LRU cache of prepared statements that belongs to a single pooled connection.
+Statements are keyed by their SQL text and whether they return generated keys, and stay open across
+transactions so that the server only parses each query once per connection.
+Statements handed out by this cache must not be closed by the caller, but their result sets must be.
+ */
+class StatementCache {
+    private final Connection connection;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final Map<Key, PreparedStatement> statements;
+
+    StatementCache(Connection connection, int capacity, LongAdder hits, LongAdder misses) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+        Key key = new Key(sql, returnGeneratedKeys);
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            hits.increment();
+            return stmt;
+        }
+        misses.increment();
+        stmt = returnGeneratedKeys
+                ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql);
+        statements.put(key, stmt);
+        return stmt;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // the statement is being dropped anyway
+        }
+    }
+
+    private record Key(String sql, boolean returnGeneratedKeys) {}
+}
@@ -0,0 +1,8 @@
+package data;
+
+/*
+A tenant's review comment together with the listing it was written about.
+noun_phrases holds the cached noun phrases of the comment, one per line, or null if the comment still has to be
+processed. comment is only read when it has to be processed
+ */
+public record TenantComment(Long review_id, Long listing_id, String comment, String noun_phrases) {}
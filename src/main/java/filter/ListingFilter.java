@@ -15,18 +15,25 @@ public class ListingFilter {
 
     // additional fields
     private List<String> listingTypes; // setting this overrides the listing type in the listing object
-    private BigDecimal searchRadius; // setting this searches the radius around the longitude and latitude in the listing object
+    private BigDecimal searchRadius; // in km, setting this searches the radius around the longitude and latitude in the listing object
     private BigDecimal minPricePerNight; // setting this overrides the price per night in the availability object
     private BigDecimal maxPricePerNight; // setting this overrides the price per night in the availability object
     private LocalDate startDateRange; // setting this overrides the start date in the availability object
     private LocalDate endDateRange; // setting this overrides the end date in the availability object
+    private LocalDate checkInDate; // setting this with checkOutDate only returns listings that can be booked for the stay
+    private LocalDate checkOutDate;
     private boolean groupByPriceAscend = false;
     private boolean groupByPriceDescend = false;
+    private Integer pageSize; // setting this returns at most this many listings per search
+    private String continuationToken; // token from the previous page, to get the next page of the same search
+    private Integer nearest; // setting this returns only this many listings, the ones nearest to the location in the listing object
+    private List<Long> candidateListingIds; // set by the service to only look at these listings, found by its in-memory indexes
 
     public ListingFilter(Listing listing, Availability availability, List<String> amenities,
                          List<String> listingTypes, BigDecimal searchRadius, BigDecimal minPricePerNight,
                          BigDecimal maxPricePerNight, LocalDate startDateRange, LocalDate endDateRange,
-                         boolean groupByPriceAscend, boolean groupByPriceDescend) {
+                         LocalDate checkInDate, LocalDate checkOutDate,
+                         boolean groupByPriceAscend, boolean groupByPriceDescend, Integer pageSize, String continuationToken, Integer nearest) {
         this.listing = listing;
         this.availability = availability;
         this.amenities = amenities;
@@ -36,8 +43,13 @@ public class ListingFilter {
         this.maxPricePerNight = maxPricePerNight;
         this.startDateRange = startDateRange;
         this.endDateRange = endDateRange;
+        this.checkInDate = checkInDate;
+        this.checkOutDate = checkOutDate;
         this.groupByPriceAscend = groupByPriceAscend;
         this.groupByPriceDescend = groupByPriceDescend;
+        this.pageSize = pageSize;
+        this.continuationToken = continuationToken;
+        this.nearest = nearest;
     }
 
     public Listing listing() {
@@ -76,6 +88,14 @@ public class ListingFilter {
         return endDateRange;
     }
 
+    public LocalDate checkInDate() {
+        return checkInDate;
+    }
+
+    public LocalDate checkOutDate() {
+        return checkOutDate;
+    }
+
     public boolean groupByPriceAscend() {
         return groupByPriceAscend;
     }
@@ -84,6 +104,36 @@ public class ListingFilter {
         return groupByPriceDescend;
     }
 
+    public Integer pageSize() {
+        return pageSize;
+    }
+
+    public String continuationToken() {
+        return continuationToken;
+    }
+
+    // the search radius in the unit ST_Distance_Sphere uses
+    public BigDecimal searchRadiusMeters() {
+        // convert km to m since ST_Distance_Sphere returns distance in m
+        return searchRadius.multiply(BigDecimal.valueOf(1000));
+    }
+
+    public List<Long> candidateListingIds() {
+        return candidateListingIds;
+    }
+
+    public void updateCandidateListingIds(List<Long> candidateListingIds) {
+        this.candidateListingIds = candidateListingIds;
+    }
+
+    public Integer nearest() {
+        return nearest;
+    }
+
+    public void updateContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
     public void updateListing(Listing listing) {
         this.listing = listing;
     }
@@ -101,11 +151,38 @@ public class ListingFilter {
         private BigDecimal maxPricePerNight;
         private LocalDate startDateRange;
         private LocalDate endDateRange;
+        private LocalDate checkInDate;
+        private LocalDate checkOutDate;
 
         private boolean groupByPriceAscend = false;
 
         private boolean groupByPriceDescend = false;
 
+        private Integer pageSize;
+        private String continuationToken;
+        private Integer nearest;
+
+        public Builder() {
+        }
+
+        // starts from the search criteria of filter, without its continuation token and nearest count
+        public Builder(ListingFilter filter) {
+            this.listing = filter.listing;
+            this.availability = filter.availability;
+            this.amenities = filter.amenities;
+            this.listingTypes = filter.listingTypes;
+            this.searchRadius = filter.searchRadius;
+            this.minPricePerNight = filter.minPricePerNight;
+            this.maxPricePerNight = filter.maxPricePerNight;
+            this.startDateRange = filter.startDateRange;
+            this.endDateRange = filter.endDateRange;
+            this.checkInDate = filter.checkInDate;
+            this.checkOutDate = filter.checkOutDate;
+            this.groupByPriceAscend = filter.groupByPriceAscend;
+            this.groupByPriceDescend = filter.groupByPriceDescend;
+            this.pageSize = filter.pageSize;
+        }
+
         public Builder withListing(Listing listing) {
             this.listing = listing;
             return this;
@@ -133,6 +210,12 @@ public class ListingFilter {
             return this;
         }
 
+        // the same as withSearchRadius, in the unit of searchRadiusMeters
+        public Builder withSearchRadiusMeters(BigDecimal searchRadiusMeters) {
+            this.searchRadius = searchRadiusMeters.divide(BigDecimal.valueOf(1000));
+            return this;
+        }
+
         // setting this overrides the price per night in the availability object
         public Builder withMinPricePerNight(BigDecimal minPricePerNight) {
             this.minPricePerNight = minPricePerNight;
@@ -155,6 +238,14 @@ public class ListingFilter {
             return this;
         }
 
+        // only listings that can be booked for every night from checkInDate up to, but not including, checkOutDate,
+        // which takes one availability holding all of those nights
+        public Builder withStay(LocalDate checkInDate, LocalDate checkOutDate) {
+            this.checkInDate = checkInDate;
+            this.checkOutDate = checkOutDate;
+            return this;
+        }
+
         public Builder withGroupByPriceAscend(boolean groupByPriceAscend) {
             this.groupByPriceAscend = groupByPriceAscend;
             return this;
@@ -165,10 +256,46 @@ public class ListingFilter {
             return this;
         }
 
+        public Builder withPageSize(Integer pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        // the nextContinuationToken of the previous ListingPage
+        public Builder withContinuationToken(String continuationToken) {
+            this.continuationToken = continuationToken;
+            return this;
+        }
+
+        /*
+        Finds the k listings nearest to the location (or address) in the listing object that match the rest of the
+        filter, nearest first. The search radius, if set, is the farthest a listing may be. The result is one page of
+        at most k listings sorted by distance, so it can't be sorted by price or continued with a continuation token
+        */
+        public Builder withNearest(int k) {
+            this.nearest = k;
+            return this;
+        }
+
         public ListingFilter build() {
+            if (pageSize != null && pageSize < 1) {
+                throw new IllegalArgumentException("Page size must be at least 1");
+            }
+            if ((checkInDate == null) != (checkOutDate == null)) {
+                throw new IllegalArgumentException("A stay needs both a check-in and a check-out date");
+            }
+            if (checkInDate != null && !checkInDate.isBefore(checkOutDate)) {
+                throw new IllegalArgumentException("Check-in date must be before check-out date");
+            }
+            if (nearest != null && nearest < 1) {
+                throw new IllegalArgumentException("The number of nearest listings must be at least 1");
+            }
+            if (nearest != null && (groupByPriceAscend || groupByPriceDescend || continuationToken != null)) {
+                throw new IllegalArgumentException("Nearest listings are sorted by distance in a single page");
+            }
             return new ListingFilter(listing, availability, amenities, listingTypes, searchRadius,
-                    minPricePerNight, maxPricePerNight, startDateRange, endDateRange,
-                    groupByPriceAscend, groupByPriceDescend);
+                    minPricePerNight, maxPricePerNight, startDateRange, endDateRange, checkInDate, checkOutDate,
+                    groupByPriceAscend, groupByPriceDescend, pageSize, continuationToken, nearest);
         }
     }
 }
@@ -0,0 +1,14 @@
+package filter;
+
+import domain.Listing;
+
+import java.util.List;
+
+// One page of a listing search. Pass nextContinuationToken to ListingFilter.Builder.withContinuationToken
+// to get the next page; it is null on the last page
+public record ListingPage(List<Listing> listings, String nextContinuationToken) {
+
+    public boolean hasNextPage() {
+        return nextContinuationToken != null;
+    }
+}
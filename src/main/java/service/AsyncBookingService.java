@@ -0,0 +1,132 @@
+package service;
+
+import domain.*;
+
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+// Non-blocking counterpart of BookingService. Every call runs the blocking method, in its own transaction, on the executor
+public class AsyncBookingService extends AsyncService {
+    private final BookingService bookingService;
+
+    public AsyncBookingService(BookingService bookingService, Executor executor) {
+        super(executor);
+        this.bookingService = bookingService;
+    }
+
+    public CompletableFuture<Long> addBooking(Booking booking) {
+        return supply(() -> bookingService.addBooking(booking));
+    }
+
+    public CompletableFuture<Void> hostCancelBooking(Long booking_id, Long host_sin, LocalDate currentDate) {
+        return run(() -> bookingService.hostCancelBooking(booking_id, host_sin, currentDate));
+    }
+
+    public CompletableFuture<Void> tenantCancelBooking(Long booking_id, Long tenant_sin, LocalDate currentDate) {
+        return run(() -> bookingService.tenantCancelBooking(booking_id, tenant_sin, currentDate));
+    }
+
+    public CompletableFuture<Boolean> isTenantOfBooking(Long booking_id, Long tenant_sin) {
+        return supply(() -> bookingService.isTenantOfBooking(booking_id, tenant_sin));
+    }
+
+    public CompletableFuture<Boolean> isHostOfBooking(Long booking_id, Long host_sin) {
+        return supply(() -> bookingService.isHostOfBooking(booking_id, host_sin));
+    }
+
+    public CompletableFuture<Booking> getBooking(Long booking_id) {
+        return supply(() -> bookingService.getBooking(booking_id));
+    }
+
+    public CompletableFuture<List<Booking>> getBookings() {
+        return supply(() -> bookingService.getBookings());
+    }
+
+    public CompletableFuture<Void> forEachBooking(Consumer<? super Booking> consumer) {
+        return run(() -> bookingService.forEachBooking(consumer));
+    }
+
+    public CompletableFuture<List<Booking>> getBookingsOfHost(Long host_sin) {
+        return supply(() -> bookingService.getBookingsOfHost(host_sin));
+    }
+
+    public CompletableFuture<List<Booking>> getBookingsOfUser(Long user_sin) {
+        return supply(() -> bookingService.getBookingsOfUser(user_sin));
+    }
+
+    public CompletableFuture<List<Booking>> getBookingsOfListing(Long listing_id) {
+        return supply(() -> bookingService.getBookingsOfListing(listing_id));
+    }
+
+    public CompletableFuture<Void> tenantRateListing(Long tenant_id, Integer rating, Long booking_id, LocalDate currentDate) {
+        return run(() -> bookingService.tenantRateListing(tenant_id, rating, booking_id, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteTenantRateListing(Long tenant_id, Long booking_id) {
+        return run(() -> bookingService.deleteTenantRateListing(tenant_id, booking_id));
+    }
+
+    public CompletableFuture<Void> tenantRateHost(Long tenant_id, Integer rating, Long booking_id, LocalDate currentDate) {
+        return run(() -> bookingService.tenantRateHost(tenant_id, rating, booking_id, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteTenantRateHost(Long tenant_id, Long booking_id) {
+        return run(() -> bookingService.deleteTenantRateHost(tenant_id, booking_id));
+    }
+
+    public CompletableFuture<Void> addCommentFromTenant(Long tenant_id, String comment, Long booking_id, LocalDate currentDate) {
+        return run(() -> bookingService.addCommentFromTenant(tenant_id, comment, booking_id, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteCommentFromTenant(Long tenant_id, Long booking_id) {
+        return run(() -> bookingService.deleteCommentFromTenant(tenant_id, booking_id));
+    }
+
+    public CompletableFuture<Void> hostRateTenant(Long host_id, Integer rating, Long booking_id, LocalDate currentDate) {
+        return run(() -> bookingService.hostRateTenant(host_id, rating, booking_id, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteHostRateTenant(Long host_id, Long booking_id) {
+        return run(() -> bookingService.deleteHostRateTenant(host_id, booking_id));
+    }
+
+    public CompletableFuture<Void> addCommentFromHost(Long host_id, String comment, Long booking_id, LocalDate currentDate) {
+        return run(() -> bookingService.addCommentFromHost(host_id, comment, booking_id, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteCommentFromHost(Long host_id, Long booking_id) {
+        return run(() -> bookingService.deleteCommentFromHost(host_id, booking_id));
+    }
+
+    public CompletableFuture<List<Review>> getReviews() {
+        return supply(() -> bookingService.getReviews());
+    }
+
+    public CompletableFuture<Void> forEachReview(Consumer<? super Review> consumer) {
+        return run(() -> bookingService.forEachReview(consumer));
+    }
+
+    public CompletableFuture<List<Review>> getReviewsOfListing(Long listing_id) {
+        return supply(() -> bookingService.getReviewsOfListing(listing_id));
+    }
+
+    public CompletableFuture<List<CancelledBooking>> getCancelledBookings() {
+        return supply(() -> bookingService.getCancelledBookings());
+    }
+
+    public CompletableFuture<List<Review>> getReviewsAsTenant(Long tenantId) {
+        return supply(() -> bookingService.getReviewsAsTenant(tenantId));
+    }
+
+    public CompletableFuture<List<Review>> getReviewsAsHost(Long hostId) {
+        return supply(() -> bookingService.getReviewsAsHost(hostId));
+    }
+
+    public CompletableFuture<Date> getCurrDate() {
+        return supply(() -> bookingService.getCurrDate());
+    }
+}
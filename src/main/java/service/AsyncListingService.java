@@ -0,0 +1,136 @@
+package service;
+
+import domain.Amenity;
+import domain.Availability;
+import domain.Listing;
+import filter.ListingFilter;
+import filter.ListingPage;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+// Non-blocking counterpart of ListingService. Every call runs the blocking method, in its own transaction, on the executor
+public class AsyncListingService extends AsyncService {
+    private final ListingService listingService;
+
+    public AsyncListingService(ListingService listingService, Executor executor) {
+        super(executor);
+        this.listingService = listingService;
+    }
+
+    public CompletableFuture<Long> addListing(Listing listing) {
+        return supply(() -> listingService.addListing(listing));
+    }
+
+    public CompletableFuture<List<Long>> addListings(List<Listing> listings) {
+        return supply(() -> listingService.addListings(listings));
+    }
+
+    public CompletableFuture<Void> deleteListing(Long listingId, Long userSin, LocalDate currentDate) {
+        return run(() -> listingService.deleteListing(listingId, userSin, currentDate));
+    }
+
+    public CompletableFuture<Listing> getListing(Long listingId) {
+        return supply(() -> listingService.getListing(listingId));
+    }
+
+    public CompletableFuture<Boolean> doesListingExist(Long listingId) {
+        return supply(() -> listingService.doesListingExist(listingId));
+    }
+
+    public CompletableFuture<Boolean> doesListingHaveFutureBookings(Long listingId, LocalDate currentDate) {
+        return supply(() -> listingService.doesListingHaveFutureBookings(listingId, currentDate));
+    }
+
+    public CompletableFuture<List<Listing>> getListings() {
+        return supply(() -> listingService.getListings());
+    }
+
+    public CompletableFuture<Void> forEachListing(Consumer<? super Listing> consumer) {
+        return run(() -> listingService.forEachListing(consumer));
+    }
+
+    public CompletableFuture<List<Listing>> getListingsOfUser(Long sin) {
+        return supply(() -> listingService.getListingsOfUser(sin));
+    }
+
+    public CompletableFuture<Void> addAmenityToListing(Long listingID, Long userSin, String amenity) {
+        return run(() -> listingService.addAmenityToListing(listingID, userSin, amenity));
+    }
+
+    public CompletableFuture<Void> addAmenitiesToListing(Long listingID, Long userSin, List<String> amenities) {
+        return run(() -> listingService.addAmenitiesToListing(listingID, userSin, amenities));
+    }
+
+    public CompletableFuture<Void> removeAmenityFromListing(Long listingID, Long userSin, String amenity) {
+        return run(() -> listingService.removeAmenityFromListing(listingID, userSin, amenity));
+    }
+
+    public CompletableFuture<Float> getListingPricePerNight(Long listingId) {
+        return supply(() -> listingService.getListingPricePerNight(listingId));
+    }
+
+    public CompletableFuture<Boolean> doesCityExists(String city) {
+        return supply(() -> listingService.doesCityExists(city));
+    }
+
+    public CompletableFuture<String> getRecommendedPricePerNight(Long listingId) {
+        return supply(() -> listingService.getRecommendedPricePerNight(listingId));
+    }
+
+    public CompletableFuture<Void> changeListingAvailabilityPrice(Long listingId, Long userSin, LocalDate start_date, LocalDate end_date, BigDecimal newPrice) {
+        return run(() -> listingService.changeListingAvailabilityPrice(listingId, userSin, start_date, end_date, newPrice));
+    }
+
+    public CompletableFuture<Void> addAvailability(Availability availability, Long userSin, LocalDate currentDate) {
+        return run(() -> listingService.addAvailability(availability, userSin, currentDate));
+    }
+
+    public CompletableFuture<List<Long>> addAvailabilities(Long listingId, Long userSin, List<Availability> availabilities, LocalDate currentDate) {
+        return supply(() -> listingService.addAvailabilities(listingId, userSin, availabilities, currentDate));
+    }
+
+    public CompletableFuture<Void> deleteAvailability(Long listingId, Long userSin, LocalDate startDate, LocalDate endDate) {
+        return run(() -> listingService.deleteAvailability(listingId, userSin, startDate, endDate));
+    }
+
+    public CompletableFuture<Boolean> doesAvailabilityExist(Long listingId, LocalDate startDate, LocalDate endDate) {
+        return supply(() -> listingService.doesAvailabilityExist(listingId, startDate, endDate));
+    }
+
+    public CompletableFuture<Boolean> isHostOfListing(Long sin, Long listingId) {
+        return supply(() -> listingService.isHostOfListing(sin, listingId));
+    }
+
+    public CompletableFuture<Void> changeListingAvailability(Long listingId, Long userSin, LocalDate prevStartDate, LocalDate prevEndDate, LocalDate newStartDate, LocalDate newEndDate) {
+        return run(() -> listingService.changeListingAvailability(listingId, userSin, prevStartDate, prevEndDate, newStartDate, newEndDate));
+    }
+
+    public CompletableFuture<List<Availability>> getAvailabilities() {
+        return supply(() -> listingService.getAvailabilities());
+    }
+
+    public CompletableFuture<Void> forEachAvailability(Consumer<? super Availability> consumer) {
+        return run(() -> listingService.forEachAvailability(consumer));
+    }
+
+    public CompletableFuture<List<Availability>> getAvailabilitiesOfListing(Long listing_id, LocalDate currentDate) {
+        return supply(() -> listingService.getAvailabilitiesOfListing(listing_id, currentDate));
+    }
+
+    public CompletableFuture<List<Amenity>> getAllAllowedAmenities() {
+        return supply(() -> listingService.getAllAllowedAmenities());
+    }
+
+    public CompletableFuture<List<String>> getAmenitiesOfListing(Long listing_id) {
+        return supply(() -> listingService.getAmenitiesOfListing(listing_id));
+    }
+
+    public CompletableFuture<ListingPage> searchListingsByFilter(ListingFilter filter) {
+        return supply(() -> listingService.searchListingsByFilter(filter));
+    }
+}
@@ -0,0 +1,81 @@
+package service;
+
+import data.ListingLocationCounts;
+import domain.Listing;
+import domain.User;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Non-blocking counterpart of ReportService. Every call runs the blocking method, in its own transaction, on the executor
+public class AsyncReportService extends AsyncService {
+    private final ReportService reportService;
+
+    public AsyncReportService(ReportService reportService, Executor executor) {
+        super(executor);
+        this.reportService = reportService;
+    }
+
+    public CompletableFuture<Map<String, Long>> getNumberOfBookingsInDateRangePerCity(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfBookingsInDateRangePerCity(startDate, endDate));
+    }
+
+    public CompletableFuture<Map<String, Map<String, Long>>> getNumberOfBookingsInDateRangePerPostalCodePerCity(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfBookingsInDateRangePerPostalCodePerCity(startDate, endDate));
+    }
+
+    public CompletableFuture<ListingLocationCounts> getListingLocationCounts() {
+        return supply(() -> reportService.getListingLocationCounts());
+    }
+
+    public CompletableFuture<Map<String, Long>> getNumberOfListingsPerCountry(List<Listing> allListings) {
+        return supply(() -> reportService.getNumberOfListingsPerCountry(allListings));
+    }
+
+    public CompletableFuture<Map<String, Map<String, Long>>> getNumberOfListingsPerCityPerCountry(List<Listing> allListings) {
+        return supply(() -> reportService.getNumberOfListingsPerCityPerCountry(allListings));
+    }
+
+    public CompletableFuture<Map<String, Map<String, Map<String, Long>>>> getNumberOfListingsPerPostalCodePerCityPerCountry(List<Listing> allListings) {
+        return supply(() -> reportService.getNumberOfListingsPerPostalCodePerCityPerCountry(allListings));
+    }
+
+    public CompletableFuture<Map<User, Map<String, Long>>> getNumberOfListingsPerCountryPerHost(List<Listing> allListings) {
+        return supply(() -> reportService.getNumberOfListingsPerCountryPerHost(allListings));
+    }
+
+    public CompletableFuture<Map<User, Map<String, Long>>> getNumberOfListingsPerCountryPerHost() {
+        return supply(() -> reportService.getNumberOfListingsPerCountryPerHost());
+    }
+
+    public CompletableFuture<Map<User, Map<String, Map<String, Long>>>> getNumberOfListingsPerCityPerCountryPerHost(List<Listing> allListings) {
+        return supply(() -> reportService.getNumberOfListingsPerCityPerCountryPerHost(allListings));
+    }
+
+    public CompletableFuture<Map<User, Map<String, Map<String, Long>>>> getNumberOfListingsPerCityPerCountryPerHost() {
+        return supply(() -> reportService.getNumberOfListingsPerCityPerCountryPerHost());
+    }
+
+    public CompletableFuture<Map<User, Long>> getNumberOfBookingsInDateRangePerRenter(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfBookingsInDateRangePerRenter(startDate, endDate));
+    }
+
+    public CompletableFuture<Map<String, Map<User, Long>>> getNumberOfBookingsInDateRangePerRenterPerCity(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfBookingsInDateRangePerRenterPerCity(startDate, endDate));
+    }
+
+    public CompletableFuture<Map<User, Long>> getNumberOfCancelledBookingsInDateRangePerRenter(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfCancelledBookingsInDateRangePerRenter(startDate, endDate));
+    }
+
+    public CompletableFuture<Map<User, Long>> getNumberOfCancelledBookingsInDateRangePerHost(LocalDate startDate, LocalDate endDate) {
+        return supply(() -> reportService.getNumberOfCancelledBookingsInDateRangePerHost(startDate, endDate));
+    }
+
+    public CompletableFuture<Map<Listing, Map<String, Long>>> getMostPopularNounPhrasesPerListing(List<Listing> allListings) {
+        return supply(() -> reportService.getMostPopularNounPhrasesPerListing(allListings));
+    }
+}
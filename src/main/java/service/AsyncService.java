@@ -0,0 +1,49 @@
+package service;
+
+import exception.ServiceException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/*
+Base class of the asynchronous service wrappers. Each call runs the blocking service method on the executor,
+and a ServiceException completes the returned future exceptionally with that exception as the cause.
+ */
+public abstract class AsyncService {
+    private final Executor executor;
+
+    protected AsyncService(Executor executor) {
+        this.executor = executor;
+    }
+
+    @FunctionalInterface
+    protected interface ServiceCall<T> {
+        T call() throws ServiceException;
+    }
+
+    @FunctionalInterface
+    protected interface ServiceAction {
+        void run() throws ServiceException;
+    }
+
+    protected <T> CompletableFuture<T> supply(ServiceCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (ServiceException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    protected CompletableFuture<Void> run(ServiceAction action) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                action.run();
+            } catch (ServiceException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,37 @@
+package service;
+
+import domain.User;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Non-blocking counterpart of UserService. Every call runs the blocking method, in its own transaction, on the executor
+public class AsyncUserService extends AsyncService {
+    private final UserService userService;
+
+    public AsyncUserService(UserService userService, Executor executor) {
+        super(executor);
+        this.userService = userService;
+    }
+
+    public CompletableFuture<Long> addUser(User user) {
+        return supply(() -> userService.addUser(user));
+    }
+
+    public CompletableFuture<List<Long>> addUsers(List<User> users) {
+        return supply(() -> userService.addUsers(users));
+    }
+
+    public CompletableFuture<Void> deleteUser(Long sin) {
+        return run(() -> userService.deleteUser(sin));
+    }
+
+    public CompletableFuture<List<User>> getUsers() {
+        return supply(() -> userService.getUsers());
+    }
+
+    public CompletableFuture<Boolean> userExists(Long sin) {
+        return supply(() -> userService.userExists(sin));
+    }
+}
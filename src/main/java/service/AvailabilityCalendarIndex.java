@@ -0,0 +1,177 @@
+package service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+In-memory calendar of the stays each listing can be booked for, for answering stay searches without the database.
+A booking has to fit inside a single availability, so every listing has two bitmaps over a rolling horizon of
+horizonDays nights from firstNight: bit i of the free bitmap is set if the night of firstNight + i is covered by one of
+its availabilities, and bit i of the starts bitmap if one of its availabilities starts that night. A stay can be booked
+if all of its nights are free and no availability starts after its first night, which is a test of the stay's bits a
+word at a time.
+Writes are serialized and replace the bitmaps of the listing, so searches can read them without locking.
+The index only sees the changes made through the services it belongs to, which load the availabilities other
+processes change before they trust the index, and the database still checks the stay of the candidates it returns.
+ */
+public class AvailabilityCalendarIndex {
+    private final int horizonDays;
+    private final int words;
+    private final Map<Long, Calendar> calendars = new ConcurrentHashMap<>();
+    private volatile LocalDate firstNight;
+
+    public AvailabilityCalendarIndex() {
+        this(2 * 366);
+    }
+
+    public AvailabilityCalendarIndex(int horizonDays) {
+        if (horizonDays < 1) {
+            throw new IllegalArgumentException("Invalid horizon: " + horizonDays);
+        }
+        this.horizonDays = horizonDays;
+        this.words = (horizonDays + 63) / 64;
+        this.firstNight = LocalDate.now();
+    }
+
+    // the free nights and the nights an availability starts on, of one listing
+    private record Calendar(long[] free, long[] starts) {
+        Calendar copy() {
+            return new Calendar(free.clone(), starts.clone());
+        }
+    }
+
+    // empties the calendar and moves its horizon to start at firstNight
+    public synchronized void reset(LocalDate firstNight) {
+        calendars.clear();
+        this.firstNight = firstNight;
+    }
+
+    // an availability from start up to, but not including, end. Nights outside the horizon are ignored
+    public synchronized void addAvailability(long listingId, LocalDate start, LocalDate end) {
+        Calendar calendar = copyOf(listingId);
+        int from = night(start);
+        int to = night(end);
+        setBits(calendar.free(), from, to, true);
+        if (from < to) {
+            setBits(calendar.starts(), from, to, false); // availabilities never overlap, so none starts inside this one
+            setBits(calendar.starts(), from, from + 1, true);
+        }
+        calendars.put(listingId, calendar);
+    }
+
+    public synchronized void removeAvailability(long listingId, LocalDate start, LocalDate end) {
+        Calendar calendar = copyOf(listingId);
+        setBits(calendar.free(), night(start), night(end), false);
+        setBits(calendar.starts(), night(start), night(end), false);
+        calendars.put(listingId, calendar);
+    }
+
+    /*
+    A booking of the nights from checkIn up to, but not including, checkOut, taken out of the availability that
+    contained them. What is left of that availability after the stay starts on checkOut
+     */
+    public synchronized void bookStay(long listingId, LocalDate checkIn, LocalDate checkOut) {
+        Calendar calendar = copyOf(listingId);
+        int to = night(checkOut);
+        setBits(calendar.free(), night(checkIn), to, false);
+        setBits(calendar.starts(), night(checkIn), to, false);
+        if (to < horizonDays && (calendar.free()[to >>> 6] & (1L << to)) != 0) {
+            setBits(calendar.starts(), to, to + 1, true);
+        }
+        calendars.put(listingId, calendar);
+    }
+
+    public synchronized void remove(long listingId) {
+        calendars.remove(listingId);
+    }
+
+    public int size() {
+        return calendars.size();
+    }
+
+    // true if the stay from checkIn to checkOut lies inside the horizon, so that the calendar can answer for it
+    public boolean covers(LocalDate checkIn, LocalDate checkOut) {
+        LocalDate first = firstNight;
+        return !checkIn.isBefore(first) && checkIn.isBefore(checkOut)
+                && checkOut.toEpochDay() - first.toEpochDay() <= horizonDays;
+    }
+
+    // true if one availability of the listing holds every night from checkIn up to, but not including, checkOut. The stay must be covered
+    public boolean isAvailable(long listingId, LocalDate checkIn, LocalDate checkOut) {
+        checkCovered(checkIn, checkOut);
+        Calendar calendar = calendars.get(listingId);
+        if (calendar == null) {
+            return false;
+        }
+        long first = firstNight.toEpochDay();
+        return isAvailable(calendar, (int) (checkIn.toEpochDay() - first), (int) (checkOut.toEpochDay() - first));
+    }
+
+    // ids of every listing that can be booked for the whole stay, in ascending order. The stay must be covered
+    public List<Long> availableListings(LocalDate checkIn, LocalDate checkOut) {
+        checkCovered(checkIn, checkOut);
+        long first = firstNight.toEpochDay();
+        int from = (int) (checkIn.toEpochDay() - first);
+        int to = (int) (checkOut.toEpochDay() - first);
+        List<Long> available = new ArrayList<>();
+        for (Map.Entry<Long, Calendar> entry : calendars.entrySet()) {
+            if (isAvailable(entry.getValue(), from, to)) {
+                available.add(entry.getKey());
+            }
+        }
+        available.sort(null);
+        return available;
+    }
+
+    private void checkCovered(LocalDate checkIn, LocalDate checkOut) {
+        if (!covers(checkIn, checkOut)) {
+            throw new IllegalArgumentException("The stay from " + checkIn + " to " + checkOut + " is outside the calendar");
+        }
+    }
+
+    private static boolean isAvailable(Calendar calendar, int from, int to) {
+        for (int word = from >>> 6; word <= (to - 1) >>> 6; word++) {
+            long mask = rangeMask(word, from, to);
+            if ((calendar.free()[word] & mask) != mask) {
+                return false;
+            }
+            // an availability starting on the first night is the one the stay fits in
+            if (from + 1 < to && (calendar.starts()[word] & rangeMask(word, from + 1, to)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // a copy of the listing's calendar to change, or an empty one if the listing has none yet
+    private Calendar copyOf(long listingId) {
+        Calendar calendar = calendars.get(listingId);
+        return calendar == null ? new Calendar(new long[words], new long[words]) : calendar.copy();
+    }
+
+    // the index of the night in the horizon, clipped to [0, horizonDays]
+    private int night(LocalDate date) {
+        return (int) Math.max(0, Math.min(horizonDays, date.toEpochDay() - firstNight.toEpochDay()));
+    }
+
+    private static void setBits(long[] bits, int from, int to, boolean set) {
+        for (int word = from >>> 6; from < to && word <= (to - 1) >>> 6; word++) {
+            long mask = rangeMask(word, from, to);
+            bits[word] = set ? bits[word] | mask : bits[word] & ~mask;
+        }
+    }
+
+    // the bits of word that fall in [from, to)
+    private static long rangeMask(int word, int from, int to) {
+        int low = Math.max(from - (word << 6), 0);
+        int high = Math.min(to - (word << 6), 64);
+        if (low >= high) {
+            return 0;
+        }
+        long mask = -1L << low;
+        return high == 64 ? mask : mask & ((1L << high) - 1);
+    }
+}
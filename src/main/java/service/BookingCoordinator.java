@@ -0,0 +1,273 @@
+package service;
+
+import domain.Booking;
+import exception.ServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Runs bookings and cancellations one at a time per listing, in the order they were submitted.
+Requests are routed by listing id to a fixed number of stripes, each with a bounded queue and a single worker
+thread, so requests for the same listing never contend on its availability rows while different listings still
+book in parallel. When a stripe's queue is full, submitting waits up to the offer timeout and then fails,
+pushing back on the caller instead of piling up more transactions than the database can take.
+The blocking methods wait at most the await timeout for the result. Requests still queued at shutdown fail.
+ */
+public class BookingCoordinator {
+    private static final Logger logger = LogManager.getLogger(BookingCoordinator.class);
+
+    private final BookingService bookingService;
+    private final Stripe[] stripes;
+    private final long offerTimeoutMillis;
+    private final long awaitTimeoutMillis;
+    private volatile boolean shutdown = false;
+
+    public BookingCoordinator(BookingService bookingService) {
+        this(bookingService, Runtime.getRuntime().availableProcessors(), 256, 1000);
+    }
+
+    public BookingCoordinator(BookingService bookingService, int stripeCount, int queueCapacity, long offerTimeoutMillis) {
+        this(bookingService, stripeCount, queueCapacity, offerTimeoutMillis, 30_000);
+    }
+
+    public BookingCoordinator(BookingService bookingService, int stripeCount, int queueCapacity, long offerTimeoutMillis,
+                              long awaitTimeoutMillis) {
+        if (stripeCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid booking coordinator size, stripes: %d, queue capacity: %d", stripeCount, queueCapacity));
+        }
+        this.bookingService = bookingService;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.awaitTimeoutMillis = awaitTimeoutMillis;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(i, queueCapacity);
+        }
+    }
+
+    public CompletableFuture<Long> submitBooking(Booking booking) {
+        return submit(booking.listings_listing_id(), () -> bookingService.addBooking(booking));
+    }
+
+    public CompletableFuture<Void> submitHostCancelBooking(Long booking_id, Long host_sin, LocalDate currentDate) {
+        return submitCancellation(booking_id, () -> {
+            bookingService.hostCancelBooking(booking_id, host_sin, currentDate);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> submitTenantCancelBooking(Long booking_id, Long tenant_sin, LocalDate currentDate) {
+        return submitCancellation(booking_id, () -> {
+            bookingService.tenantCancelBooking(booking_id, tenant_sin, currentDate);
+            return null;
+        });
+    }
+
+    // Blocking versions of the submit methods, for callers that want the result right away
+    public Long addBooking(Booking booking) throws ServiceException {
+        return await(submitBooking(booking));
+    }
+
+    public void hostCancelBooking(Long booking_id, Long host_sin, LocalDate currentDate) throws ServiceException {
+        await(submitHostCancelBooking(booking_id, host_sin, currentDate));
+    }
+
+    public void tenantCancelBooking(Long booking_id, Long tenant_sin, LocalDate currentDate) throws ServiceException {
+        await(submitTenantCancelBooking(booking_id, tenant_sin, currentDate));
+    }
+
+    public List<StripeStats> getStats() {
+        List<StripeStats> stats = new ArrayList<>(stripes.length);
+        for (Stripe stripe : stripes) {
+            stats.add(stripe.stats());
+        }
+        return stats;
+    }
+
+    /*
+    Stops accepting requests and waits up to timeoutMillis for the queued ones to finish. Requests that did not get to
+    run by then fail, so that no caller waits on them forever
+     */
+    public void shutdown(long timeoutMillis) {
+        shutdown = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (Stripe stripe : stripes) {
+                // waits for room behind the queued requests, a full queue must not lose the poison pill
+                stripe.queue.offer(Stripe.POISON, Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }
+            for (Stripe stripe : stripes) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                stripe.worker.join(Math.max(remainingMillis, 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Stripe stripe : stripes) {
+            if (stripe.worker.isAlive()) {
+                logger.warn("Booking stripe {} shut down with {} requests still queued", stripe.index, stripe.queue.size());
+                stripe.worker.interrupt();
+            }
+            stripe.failQueued();
+        }
+    }
+
+    @FunctionalInterface
+    private interface BookingTask<T> {
+        T run() throws ServiceException;
+    }
+
+    private <T> CompletableFuture<T> submitCancellation(Long booking_id, BookingTask<T> task) {
+        Booking booking;
+        try {
+            booking = bookingService.getBooking(booking_id);
+        } catch (ServiceException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return submit(booking.listings_listing_id(), task);
+    }
+
+    private <T> CompletableFuture<T> submit(Long listing_id, BookingTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (shutdown) {
+            result.completeExceptionally(new ServiceException("Booking coordinator has been shut down"));
+            return result;
+        }
+        Stripe stripe = stripes[Math.floorMod(Long.hashCode(listing_id), stripes.length)];
+        long submittedAtNanos = System.nanoTime();
+        Request request = new Request(result, () -> {
+            long startedAtNanos = System.nanoTime();
+            try {
+                result.complete(task.run());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            } finally {
+                stripe.record(startedAtNanos - submittedAtNanos, System.nanoTime() - startedAtNanos);
+            }
+        });
+        try {
+            if (!stripe.queue.offer(request, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                stripe.rejected.increment();
+                result.completeExceptionally(new ServiceException(String.format(
+                        "Too many bookings in progress for listing with id, %d. Please try again later.", listing_id)));
+            } else {
+                stripe.submitted.increment();
+                // a shutdown that started while this was being queued may already have drained the queue
+                if (shutdown && stripe.queue.remove(request)) {
+                    request.fail();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(new ServiceException("Interrupted while submitting booking", e));
+        }
+        return result;
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws ServiceException {
+        try {
+            return future.get(awaitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ServiceException("Timed out waiting for booking. It may still be processed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException serviceException) {
+                throw serviceException;
+            }
+            throw new ServiceException("Unable to process booking", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while waiting for booking", e);
+        }
+    }
+
+    public record StripeStats(int stripe, int queuedRequests, long submittedRequests, long completedRequests,
+                              long rejectedRequests, double averageQueueWaitMillis, double averageLatencyMillis,
+                              double maxLatencyMillis) {}
+
+    // a queued booking or cancellation, with the future its caller waits on
+    private record Request(CompletableFuture<?> result, Runnable work) {
+        void fail() {
+            result.completeExceptionally(new ServiceException("Booking coordinator has been shut down"));
+        }
+    }
+
+    private static class Stripe {
+        private static final Request POISON = new Request(new CompletableFuture<>(), () -> {});
+
+        private final int index;
+        private final BlockingQueue<Request> queue;
+        private final Thread worker;
+
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder queueWaitNanos = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder(); // queue wait plus execution
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Stripe(int index, int queueCapacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.worker = new Thread(this::work, "booking-stripe-" + index);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Request request = queue.take();
+                    if (request == POISON) {
+                        return;
+                    }
+                    request.work().run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // fails every request left in the queue, including the ones queued behind the poison pill
+        void failQueued() {
+            List<Request> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            for (Request request : remaining) {
+                if (request != POISON) {
+                    request.fail();
+                }
+            }
+        }
+
+        void record(long waitNanos, long runNanos) {
+            completed.increment();
+            queueWaitNanos.add(waitNanos);
+            latencyNanos.add(waitNanos + runNanos);
+            maxLatencyNanos.accumulateAndGet(waitNanos + runNanos, Math::max);
+        }
+
+        StripeStats stats() {
+            long done = completed.sum();
+            return new StripeStats(
+                    index,
+                    queue.size(),
+                    submitted.sum(),
+                    done,
+                    rejected.sum(),
+                    done == 0 ? 0.0 : queueWaitNanos.sum() / (double) done / 1_000_000.0,
+                    done == 0 ? 0.0 : latencyNanos.sum() / (double) done / 1_000_000.0,
+                    maxLatencyNanos.get() / 1_000_000.0);
+        }
+    }
+}
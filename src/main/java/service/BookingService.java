@@ -15,156 +15,93 @@ import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class BookingService {
     private final Dao dao;
+    private final TransactionExecutor transactions;
+    private final AvailabilityCalendarIndex availabilityIndex; // null if there is no availability calendar to keep up to date
     private static final Logger logger = LogManager.getLogger(BookingService.class);
 
     public BookingService(Dao dao) {
+        this(dao, new TransactionExecutor(dao));
+    }
+
+    public BookingService(Dao dao, TransactionExecutor transactions) {
+        this(dao, transactions, null);
+    }
+
+    public BookingService(Dao dao, TransactionExecutor transactions, AvailabilityCalendarIndex availabilityIndex) {
         this.dao = dao;
+        this.transactions = transactions;
+        this.availabilityIndex = availabilityIndex;
     }
 
     // Note: bookings.amount() can be null when passed in. It will be automatically calculated if it is null.
     public Long addBooking(Booking booking) throws ServiceException {
-        try {
-            dao.startTransaction();
+        Long bookingId = transactions.inTransaction("BookingService.addBooking", String.format("Unable to insert booking."), () -> {
             // Standard check-in is 3 PM and checkout-out is 11 AM
             // checks for at least one day in between and booking.start_date() cannot be before EndDate
             if (!booking.start_date().isBefore(booking.end_date())) {
                 throw new ServiceException(String.format("start date must be before end date."));
             }
 
-            // check if booking exists for the given date range and listing
-            if (dao.bookingExists(booking.listings_listing_id(), booking.start_date(), booking.end_date())) {
-                throw new ServiceException(String.format("Booking already exists for the given date range."));
-            }
-
-            // Check if listing exists
-            if (!dao.listingIdExists(booking.listings_listing_id())) {
-                throw new ServiceException(String.format("listing with id, %d, does not exist.", booking.listings_listing_id()));
-            }
-
-            // check if booker exists
-            if (!dao.userExists(booking.tenant_sin())) {
-                throw new ServiceException(String.format("user with sin, %d, does not exist.", booking.tenant_sin()));
-            }
-
-            // check if booker is not host
-            if (dao.getListingById(booking.listings_listing_id()).users_sin().equals(booking.tenant_sin())) {
-                throw new ServiceException(String.format("Cannot book! User with sin, %d, is a host.", booking.tenant_sin()));
-            }
-
-            Availability affectedAvailability = null;
-            BigDecimal pricePerNight = null;
+            // the existence, host and availability checks, splitting the availability, and inserting the booking and
+            // its empty review all run in the add_booking procedure, in one round trip
             try {
-                affectedAvailability = dao.getAffectedAvailability(booking.listings_listing_id(), booking.start_date(), booking.end_date());
-                pricePerNight = affectedAvailability.price_per_night();
+                return dao.addBooking(new Booking(null, booking.start_date(), booking.end_date(), LocalDate.now(),
+                        null, booking.payment_method(), booking.card_number(), booking.tenant_sin(),
+                        booking.listings_listing_id()));
             } catch (DataAccessException e) {
-                throw new ServiceException(String.format("There is no availability for the given date range."), e);
-            }
-            dao.deleteAvailability(affectedAvailability.availability_id());
-            // Insert availabilities which are not affected by booking
-            // Case 1: Booking is in between affectedAvailability range
-            if (affectedAvailability.start_date().isBefore(booking.start_date()) && affectedAvailability.end_date().isAfter(booking.end_date())) {
-                dao.insertAvailability(new Availability(null, affectedAvailability.start_date(), booking.start_date(), pricePerNight, booking.listings_listing_id()));
-                dao.insertAvailability(new Availability(null, booking.end_date(), affectedAvailability.end_date(), pricePerNight, booking.listings_listing_id()));
-            }
-
-            // Case 2: Booking is in the first half of availability range
-            else if (affectedAvailability.start_date().isEqual(booking.start_date()) && affectedAvailability.end_date().isAfter(booking.end_date())) {
-                dao.insertAvailability(new Availability(null, booking.end_date(), affectedAvailability.end_date(), pricePerNight, booking.listings_listing_id()));
-            }
-
-            // Case 3: Booking is in last half of availability range
-            else if (affectedAvailability.start_date().isBefore(booking.start_date()) && affectedAvailability.end_date().isEqual(booking.end_date())) {
-                dao.insertAvailability(new Availability(null, affectedAvailability.start_date(), booking.start_date(), pricePerNight, booking.listings_listing_id()));
+                throw new ServiceException(e.getMessage(), e);
             }
-
-            // Case 4: Booking date range exactly matches to availability date range, so no availabilities to insert
-
-            // calculate booking cost
-            Listing listing = dao.getListingById(booking.listings_listing_id());
-            BigDecimal amount = pricePerNight.multiply(BigDecimal.valueOf(ChronoUnit.DAYS.between(booking.start_date(), booking.end_date())));
-
-            Booking bookingToInsert = new Booking(null, booking.start_date(), booking.end_date(), LocalDate.now(),
-                   amount, booking.payment_method(), booking.card_number(), booking.tenant_sin(), booking.listings_listing_id());
-
-            // Insert booking
-            Long bookingId = dao.insertBooking(bookingToInsert);
-
-            // Create Review
-
-            // insert review with all null values
-            Review review = new Review(null, null, null, null, null, null, bookingId);
-            dao.insertReview(review);
-            dao.commitTransaction();
-            return bookingId;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to insert booking."), e);
+        });
+        if (availabilityIndex != null) {
+            availabilityIndex.bookStay(booking.listings_listing_id(), booking.start_date(), booking.end_date());
         }
+        return bookingId;
     }
 
     public void hostCancelBooking(Long booking_id, Long host_sin, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        Availability released = transactions.inTransaction("BookingService.hostCancelBooking", String.format("Unable to cancel booking."), () -> {
             if (!dao.hostSinMatchesBookingId(host_sin, booking_id)) {
                 throw new ServiceException(String.format("Unable to cancel booking because host sin does not match. "));
             }
-            cancelBooking(booking_id, currentDate);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to cancel booking."), e);
-        }
+            return cancelBooking(booking_id, currentDate);
+        });
+        releaseNights(released);
     }
 
     public void tenantCancelBooking(Long booking_id, Long tenant_sin, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        Availability released = transactions.inTransaction("BookingService.tenantCancelBooking", String.format("Unable to cancel booking."), () -> {
             if (!dao.tenantSinMatchesBookingId(tenant_sin, booking_id)) {
                 throw new ServiceException(String.format("Unable to cancel booking because tenant sin does not match. "));
             }
-            cancelBooking(booking_id, currentDate);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to cancel booking."), e);
-        }
+            return cancelBooking(booking_id, currentDate);
+        });
+        releaseNights(released);
     }
 
     public boolean isTenantOfBooking(Long booking_id, Long tenant_sin) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.isTenantOfBooking", String.format("Unable to determine if user is tenant of booking."), () -> {
             if (!dao.tenantSinMatchesBookingId(tenant_sin, booking_id)) {
-                dao.commitTransaction();
                 return false;
             }
-            dao.commitTransaction();
             return true;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to determine if user is tenant of booking."), e);
-        }
+        });
     }
 
     public boolean isHostOfBooking(Long booking_id, Long host_sin) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.isHostOfBooking", String.format("Unable to determine if user is host of booking."), () -> {
             if (!dao.hostSinMatchesBookingId(host_sin, booking_id)) {
-                dao.commitTransaction();
                 return false;
             }
-            dao.commitTransaction();
             return true;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to determine if user is host of booking."), e);
-        }
+        });
     }
 
-    // Not to be used publicly. Must be used within a transaction
-    private void cancelBooking(Long booking_id, LocalDate currentDate) throws ServiceException {
+    // Not to be used publicly. Must be used within a transaction. Returns the availability the nights went back to
+    private Availability cancelBooking(Long booking_id, LocalDate currentDate) throws ServiceException {
         // check if booking exists
         if (!dao.bookingExists(booking_id)) {
             throw new ServiceException(String.format("Booking with id, %d, does not exist.", booking_id));
@@ -209,74 +146,77 @@ public class BookingService {
             newAvailabilityEndDate = affectedAvailability2.end_date();
             dao.deleteAvailability(affectedAvailability2.availability_id());
         }
-        dao.insertAvailability(new Availability(null, newAvailabilityStartDate, newAvailabilityEndDate,
+        Availability released = new Availability(null, newAvailabilityStartDate, newAvailabilityEndDate,
                 bookingPricePerNight,
-                booking.listings_listing_id()));
+                booking.listings_listing_id());
+        dao.insertAvailability(released);
+        return released;
+    }
+
+    // the nights of a cancelled booking are available again, after its transaction committed
+    private void releaseNights(Availability released) {
+        if (availabilityIndex != null) {
+            availabilityIndex.addAvailability(released.listings_listing_id(), released.start_date(), released.end_date());
+        }
+    }
+
+    public Booking getBooking(Long booking_id) throws ServiceException {
+        return transactions.inReadOnlyTransaction("BookingService.getBooking", String.format("Unable to retrieve booking."), () -> {
+            Booking booking = dao.getBooking(booking_id);
+            if (booking == null) {
+                throw new ServiceException(String.format("Booking with id, %d, does not exist.", booking_id));
+            }
+            return booking;
+        });
     }
 
     public List<Booking> getBookings() throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getBookings", String.format("Unable to retrieve bookings."), () -> {
             List<Booking> bookings = dao.getBookings();
-            dao.commitTransaction();
             return bookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve bookings."), e);
-        }
+        });
+    }
+
+    // Streams all bookings to the consumer inside one transaction, without loading them all into memory
+    public void forEachBooking(Consumer<? super Booking> consumer) throws ServiceException {
+        transactions.runInReadOnlyTransaction("BookingService.forEachBooking", String.format("Unable to retrieve bookings."), () -> {
+            dao.forEachBooking(consumer);
+        });
     }
 
     public List<Booking> getBookingsOfHost(Long host_sin) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getBookingsOfHost", String.format("Unable to retrieve bookings."), () -> {
             if (!dao.userExists(host_sin)) {
                 throw new ServiceException(String.format("User with sin, %d, does not exist.", host_sin));
             }
             List<Booking> bookings = dao.getHostBookings(host_sin);
-            dao.commitTransaction();
             return bookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve bookings."), e);
-        }
+        });
     }
 
     public List<Booking> getBookingsOfUser(Long user_sin) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getBookingsOfUser", String.format("Unable to retrieve bookings."), () -> {
             if (!dao.userExists(user_sin)) {
                 throw new ServiceException(String.format("User with sin, %d, does not exist.", user_sin));
             }
             List<Booking> bookings = dao.getTenenatBookings(user_sin);
-            dao.commitTransaction();
             return bookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve bookings."), e);
-        }
+        });
     }
 
     public List<Booking> getBookingsOfListing(Long listing_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        return transactions.inReadOnlyTransaction("BookingService.getBookingsOfListing", String.format("Unable to retrieve bookings."), () -> {
             if (!dao.listingIdExists(listing_id)) {
                 throw new ServiceException(String.format("Listing with id, %d, does not exist.", listing_id));
             }
             List<Booking> bookings = dao.getBookingsOfListing(listing_id);
-            dao.commitTransaction();
             return bookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve bookings."), e);
-        }
+        });
     }
 
 
     public void tenantRateListing(Long tenant_id, Integer rating, Long booking_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.tenantRateListing", String.format("Unable to rate listing."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
@@ -291,33 +231,21 @@ public class BookingService {
                 throw new ServiceException("Booking has not ended yet");
 
             dao.tenantRateListing(tenant_id, rating, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to rate listing."), e);
-        }
+        });
     }
 
     public void deleteTenantRateListing(Long tenant_id, Long booking_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.deleteTenantRateListing", String.format("Unable to delete tenant rating for listing."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
 
             dao.tenantRateListing(tenant_id, null, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to delete tenant rating for listing."), e);
-        }
+        });
     }
 
     public void tenantRateHost(Long tenant_id, Integer rating, Long booking_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.tenantRateHost", String.format("Unable to rate host."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
@@ -332,33 +260,21 @@ public class BookingService {
                 throw new ServiceException("Booking has not ended yet");
 
             dao.tenantRateHost(tenant_id, rating, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to rate host."), e);
-        }
+        });
     }
 
     public void deleteTenantRateHost(Long tenant_id, Long booking_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.deleteTenantRateHost", String.format("Unable to delete tenant rating for host."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
 
             dao.tenantRateHost(tenant_id, null, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to delete tenant rating for host."), e);
-        }
+        });
     }
 
     public void addCommentFromTenant(Long tenant_id, String comment, Long booking_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.addCommentFromTenant", String.format("Unable to comment on host."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
@@ -371,33 +287,23 @@ public class BookingService {
                 throw new ServiceException("Booking has not ended yet");
 
             dao.addCommentFromTenant(tenant_id, comment, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to comment on host."), e);
-        }
+            dao.deleteReviewNounPhrases(booking_id); // the cached noun phrases are for the old comment
+        });
     }
 
     public void deleteCommentFromTenant(Long tenant_id, Long booking_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.deleteCommentFromTenant", String.format("Unable to delete tenant comment on host."), () -> {
             // Check tenant_id matches in booking
             if (!dao.tenantSinMatchesBookingId(tenant_id, booking_id))
                 throw new ServiceException("Tenant does not match with booking");
 
             dao.deleteCommentFromTenant(tenant_id, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to delete tenant comment on host."), e);
-        }
+            dao.deleteReviewNounPhrases(booking_id); // the cached noun phrases are for the old comment
+        });
     }
 
     public void hostRateTenant(Long host_id, Integer rating, Long booking_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.hostRateTenant", String.format("Unable to rate tenant."), () -> {
             // Check host_id matches in listing
             if (!dao.hostSinMatchesBookingId(host_id, booking_id))
                 throw new ServiceException("Host does not match with booking");
@@ -411,34 +317,21 @@ public class BookingService {
                 throw new ServiceException("Booking has not ended yet");
 
             dao.hostRateTenant(host_id, rating, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to rate tenant."), e);
-        }
+        });
     }
 
     public void deleteHostRateTenant(Long host_id, Long booking_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.deleteHostRateTenant", String.format("Unable to delete host rating for tenant."), () -> {
             // Check host_id matches in listing
             if (!dao.hostSinMatchesBookingId(host_id, booking_id))
                 throw new ServiceException("Host does not match with booking");
 
             dao.hostRateTenant(host_id, null, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to delete host rating for tenant."), e);
-        }
-        dao.startTransaction();
+        });
     }
 
     public void addCommentFromHost(Long host_id, String comment, Long booking_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.addCommentFromHost", String.format("Unable to comment on tenant."), () -> {
             // Check host_id matches in listing
             if (!dao.hostSinMatchesBookingId(host_id, booking_id))
                 throw new ServiceException("Host does not match with booking");
@@ -451,102 +344,69 @@ public class BookingService {
                 throw new ServiceException("Booking has not ended yet");
 
             dao.addCommentFromHost(host_id, comment, booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to comment on tenant."), e);
-        }
+        });
     }
 
     public void deleteCommentFromHost(Long host_id, Long booking_id) throws ServiceException {
-        try {
-            dao.startTransaction();
-
+        transactions.runInTransaction("BookingService.deleteCommentFromHost", String.format("Unable to delete host comment on tenant."), () -> {
             // Check host_id matches in listing
             if (!dao.hostSinMatchesBookingId(host_id, booking_id))
                 throw new ServiceException("Host does not match with booking");
 
             dao.addCommentFromHost(host_id, "", booking_id);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to delete host comment on tenant."), e);
-        }
+        });
     }
 
     public List<Review> getReviews() throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getReviews", String.format("Unable to retrieve reviews."), () -> {
             List<Review> reviews = dao.getReviews();
-            dao.commitTransaction();
             return reviews;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve reviews."), e);
-        }
+        });
+    }
+
+    // Streams all reviews to the consumer inside one transaction, without loading them all into memory
+    public void forEachReview(Consumer<? super Review> consumer) throws ServiceException {
+        transactions.runInReadOnlyTransaction("BookingService.forEachReview", String.format("Unable to retrieve reviews."), () -> {
+            dao.forEachReview(consumer);
+        });
     }
 
     public List<Review> getReviewsOfListing(Long listing_id) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getReviewsOfListing", String.format("Unable to retrieve reviews."), () -> {
             if (!dao.listingIdExists(listing_id)) {
                 throw new ServiceException(String.format("Listing with id, %d, does not exist.", listing_id));
             }
             List<Review> reviews = dao.getReviewsOfListing(listing_id);
-            dao.commitTransaction();
             return reviews;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve reviews."), e);
-        }
+        });
     }
 
     public List<CancelledBooking> getCancelledBookings() throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getCancelledBookings", String.format("Unable to retrieve cancelled bookings."), () -> {
             List<CancelledBooking> cancelledBookings = dao.getCancelledBookings();
-            dao.commitTransaction();
             return cancelledBookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve cancelled bookings."), e);
-        }
+        });
     }
 
     public List<Review> getReviewsAsTenant(Long tenantId) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getReviewsAsTenant", String.format("Unable to retrieve reviews."), () -> {
             List<Review> reviews = dao.getReviewsAsTenant(tenantId);
-            dao.commitTransaction();
             return reviews;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve reviews."), e);
-        }
+        });
     }
 
     public List<Review> getReviewsAsHost(Long hostId) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getReviewsAsHost", String.format("Unable to retrieve reviews."), () -> {
             List<Review> reviews = dao.getReviewsAsHost(hostId);
-            dao.commitTransaction();
             return reviews;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve reviews."), e);
-        }
+        });
     }
 
     public Date getCurrDate() throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("BookingService.getCurrDate", String.format("Unable to retrieve current date."), () -> {
             Date currDate = dao.getCurrentDate();
-            dao.commitTransaction();
             return currDate;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException(String.format("Unable to retrieve current date."), e);
-        }
+        });
     }
 }
 
@@ -0,0 +1,233 @@
+package service;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+In-memory grid index of listing locations, for answering radius and nearest-neighbour searches without the database.
+The world is cut into cells of cellDegrees by cellDegrees, and each listing is kept in the cell its location falls
+in. A search only looks at the cells that can contain a match and checks the exact distance of the listings in them,
+with the same spherical formula and earth radius as ST_Distance_Sphere.
+Writes are serialized, searches run concurrently with them without locking.
+The index only sees the changes made through the ListingService it belongs to, which loads the listings other
+processes add or change before it trusts the index, and the database still applies every predicate to the candidates
+it returns.
+ */
+public class ListingLocationIndex {
+    // the radius ST_Distance_Sphere uses by default, in meters
+    private static final double EARTH_RADIUS = 6370986.0;
+
+    private final double cellDegrees;
+    private final double longitudeCellDegrees; // cellDegrees widened a little, so that the cells wrap evenly at the antimeridian
+    private final int longitudeCells;
+    private final int latitudeCells;
+    private final Map<Long, Map<Long, Point2D>> cells = new ConcurrentHashMap<>(); // cell key -> listing id -> location
+    private final Map<Long, Point2D> locations = new ConcurrentHashMap<>();
+
+    public record Neighbour(long listingId, double distanceMeters) {}
+
+    public ListingLocationIndex() {
+        this(0.1); // about 11 km
+    }
+
+    public ListingLocationIndex(double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 180) {
+            throw new IllegalArgumentException("Invalid cell size: " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+        this.longitudeCells = (int) Math.ceil(360 / cellDegrees);
+        this.longitudeCellDegrees = 360.0 / longitudeCells;
+        this.latitudeCells = (int) Math.ceil(180 / cellDegrees);
+    }
+
+    public synchronized void put(long listingId, Point2D location) {
+        Point2D previous = locations.put(listingId, location);
+        if (previous != null) {
+            removeFromCell(listingId, previous);
+        }
+        cells.computeIfAbsent(cellKey(location), key -> new ConcurrentHashMap<>()).put(listingId, location);
+    }
+
+    public synchronized void remove(long listingId) {
+        Point2D previous = locations.remove(listingId);
+        if (previous != null) {
+            removeFromCell(listingId, previous);
+        }
+    }
+
+    public synchronized void clear() {
+        locations.clear();
+        cells.clear();
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    // ids of every listing within radiusMeters of center, nearest first
+    public List<Long> withinRadius(Point2D center, double radiusMeters) {
+        double angularRadius = radiusMeters / EARTH_RADIUS;
+        double minLatitude = center.getY() - Math.toDegrees(angularRadius);
+        double maxLatitude = center.getY() + Math.toDegrees(angularRadius);
+        int fromLongitudeCell;
+        int toLongitudeCell;
+        if (angularRadius >= Math.PI / 2 || minLatitude <= -90 || maxLatitude >= 90) {
+            // the circle covers a pole, so it spans every longitude
+            fromLongitudeCell = 0;
+            toLongitudeCell = longitudeCells - 1;
+        } else {
+            double longitudeDelta = Math.toDegrees(Math.asin(Math.sin(angularRadius) / Math.cos(Math.toRadians(center.getY()))));
+            fromLongitudeCell = longitudeCell(center.getX() - longitudeDelta);
+            toLongitudeCell = longitudeCell(center.getX() + longitudeDelta);
+            if (toLongitudeCell - fromLongitudeCell >= longitudeCells) {
+                fromLongitudeCell = 0;
+                toLongitudeCell = longitudeCells - 1;
+            }
+        }
+        int fromLatitudeCell = latitudeCell(Math.max(minLatitude, -90));
+        int toLatitudeCell = latitudeCell(Math.min(maxLatitude, 90));
+
+        List<Neighbour> matches = new ArrayList<>();
+        long cellCount = (long) (toLongitudeCell - fromLongitudeCell + 1) * (toLatitudeCell - fromLatitudeCell + 1);
+        if (cellCount > locations.size()) {
+            // visiting every candidate cell would cost more than checking every listing
+            locations.forEach((listingId, location) -> addIfWithin(matches, listingId, location, center, radiusMeters));
+        } else {
+            for (int x = fromLongitudeCell; x <= toLongitudeCell; x++) {
+                for (int y = fromLatitudeCell; y <= toLatitudeCell; y++) {
+                    Map<Long, Point2D> cell = cells.get(cellKey(Math.floorMod(x, longitudeCells), y));
+                    if (cell != null) {
+                        cell.forEach((listingId, location) -> addIfWithin(matches, listingId, location, center, radiusMeters));
+                    }
+                }
+            }
+        }
+        matches.sort(Comparator.comparingDouble(Neighbour::distanceMeters).thenComparingLong(Neighbour::listingId));
+        List<Long> listingIds = new ArrayList<>(matches.size());
+        for (Neighbour match : matches) {
+            listingIds.add(match.listingId());
+        }
+        return listingIds;
+    }
+
+    /*
+    The k listings nearest to center, nearest first. Searches rings of cells around the center's cell, and stops
+    once the closest point outside the searched square is farther away than the k-th nearest listing found so far
+     */
+    public List<Neighbour> nearest(Point2D center, int k) {
+        if (k < 1) {
+            return List.of();
+        }
+        // the farthest of the k nearest found so far is at the head
+        PriorityQueue<Neighbour> nearest = new PriorityQueue<>(
+                Comparator.comparingDouble(Neighbour::distanceMeters).reversed());
+        int centerX = longitudeCell(center.getX());
+        int centerY = latitudeCell(center.getY());
+        int maxRing = Math.max(longitudeCells, latitudeCells);
+        long visitedCells = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            visitedCells += ring == 0 ? 1 : 8L * ring;
+            if (visitedCells > locations.size() || 2 * ring + 1 > longitudeCells) {
+                // the rings are mostly empty here or would wrap around the globe, a full scan is cheaper
+                nearest.clear();
+                locations.forEach((listingId, location) -> offer(nearest, k, listingId, location, center));
+                break;
+            }
+            for (int x = centerX - ring; x <= centerX + ring; x++) {
+                for (int y = centerY - ring; y <= centerY + ring; y++) {
+                    boolean onRing = Math.abs(x - centerX) == ring || Math.abs(y - centerY) == ring;
+                    if (!onRing || y < 0 || y >= latitudeCells) {
+                        continue;
+                    }
+                    Map<Long, Point2D> cell = cells.get(cellKey(Math.floorMod(x, longitudeCells), y));
+                    if (cell != null) {
+                        cell.forEach((listingId, location) -> offer(nearest, k, listingId, location, center));
+                    }
+                }
+            }
+            if (nearest.size() == k && nearest.peek().distanceMeters() <= distanceOutsideRing(center, centerX, centerY, ring)) {
+                break;
+            }
+        }
+        List<Neighbour> result = new ArrayList<>(nearest);
+        result.sort(Comparator.comparingDouble(Neighbour::distanceMeters).thenComparingLong(Neighbour::listingId));
+        return result;
+    }
+
+    // a lower bound of the distance from center to any point outside the square of cells searched so far
+    private double distanceOutsideRing(Point2D center, int centerX, int centerY, int ring) {
+        double south = (centerY - ring) * cellDegrees - 90;
+        double north = (centerY + ring + 1) * cellDegrees - 90;
+        double west = (centerX - ring) * longitudeCellDegrees - 180;
+        double east = (centerX + ring + 1) * longitudeCellDegrees - 180;
+        double latitudeGap = Math.min(south <= -90 ? Double.MAX_VALUE : center.getY() - south,
+                north >= 90 ? Double.MAX_VALUE : north - center.getY());
+        double bound = Math.toRadians(latitudeGap) * EARTH_RADIUS;
+        double longitudeGap = Math.min(center.getX() - west, east - center.getX());
+        if (longitudeGap < 90) {
+            // the distance to the nearest point on a meridian longitudeGap degrees away
+            double cosLatitude = Math.cos(Math.toRadians(Math.min(Math.abs(center.getY()), 90)));
+            bound = Math.min(bound, Math.asin(cosLatitude * Math.sin(Math.toRadians(longitudeGap))) * EARTH_RADIUS);
+        } else {
+            // that far around, the nearest point of the meridian is the pole
+            bound = Math.min(bound, Math.toRadians(90 - Math.abs(center.getY())) * EARTH_RADIUS);
+        }
+        return bound;
+    }
+
+    private static void addIfWithin(List<Neighbour> matches, long listingId, Point2D location, Point2D center, double radiusMeters) {
+        double distance = distanceMeters(center, location);
+        if (distance <= radiusMeters) {
+            matches.add(new Neighbour(listingId, distance));
+        }
+    }
+
+    private static void offer(PriorityQueue<Neighbour> nearest, int k, long listingId, Point2D location, Point2D center) {
+        double distance = distanceMeters(center, location);
+        if (nearest.size() < k) {
+            nearest.add(new Neighbour(listingId, distance));
+        } else if (distance < nearest.peek().distanceMeters()) {
+            nearest.poll();
+            nearest.add(new Neighbour(listingId, distance));
+        }
+    }
+
+    // haversine distance, as computed by ST_Distance_Sphere
+    static double distanceMeters(Point2D a, Point2D b) {
+        double latitudeA = Math.toRadians(a.getY());
+        double latitudeB = Math.toRadians(b.getY());
+        double sinHalfLatitude = Math.sin((latitudeB - latitudeA) / 2);
+        double sinHalfLongitude = Math.sin(Math.toRadians(b.getX() - a.getX()) / 2);
+        double h = sinHalfLatitude * sinHalfLatitude
+                + Math.cos(latitudeA) * Math.cos(latitudeB) * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    private void removeFromCell(long listingId, Point2D location) {
+        cells.computeIfPresent(cellKey(location), (key, cell) -> {
+            cell.remove(listingId);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    private int longitudeCell(double longitude) {
+        return (int) Math.floor((longitude + 180) / longitudeCellDegrees);
+    }
+
+    private int latitudeCell(double latitude) {
+        return Math.min((int) Math.floor((latitude + 90) / cellDegrees), latitudeCells - 1);
+    }
+
+    private long cellKey(Point2D location) {
+        return cellKey(Math.floorMod(longitudeCell(location.getX()), longitudeCells), latitudeCell(location.getY()));
+    }
+
+    private static long cellKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
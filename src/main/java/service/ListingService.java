@@ -7,25 +7,187 @@ import domain.Listing;
 import exception.DataAccessException;
 import exception.ServiceException;
 import filter.ListingFilter;
+import filter.ListingPage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.awt.geom.Point2D;
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class ListingService {
+    private static final int MAX_INDEXED_CANDIDATES = 1024;
+    private static final double NEAREST_INITIAL_RADIUS_METERS = 1000;
+    private static final double MAX_DISTANCE_METERS = 20_016_000; // half way around the earth, nothing is farther
     private final Dao dao;
+    private final TransactionExecutor transactions;
+    private final ListingLocationIndex locationIndex; // null if searches go straight to the database
+    // the listings the location index holds, null until it is built. An index that is missing listings would hide them from searches
+    private final AtomicReference<Dao.TableVersion> locationIndexVersion = new AtomicReference<>();
+    private final Object locationIndexLock = new Object(); // held while listings are loaded into the location index
+    private final AtomicBoolean locationIndexRebuildNeeded = new AtomicBoolean();
+    private final AvailabilityCalendarIndex availabilityIndex; // null if stay searches go straight to the database
+    // the availabilities the calendar holds, null until it is built
+    private final AtomicReference<Dao.TableVersion> availabilityIndexVersion = new AtomicReference<>();
+    private final Object availabilityIndexLock = new Object(); // held while availabilities are loaded into the calendar
+    private final AtomicBoolean availabilityIndexRebuildNeeded = new AtomicBoolean();
     private static final Logger logger = LogManager.getLogger(ListingService.class);
 
     public ListingService(Dao dao) {
+        this(dao, new TransactionExecutor(dao));
+    }
+
+    public ListingService(Dao dao, TransactionExecutor transactions) {
+        this(dao, transactions, null);
+    }
+
+    public ListingService(Dao dao, TransactionExecutor transactions, ListingLocationIndex locationIndex) {
+        this(dao, transactions, locationIndex, null);
+    }
+
+    public ListingService(Dao dao, TransactionExecutor transactions, ListingLocationIndex locationIndex,
+                          AvailabilityCalendarIndex availabilityIndex) {
         this.dao = dao;
+        this.transactions = transactions;
+        this.locationIndex = locationIndex;
+        this.availabilityIndex = availabilityIndex;
+    }
+
+    // Loads the location of every listing into the location index, streaming the listings table
+    public void buildLocationIndex() throws ServiceException {
+        if (locationIndex == null) {
+            return;
+        }
+        synchronized (locationIndexLock) {
+            locationIndexVersion.set(null);
+            Dao.TableVersion version = transactions.inReadOnlyTransaction("ListingService.buildLocationIndex", "An error occurred while trying to index listing locations", () -> {
+                locationIndex.clear();
+                Dao.TableVersion listed = dao.getListingTableVersion(); // read first, so that every listing up to it is loaded
+                dao.forEachListing(listing -> locationIndex.put(listing.listing_id(), listing.location()));
+                return listed;
+            });
+            locationIndexVersion.set(version);
+        }
+        logger.info("Indexed the locations of {} listings", locationIndex.size());
+    }
+
+    /*
+    True if the location index holds every listing in the database, so a search can skip the listings it leaves out.
+    Listings added or changed since the index was loaded, by this process or another one, are loaded into it first.
+    If the tables were reset, the index is dropped and this search goes to the database, and the index is rebuilt
+    after the search. Listings another process deleted stay in the index, the database leaves them out of the
+    results. Runs in the transaction of the search
+     */
+    private boolean locationIndexCurrent() {
+        Dao.TableVersion indexed = locationIndexVersion.get();
+        if (indexed == null) {
+            return false;
+        }
+        Dao.TableVersion current = dao.getListingTableVersion();
+        if (!Objects.equals(current.generation(), indexed.generation())) {
+            if (locationIndexVersion.compareAndSet(indexed, null)) {
+                locationIndexRebuildNeeded.set(true);
+            }
+            return false;
+        }
+        if (current.changedUpTo().isAfter(indexed.changedUpTo())) {
+            synchronized (locationIndexLock) {
+                indexed = locationIndexVersion.get();
+                if (indexed == null || !Objects.equals(current.generation(), indexed.generation())) {
+                    return false;
+                }
+                if (current.changedUpTo().isAfter(indexed.changedUpTo())) {
+                    dao.forEachListingChangedSince(indexed.changedUpTo(),
+                            listing -> locationIndex.put(listing.listing_id(), listing.location()));
+                    locationIndexVersion.set(current);
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+    The same as locationIndexCurrent, for the availability calendar. Availabilities that another process deleted
+    only make the calendar show more free nights than there are, which the database checks anyway
+     */
+    private boolean availabilityIndexCurrent() {
+        Dao.TableVersion indexed = availabilityIndexVersion.get();
+        if (indexed == null) {
+            return false;
+        }
+        Dao.TableVersion current = dao.getAvailabilityTableVersion();
+        if (!Objects.equals(current.generation(), indexed.generation())) {
+            if (availabilityIndexVersion.compareAndSet(indexed, null)) {
+                availabilityIndexRebuildNeeded.set(true);
+            }
+            return false;
+        }
+        if (current.changedUpTo().isAfter(indexed.changedUpTo())) {
+            synchronized (availabilityIndexLock) {
+                indexed = availabilityIndexVersion.get();
+                if (indexed == null || !Objects.equals(current.generation(), indexed.generation())) {
+                    return false;
+                }
+                if (current.changedUpTo().isAfter(indexed.changedUpTo())) {
+                    dao.forEachAvailabilityChangedSince(indexed.changedUpTo(), this::indexAvailability);
+                    availabilityIndexVersion.set(current);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void indexAvailability(Availability availability) {
+        availabilityIndex.addAvailability(availability.listings_listing_id(), availability.start_date(),
+                availability.end_date());
+    }
+
+    // rebuilds the indexes a search found out of date, without failing the search if that doesn't work
+    private void rebuildStaleIndexes() {
+        if (locationIndexRebuildNeeded.compareAndSet(true, false)) {
+            try {
+                buildLocationIndex();
+            } catch (ServiceException e) {
+                logger.warn("Unable to rebuild the location index, searches go to the database until it is rebuilt", e);
+            }
+        }
+        if (availabilityIndexRebuildNeeded.compareAndSet(true, false)) {
+            try {
+                buildAvailabilityIndex();
+            } catch (ServiceException e) {
+                logger.warn("Unable to rebuild the availability index, stay searches go to the database until it is rebuilt", e);
+            }
+        }
+    }
+
+    // Loads every availability into the availability calendar, with its horizon starting today
+    public void buildAvailabilityIndex() throws ServiceException {
+        if (availabilityIndex == null) {
+            return;
+        }
+        synchronized (availabilityIndexLock) {
+            availabilityIndexVersion.set(null);
+            Dao.TableVersion version = transactions.inReadOnlyTransaction("ListingService.buildAvailabilityIndex", "An error occurred while trying to index availabilities", () -> {
+                availabilityIndex.reset(LocalDate.now());
+                Dao.TableVersion listed = dao.getAvailabilityTableVersion(); // read first, so that every availability up to it is loaded
+                dao.forEachAvailability(this::indexAvailability);
+                return listed;
+            });
+            availabilityIndexVersion.set(version);
+        }
+        logger.info("Indexed the availability calendars of {} listings", availabilityIndex.size());
     }
 
     public Long addListing(Listing listing) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        Long listingId = transactions.inTransaction("ListingService.addListing", "An error occurred while trying to add listing", () -> {
             if (dao.listingExists(listing)) {
                 throw new ServiceException(
                         String.format(
@@ -39,17 +201,55 @@ public class ListingService {
                                 listing.users_sin()));
             }
             Long listingID = dao.insertListing(listing);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return listingID;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to add listing", e);
+        });
+        if (locationIndex != null) {
+            locationIndex.put(listingId, listing.location());
+        }
+        return listingId;
+    }
+
+    // Adds all listings in one transaction, or none of them if any listing is invalid. Returns the listing ids in order
+    public List<Long> addListings(List<Listing> listings) throws ServiceException {
+        List<Long> listingIds = transactions.inTransaction("ListingService.addListings", "An error occurred while trying to add listings", () -> {
+            Set<String> addresses = new HashSet<>();
+            Set<Long> hostSins = new HashSet<>();
+            for (Listing listing : listings) {
+                if (!addresses.add(String.join("\n", listing.country(), listing.city(), listing.postal_code(), listing.address()))) {
+                    throw new ServiceException(
+                            String.format(
+                                    "Unable to add listings because listing at %s, %s. %s appears more than once",
+                                    listing.country(), listing.city(), listing.postal_code()));
+                }
+                hostSins.add(listing.users_sin());
+            }
+            List<Listing> existingListings = dao.getListingsAtSameAddress(listings);
+            if (!existingListings.isEmpty()) {
+                Listing existing = existingListings.get(0);
+                throw new ServiceException(
+                        String.format(
+                                "Unable to add listings because listing at %s, %s. %s already exists",
+                                existing.country(), existing.city(), existing.postal_code()));
+            }
+            hostSins.removeAll(dao.getExistingUserSins(hostSins));
+            if (!hostSins.isEmpty()) {
+                throw new ServiceException(
+                        String.format(
+                                "Unable to add listings because users with sin, %s, don't exist",
+                                hostSins));
+            }
+            return dao.insertListings(listings);
+        });
+        if (locationIndex != null) {
+            for (int i = 0; i < listingIds.size(); i++) {
+                locationIndex.put(listingIds.get(i), listings.get(i).location());
+            }
         }
+        return listingIds;
     }
 
     public void deleteListing(Long listingId, Long userSin, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        transactions.runInTransaction("ListingService.deleteListing", "An error occurred while trying to delete listing", () -> {
             Listing listing = dao.getListingById(listingId);
             if (listing == null) {
                 throw new ServiceException(
@@ -65,72 +265,60 @@ public class ListingService {
             }
 
             dao.deleteListing(listingId);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to delete listing", e);
+        });
+        if (locationIndex != null) {
+            locationIndex.remove(listingId);
+        }
+        if (availabilityIndex != null) {
+            availabilityIndex.remove(listingId);
         }
     }
 
     public Listing getListing(Long listingId) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getListing", "An error occurred while trying to get listing", () -> {
             if (!dao.listingIdExists(listingId)) {
                 throw new ServiceException(
                         String.format("Unable to get listing because listing with id, %d, doesn't exist", listingId));
             }
             Listing listing = dao.getListingById(listingId);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return listing;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get listing", e);
-        }
+        });
     }
 
     public boolean doesListingExist(Long listingId) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.doesListingExist", "An error occurred while checking if listing exists", () -> {
             boolean exists = dao.listingIdExists(listingId);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return exists;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while checking if listing exists", e);
-        }
+        });
     }
 
     public boolean doesListingHaveFutureBookings(Long listingId, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.doesListingHaveFutureBookings", "An error occurred while checking if listing has future bookings", () -> {
             if (!dao.listingIdExists(listingId)) {
                 throw new ServiceException(
                         String.format("Unable to check if listing has future bookings because listing with id, %d, doesn't exist", listingId));
             }
             boolean hasFutureBookings = dao.hasFutureBookings(listingId, currentDate);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return hasFutureBookings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while checking if listing has future bookings", e);
-        }
+        });
     }
 
     public List<Listing> getListings() throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getListings", "An error occurred while trying to get listings", () -> {
             List<Listing> listings = dao.getListings();
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return listings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get listings", e);
-        }
+        });
+    }
+
+    // Streams all listings to the consumer inside one transaction, without loading them all into memory
+    public void forEachListing(Consumer<? super Listing> consumer) throws ServiceException {
+        transactions.runInReadOnlyTransaction("ListingService.forEachListing", "An error occurred while trying to get listings", () -> {
+            dao.forEachListing(consumer);
+        });
     }
 
     public List<Listing> getListingsOfUser(Long sin) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getListingsOfUser", "An error occurred while trying to get listings", () -> {
             if (!dao.userExists(sin)) {
                 throw new ServiceException(
                         String.format("Unable to get listings because user with sin, %d, doesn't exist", sin));
@@ -151,17 +339,12 @@ public class ListingService {
                             )
                             .build()
             );
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return listings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get listings", e);
-        }
+        });
     }
 
     public void addAmenityToListing(Long listingID, Long userSin, String amenity) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.addAmenityToListing", "An error occured while adding amenity", () -> {
             Listing listing = dao.getListingById(listingID);
             if (listing == null) {
                 throw new ServiceException(
@@ -179,16 +362,36 @@ public class ListingService {
             }
             
             dao.insertAmenityForListing(listing.listing_id(), amenity);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while adding amenity", e);
-        }
+        });
+    }
+
+    public void addAmenitiesToListing(Long listingID, Long userSin, List<String> amenities) throws ServiceException {
+        transactions.runInTransaction("ListingService.addAmenitiesToListing", "An error occured while adding amenities", () -> {
+            Listing listing = dao.getListingById(listingID);
+            if (listing == null) {
+                throw new ServiceException(
+                        String.format("Unable to add amenities because listing with id, %d, doesn't exist", listingID));
+            }
+            if (!listing.users_sin().equals(userSin)) {
+                throw new ServiceException(
+                        String.format("Unable to add amenities because listing with id, %d, doesn't belong to user with sin, %d", listingID, userSin));
+            }
+            Set<String> existingAmenities = new HashSet<>(dao.getAmenitiesByListingId(listingID));
+            for (String amenity : amenities) {
+                if (!existingAmenities.add(amenity)) {
+                    throw new ServiceException(
+                            String.format(
+                                    "Unable to add amenities because listing at %s, %s. %s already has amenity %s",
+                                    listing.country(), listing.city(), listing.postal_code(), amenity));
+                }
+            }
+
+            dao.insertAmenitiesForListing(listingID, amenities);
+        });
     }
 
     public void removeAmenityFromListing(Long listingID, Long userSin, String amenity) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.removeAmenityFromListing", "An error occured while removing amenity", () -> {
             Listing listing = dao.getListingById(listingID);
             if (listing == null) {
                 throw new ServiceException(
@@ -206,71 +409,54 @@ public class ListingService {
             }
             
             dao.deleteAmenityForListing(listing.listing_id(), amenity);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while removing amenity", e);
-        }
+        });
     }
 
     public Float getListingPricePerNight(Long listingId) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ListingService.getListingPricePerNight", "An error occured while getting listing price", () -> {
             if (!dao.listingIdExists(listingId)) {
                 throw new ServiceException(
                         String.format("Unable to get listing price because listing with id, %d, doesn't exist",
                                 listingId));
             }
             Float price = dao.getListingPricePerNight(listingId);
-            dao.commitTransaction();
             return price;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while getting listing price", e);
-        }
+        });
     }
 
     public boolean doesCityExists(String city) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ListingService.doesCityExists", "An error occured while checking if city exists", () -> {
             boolean exists = dao.doesCityExists(city);
-            dao.commitTransaction();
             return exists;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while checking if city exists", e);
-        }
+        });
     }
 
     public String getRecommendedPricePerNight(Long listingId) throws ServiceException {
         try {
-            dao.startTransaction();
-            if (!dao.listingIdExists(listingId)) {
-                throw new ServiceException(
-                        String.format("Unable to get listing price because listing with id, %d, doesn't exist",
-                                listingId));
-            }
-            String city = dao.getListingById(listingId).city();
-            Float price = dao.getAverageListingPriceByCity(city);
-
-            if (price == null) {
-                throw new ServiceException(
-                        String.format("Unable to get recommended price no listings in city, %s, have a price",
-                                city));
-            }
+            return transactions.inReadOnlyTransaction("ListingService.getRecommendedPricePerNight", "An error occured while getting listing price", () -> {
+                if (!dao.listingIdExists(listingId)) {
+                    throw new ServiceException(
+                            String.format("Unable to get listing price because listing with id, %d, doesn't exist",
+                                    listingId));
+                }
+                String city = dao.getListingById(listingId).city();
+                Float price = dao.getAverageListingPriceByCity(city);
 
-            dao.commitTransaction();
-            return price.toString();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            System.out.println(e.getMessage());
-            throw new ServiceException("An error occured while getting listing price", e);
+                if (price == null) {
+                    throw new ServiceException(
+                            String.format("Unable to get recommended price no listings in city, %s, have a price",
+                                    city));
+                }
+                return price.toString();
+            });
+        } catch (ServiceException e) {
+            System.out.println(e.getCause().getMessage());
+            throw e;
         }
     }
 
     public void changeListingAvailabilityPrice(Long listingId, Long userSin, LocalDate start_date, LocalDate end_date, BigDecimal newPrice) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.changeListingAvailabilityPrice", "Unable to change availability price", () -> {
             Listing listing = dao.getListingById(listingId);
             if (listing == null) {
                 throw new ServiceException(
@@ -291,16 +477,11 @@ public class ListingService {
                                 newPrice));
             }
             dao.changeListingAvailabilityPrice(listingId, start_date, end_date, newPrice);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("Unable to change availability price", e);
-        }
+        });
     }
 
     public void addAvailability(Availability availability, Long userSin, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.addAvailability", "An error occured while adding availability", () -> {
             Listing listing = dao.getListingById(availability.listings_listing_id());
             if (listing == null) {
                 throw new ServiceException(
@@ -326,16 +507,63 @@ public class ListingService {
                                 availability.start_date(), availability.end_date()));
             }
             dao.insertAvailability(availability);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while adding availability", e);
+        });
+        if (availabilityIndex != null) {
+            availabilityIndex.addAvailability(availability.listings_listing_id(), availability.start_date(),
+                    availability.end_date());
+        }
+    }
+
+    /*
+    Adds all availabilities of one listing in one transaction, or none of them if any is invalid.
+    The existing availabilities are loaded once and the new ones are checked against them and against each other
+     */
+    public List<Long> addAvailabilities(Long listingId, Long userSin, List<Availability> availabilities, LocalDate currentDate) throws ServiceException {
+        List<Long> availabilityIds = transactions.inTransaction("ListingService.addAvailabilities", "An error occured while adding availabilities", () -> {
+            Listing listing = dao.getListingById(listingId);
+            if (listing == null) {
+                throw new ServiceException(
+                        String.format("Unable to add availabilities because listing with id, %d, doesn't exist", listingId));
+            }
+            if (!listing.users_sin().equals(userSin)) {
+                throw new ServiceException(
+                        String.format("Unable to add availabilities because listing with id, %d, doesn't belong to user with sin, %d", listingId, userSin));
+            }
+            List<Availability> accepted = new ArrayList<>(dao.getAvailabilitiesOfListing(listingId, currentDate));
+            for (Availability availability : availabilities) {
+                if (!listingId.equals(availability.listings_listing_id())) {
+                    throw new ServiceException(
+                            String.format("Unable to add availabilities because availability belongs to listing with id, %d, instead of %d",
+                                    availability.listings_listing_id(), listingId));
+                }
+                if (availability.start_date().compareTo(availability.end_date()) >= 0) {
+                    throw new ServiceException(
+                            String.format("Unable to add availabilities because start date, %s, is after end date, %s",
+                                    availability.start_date(), availability.end_date()));
+                }
+                for (Availability other : accepted) {
+                    // two closed date ranges overlap unless one ends before the other starts
+                    if (availability.start_date().compareTo(other.end_date()) <= 0
+                            && other.start_date().compareTo(availability.end_date()) <= 0) {
+                        throw new ServiceException(
+                                String.format("Unable to add availabilities because availability from %s to %s overlaps with existing availability",
+                                        availability.start_date(), availability.end_date()));
+                    }
+                }
+                accepted.add(availability);
+            }
+            return dao.insertAvailabilities(availabilities);
+        });
+        if (availabilityIndex != null) {
+            for (Availability availability : availabilities) {
+                availabilityIndex.addAvailability(listingId, availability.start_date(), availability.end_date());
+            }
         }
+        return availabilityIds;
     }
 
     public void deleteAvailability(Long listingId, Long userSin, LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.deleteAvailability", "An error occured while deleting availability", () -> {
             Listing listing = dao.getListingById(listingId);
             if (listing == null) {
                 throw new ServiceException(
@@ -352,23 +580,17 @@ public class ListingService {
                                 listingId, startDate, endDate));
             }
             dao.deleteAvailability(listingId, startDate, endDate);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while deleting availability", e);
+        });
+        if (availabilityIndex != null) {
+            availabilityIndex.removeAvailability(listingId, startDate, endDate);
         }
     }
 
     public boolean doesAvailabilityExist(Long listingId, LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ListingService.doesAvailabilityExist", "An error occured while checking if availability exists", () -> {
             boolean exists = dao.listingAvailabilityExists(listingId, startDate, endDate);
-            dao.commitTransaction();
             return exists;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while checking if availability exists", e);
-        }
+        });
     }
 
     // Helper method to check if date range overlaps with existing availability
@@ -415,26 +637,20 @@ public class ListingService {
     }
 
     public boolean isHostOfListing(Long sin, Long listingId) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ListingService.isHostOfListing", "An error occured while checking if user is host", () -> {
             if (!dao.listingIdExists(listingId)) {
                 throw new ServiceException(
                         String.format("Unable to check if user is host because listing with id, %d, doesn't exist",
                                 listingId));
             }
             boolean isHost = dao.doesListingIdHaveHostSin(listingId, sin);
-            dao.commitTransaction();
             return isHost;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while checking if user is host", e);
-        }
+        });
     }
 
     public void changeListingAvailability(Long listingId, Long userSin, LocalDate prevStartDate, LocalDate prevEndDate,
             LocalDate newStartDate, LocalDate newEndDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        transactions.runInTransaction("ListingService.changeListingAvailability", "An error occured while changing availability", () -> {
             Listing listing = dao.getListingById(listingId);
             if (listing == null) {
                 throw new ServiceException(
@@ -451,78 +667,68 @@ public class ListingService {
                                 listingId, prevStartDate, prevEndDate));
             }
             dao.changeListingAvailability(listingId, prevStartDate, prevEndDate, newStartDate, newEndDate);
-            dao.commitTransaction();
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occured while changing availability", e);
+        });
+        if (availabilityIndex != null) {
+            availabilityIndex.removeAvailability(listingId, prevStartDate, prevEndDate);
+            availabilityIndex.addAvailability(listingId, newStartDate, newEndDate);
         }
     }
 
     public List<Availability> getAvailabilities() throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getAvailabilities", "An error occurred while trying to get availabilities", () -> {
             List<Availability> availabilities = dao.getAvailabilities();
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return availabilities;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get availabilities", e);
-        }
+        });
+    }
+
+    // Streams all availabilities to the consumer inside one transaction, without loading them all into memory
+    public void forEachAvailability(Consumer<? super Availability> consumer) throws ServiceException {
+        transactions.runInReadOnlyTransaction("ListingService.forEachAvailability", "An error occurred while trying to get availabilities", () -> {
+            dao.forEachAvailability(consumer);
+        });
     }
 
     public List<Availability> getAvailabilitiesOfListing(Long listing_id, LocalDate currentDate) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getAvailabilitiesOfListing", "An error occurred while trying to get availabilities", () -> {
             if (!dao.listingIdExists(listing_id)) {
                 throw new ServiceException(
                         String.format("Unable to get availabilities because listing with id, %d, doesn't exist",
                                 listing_id));
             }
             List<Availability> availabilities = dao.getAvailabilitiesOfListing(listing_id, currentDate);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return availabilities;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get availabilities", e);
-        }
+        });
     }
 
     public List<Amenity> getAllAllowedAmenities() throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getAllAllowedAmenities", "An error occurred while trying to get amenities", () -> {
             List<Amenity> amenities = dao.getAllAmenities();
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return amenities;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get amenities", e);
-        }
+        });
     }
 
     public List<String> getAmenitiesOfListing(Long listing_id) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ListingService.getAmenitiesOfListing", "An error occurred while trying to get amenities", () -> {
             if (!dao.listingIdExists(listing_id)) {
                 throw new ServiceException(
                         String.format("Unable to get amenities because listing with id, %d, doesn't exist",
                                 listing_id));
             }
             List<String> amenities = dao.getAmenitiesByListingId(listing_id);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return amenities;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get amenities", e);
-        }
+        });
     }
 
 
         // ============= Search methods =============
-    public List<Listing> searchListingsByFilter(ListingFilter filter) throws ServiceException {
-        try {
-            dao.startTransaction();;
+    /*
+    Returns the first page of the search, or the page after filter.continuationToken(). Without a page size,
+    the page holds every matching listing
+     */
+    public ListingPage searchListingsByFilter(ListingFilter filter) throws ServiceException {
+        ListingPage page = transactions.inReadOnlyTransaction("ListingService.searchListingsByFilter", "An error occurred while trying to search listings", () -> {
             if ((filter.listing().address() != null || filter.listing().postal_code() != null)
-                    && filter.searchRadius() != null && filter.listing().location() == null) {
+                    && (filter.searchRadius() != null || filter.nearest() != null) && filter.listing().location() == null) {
                 // get the coordinates of the address
                 // Note: only search by address or postal code, disregard everything else
                 // create new filter with only the address and postal code
@@ -539,11 +745,11 @@ public class ListingService {
                                         null
                                 )
                         )
+                        .withPageSize(1) // only the coordinates of the first match are used
                         .build();
                 List<Listing> listingsTemp = dao.getListingsByFilter(tempFilter);
                 if (listingsTemp.size() == 0) {
-                    dao.rollbackTransaction();
-                    return listingsTemp;
+                    return new ListingPage(listingsTemp, null);
                 } else {
                     Point2D addressCoordinates = listingsTemp.get(0).location();
                     /* update filter with the coordinates. Create a new listing record, using all listing parameters from filter.listing() except
@@ -562,13 +768,100 @@ public class ListingService {
                     );
                 }
             }
-            List<Listing> listings = dao.getListingsByFilter(filter);
-            dao.commitTransaction();
-            return listings;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to search listings", e);
+            if (filter.nearest() != null) {
+                return searchNearestListings(filter);
+            }
+            List<Long> candidates = null; // null if no index narrowed down the search
+            if (filter.listing() != null && filter.listing().location() != null
+                    && filter.searchRadius() != null && locationIndexCurrent()) {
+                candidates = locationIndex.withinRadius(filter.listing().location(),
+                        filter.searchRadiusMeters().doubleValue());
+            }
+            if (filter.checkInDate() != null && availabilityIndexCurrent()
+                    && availabilityIndex.covers(filter.checkInDate(), filter.checkOutDate())) {
+                List<Long> available = availabilityIndex.availableListings(filter.checkInDate(), filter.checkOutDate());
+                if (candidates == null) {
+                    candidates = available;
+                } else {
+                    // keeps the nearest first order of the location index
+                    Set<Long> availableIds = new HashSet<>(available);
+                    candidates = candidates.stream().filter(availableIds::contains).toList();
+                }
+            }
+            // with too many candidates the IN list costs more than the indexes of the database, and with none the
+            // database confirms the empty result
+            filter.updateCandidateListingIds(candidates != null && !candidates.isEmpty()
+                    && candidates.size() <= MAX_INDEXED_CANDIDATES ? candidates : null);
+            return dao.getListingPageByFilter(filter);
+        });
+        rebuildStaleIndexes();
+        return page;
+    }
+
+    /*
+    The k listings nearest to the filter location that match the rest of the filter. The search starts close to the
+    location and widens until k listings qualify, so the work depends on k rather than on how many listings are around
+     */
+    private ListingPage searchNearestListings(ListingFilter filter) throws ServiceException {
+        if (filter.listing() == null || filter.listing().location() == null) {
+            throw new ServiceException("Unable to search nearest listings without a location or an address");
+        }
+        if (filter.continuationToken() != null) {
+            throw new ServiceException("Nearest listings are a single page, there is no next page to continue from");
         }
+        Point2D center = filter.listing().location();
+        int k = filter.nearest();
+        double maxRadius = filter.searchRadius() != null
+                ? Math.min(filter.searchRadiusMeters().doubleValue(), MAX_DISTANCE_METERS) : MAX_DISTANCE_METERS;
+        double radius = Math.min(NEAREST_INITIAL_RADIUS_METERS, maxRadius);
+
+        if (k <= MAX_INDEXED_CANDIDATES && locationIndexCurrent()) {
+            // the index ranks listings by distance, so only the closest few are checked against the rest of the filter
+            for (int candidateCount = k; ; candidateCount *= 4) {
+                List<ListingLocationIndex.Neighbour> neighbours = new ArrayList<>();
+                for (ListingLocationIndex.Neighbour neighbour : locationIndex.nearest(center, candidateCount)) {
+                    if (neighbour.distanceMeters() <= maxRadius) {
+                        neighbours.add(neighbour);
+                    }
+                }
+                if (neighbours.isEmpty()) {
+                    break; // the database confirms there is nothing in range
+                }
+                double reach = neighbours.get(neighbours.size() - 1).distanceMeters();
+                if (neighbours.size() > MAX_INDEXED_CANDIDATES) {
+                    // fewer than k of the closest listings qualify, widen from here with the spatial index
+                    radius = Math.max(radius, reach);
+                    break;
+                }
+                List<Long> candidates = new ArrayList<>(neighbours.size());
+                for (ListingLocationIndex.Neighbour neighbour : neighbours) {
+                    candidates.add(neighbour.listingId());
+                }
+                // any listing that is not a candidate is farther than all of them
+                ListingPage page = nearestListingPage(filter, k, Math.min(reach + 1, maxRadius), candidates);
+                if (page.listings().size() >= k || neighbours.size() < candidateCount) {
+                    return page;
+                }
+            }
+        }
+        while (true) {
+            ListingPage page = nearestListingPage(filter, k, radius, null);
+            if (page.listings().size() >= k || radius >= maxRadius) {
+                return page;
+            }
+            radius = Math.min(radius * 2, maxRadius);
+        }
+    }
+
+    // the k nearest matching listings within radiusMeters, in a single page
+    private ListingPage nearestListingPage(ListingFilter filter, int k, double radiusMeters, List<Long> candidates) {
+        ListingFilter radiusFilter = new ListingFilter.Builder(filter)
+                .withSearchRadiusMeters(BigDecimal.valueOf(radiusMeters))
+                .withPageSize(k)
+                .build();
+        radiusFilter.updateCandidateListingIds(candidates);
+        ListingPage page = dao.getListingPageByFilter(radiusFilter);
+        return new ListingPage(page.listings(), null);
     }
 
 }
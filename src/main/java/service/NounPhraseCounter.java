@@ -0,0 +1,79 @@
+package service;
+
+import data.TenantComment;
+import exception.ServiceException;
+import tool.LanguageProcessing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Extracts the noun phrases of review comments on a fixed pool of threads, one per core by default.
+The OpenNLP tokenizer, tagger and chunker are not thread-safe, so every pool thread loads and keeps its own
+LanguageProcessing. Comments are handed out in chunks and the results of all chunks are merged at the end.
+ */
+class NounPhraseCounter {
+    private static final int CHUNK_SIZE = 256;
+
+    private final ExecutorService pool;
+    private final ThreadLocal<LanguageProcessing> languageProcessing = ThreadLocal.withInitial(() -> {
+        try {
+            return new LanguageProcessing();
+        } catch (IOException e) {
+            throw new UncheckedIOException("An error occurred while trying to initialize the language processing tool", e);
+        }
+    });
+
+    NounPhraseCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    NounPhraseCounter(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "noun-phrases-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Map<review id, noun phrases in the comment>, in the order they appear and with repeats
+    Map<Long, List<String>> extract(List<TenantComment> comments) throws ServiceException {
+        List<CompletableFuture<Map<Long, List<String>>>> chunks = new ArrayList<>();
+        for (int from = 0; from < comments.size(); from += CHUNK_SIZE) {
+            List<TenantComment> chunk = comments.subList(from, Math.min(from + CHUNK_SIZE, comments.size()));
+            chunks.add(CompletableFuture.supplyAsync(() -> extractChunk(chunk), pool));
+        }
+        Map<Long, List<String>> nounPhrases = new HashMap<>();
+        try {
+            for (CompletableFuture<Map<Long, List<String>>> chunk : chunks) {
+                nounPhrases.putAll(chunk.join());
+            }
+        } catch (CompletionException e) {
+            throw new ServiceException("An error occurred while trying to extract noun phrases from comment", e.getCause());
+        }
+        return nounPhrases;
+    }
+
+    private Map<Long, List<String>> extractChunk(List<TenantComment> chunk) {
+        LanguageProcessing processing = languageProcessing.get();
+        Map<Long, List<String>> nounPhrases = new HashMap<>();
+        for (TenantComment comment : chunk) {
+            try {
+                nounPhrases.put(comment.review_id(), processing.extractNounPhrases(comment.comment()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return nounPhrases;
+    }
+}
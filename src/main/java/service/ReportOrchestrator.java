@@ -0,0 +1,142 @@
+package service;
+
+import exception.ServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/*
+Runs a set of reports as a dependency graph instead of one after another.
+Reports that query the database run on the query executor, each in its own transaction on its own pooled
+connection. Reports that are computed from other reports start on the compute pool as soon as their inputs are
+ready. A whole run therefore takes about as long as its slowest chain of reports, not the sum of all of them.
+ */
+public class ReportOrchestrator {
+    private static final Logger logger = LogManager.getLogger(ReportOrchestrator.class);
+
+    private final Executor queryExecutor;
+    private final Executor computeExecutor;
+
+    public ReportOrchestrator(Executor queryExecutor) {
+        this(queryExecutor, ForkJoinPool.commonPool());
+    }
+
+    public ReportOrchestrator(Executor queryExecutor, Executor computeExecutor) {
+        this.queryExecutor = queryExecutor;
+        this.computeExecutor = computeExecutor;
+    }
+
+    @FunctionalInterface
+    public interface ReportQuery<T> {
+        T run() throws ServiceException;
+    }
+
+    public Run newRun() {
+        return new Run();
+    }
+
+    public static final class Report<T> {
+        private final String name;
+        private final CompletableFuture<T> future;
+
+        private Report(String name, CompletableFuture<T> future) {
+            this.name = name;
+            this.future = future;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // Only valid after Run.await returned
+        public T get() {
+            return future.join();
+        }
+    }
+
+    // One refresh of the reports. Add every report, then await them all
+    public final class Run {
+        private final List<Report<?>> reports = new ArrayList<>();
+        private final Map<String, Long> timingsMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final long startNanos = System.nanoTime();
+
+        private Run() {}
+
+        public <T> Report<T> query(String name, ReportQuery<T> query) {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> timed(name, () -> {
+                try {
+                    return query.run();
+                } catch (ServiceException e) {
+                    throw new CompletionException(e);
+                }
+            }), queryExecutor);
+            return add(name, future);
+        }
+
+        public <A, B, T> Report<T> compute(String name, Report<A> first, Report<B> second, BiFunction<A, B, T> function) {
+            CompletableFuture<T> future = first.future.thenCombineAsync(second.future,
+                    (a, b) -> timed(name, () -> function.apply(a, b)), computeExecutor);
+            return add(name, future);
+        }
+
+        // Waits for every report. Returns how long each report took, in milliseconds, in the order they were added
+        public Map<String, Long> await() throws ServiceException {
+            try {
+                CompletableFuture.allOf(reports.stream().map(report -> report.future).toArray(CompletableFuture[]::new)).join();
+            } catch (CompletionException e) {
+                for (Report<?> report : reports) {
+                    if (report.future.isCompletedExceptionally()) {
+                        Throwable cause = unwrap(report.future);
+                        if (cause instanceof ServiceException serviceException) {
+                            throw serviceException;
+                        }
+                        throw new ServiceException(String.format("Unable to run report %s", report.name), cause);
+                    }
+                }
+                throw new ServiceException("Unable to run reports", e.getCause());
+            }
+            Map<String, Long> timings = new LinkedHashMap<>();
+            for (Report<?> report : reports) {
+                timings.put(report.name, timingsMillis.get(report.name));
+            }
+            logger.debug("Reports finished in {} ms: {}", (System.nanoTime() - startNanos) / 1_000_000, timings);
+            return timings;
+        }
+
+        private <T> Report<T> add(String name, CompletableFuture<T> future) {
+            Report<T> report = new Report<>(name, future);
+            reports.add(report);
+            return report;
+        }
+
+        private <T> T timed(String name, Supplier<T> report) {
+            long start = System.nanoTime();
+            try {
+                return report.get();
+            } finally {
+                timingsMillis.put(name, (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+
+        private Throwable unwrap(CompletableFuture<?> future) {
+            try {
+                future.join();
+                return null;
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                return cause instanceof CompletionException ? cause.getCause() : cause;
+            }
+        }
+    }
+}
@@ -1,83 +1,73 @@
 package service;
 
 import data.Dao;
+import data.ListingLocationCounts;
+import data.TenantComment;
 import exception.ServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import domain.*;
-import tool.LanguageProcessing;
 
 public class ReportService {
+    private static final Logger logger = LogManager.getLogger(ReportService.class);
     private final Dao dao;
-    private final LanguageProcessing languageProcessing;
+    private final TransactionExecutor transactions;
+    private final NounPhraseCounter nounPhraseCounter = new NounPhraseCounter();
 
     public ReportService(Dao dao) {
+        this(dao, new TransactionExecutor(dao));
+    }
+
+    public ReportService(Dao dao, TransactionExecutor transactions) {
         this.dao = dao;
-        try {
-            this.languageProcessing = new LanguageProcessing();
-        } catch (IOException e) {
-            throw new RuntimeException("An error occurred while trying to initialize the language processing tool", e);
-        }
+        this.transactions = transactions;
     }
 
     public Map<String, Long> getNumberOfBookingsInDateRangePerCity(LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfBookingsInDateRangePerCity", "An error occurred while trying to get number of bookings by date range and city", () -> {
             Map<String, Long> res = dao.getNumberOfBookingsInDateRangePerCity(startDate, endDate);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get number of bookings by date range and city", e);
-        }
+        });
     }
 
     public Map<String, Map<String, Long>> getNumberOfBookingsInDateRangePerPostalCodePerCity(LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfBookingsInDateRangePerPostalCodePerCity", "An error occurred while trying to get number of bookings by date range and city", () -> {
             Map<String, Map<String, Long>> res = dao.getNumberOfBookingsInDateRangePerPostalCodePerCity(startDate, endDate);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get number of bookings by date range and city", e);
-        }
+        });
+    }
+
+    // Listings per country, per city and per postal code, all from one aggregate query
+    public ListingLocationCounts getListingLocationCounts() throws ServiceException {
+        return transactions.inReadOnlyTransaction("ReportService.getListingLocationCounts", "An error occurred while trying to count listings by location",
+                dao::getListingLocationCounts);
     }
 
     public Map<String, Long> getNumberOfListingsPerCountry(List<Listing> allListings) throws ServiceException {
-        try {
-            dao.startTransaction();  // Begin transaction
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCountry", "An error occurred while trying to get number of listings per country", () -> {
             Map<String, Long> res = new HashMap<>();
-            for (Listing listing : allListings) {
+            Consumer<Listing> countListing = listing -> {
                 if (res.containsKey(listing.country())) {
                     res.put(listing.country(), res.get(listing.country()) + 1);
                 } else {
                     res.put(listing.country(), 1L);
                 }
-            }
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
+            };
+            allListings.forEach(countListing);
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to get number of listings per country", e);
-        }
+        });
     }
 
     public Map<String, Map<String, Long>> getNumberOfListingsPerCityPerCountry(List<Listing> allListings) throws ServiceException {
-        try {
-            dao.startTransaction();
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCityPerCountry", "An error occurred while trying to get number of listings per city per country", () -> {
             Map<String, Map<String, Long>> res = new HashMap<>();
-            for (Listing listing : allListings) {
+            Consumer<Listing> countListing = listing -> {
                 if (res.containsKey(listing.country())) {
                     Map<String, Long> cityMap = res.get(listing.country());
                     if (cityMap.containsKey(listing.city())) {
@@ -90,23 +80,16 @@ public class ReportService {
                     cityMap.put(listing.city(), 1L);
                     res.put(listing.country(), cityMap);
                 }
-            }
-            dao.commitTransaction();
+            };
+            allListings.forEach(countListing);
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of listings per city per country", e);
-        }
+        });
     }
 
     public Map<String, Map<String, Map<String, Long>>> getNumberOfListingsPerPostalCodePerCityPerCountry(List<Listing> allListings) throws ServiceException {
-        try {
-            dao.startTransaction();
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerPostalCodePerCityPerCountry", "An error occurred while trying to get number of listings per city per country per postal code", () -> {
             Map<String, Map<String, Map<String, Long>>> res = new HashMap<>();
-            for (Listing listing : allListings) {
+            Consumer<Listing> countListing = listing -> {
                 if (res.containsKey(listing.country())) {
                     Map<String, Map<String, Long>> cityMap = res.get(listing.country());
                     if (cityMap.containsKey(listing.city())) {
@@ -128,83 +111,57 @@ public class ReportService {
                     cityMap.put(listing.city(), postalCodeMap);
                     res.put(listing.country(), cityMap);
                 }
-            }
-            dao.commitTransaction();
+            };
+            allListings.forEach(countListing);
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of listings per city per country per postal code", e);
-        }
+        });
     }
 
     // Map<User, Map<Country, numberOfListings>>
     public Map<User, Map<String, Long>> getNumberOfListingsPerCountryPerHost(List<Listing> allListings) throws ServiceException {
-        try {
-            dao.startTransaction();
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
-            Map<User, Map<String, Long>> res = new HashMap<>();
-            for (Listing listing : allListings) {
-                User host = dao.getUser(listing.users_sin());
-                if (res.containsKey(host)) {
-                    Map<String, Long> countryMap = res.get(host);
-                    if (countryMap.containsKey(listing.country())) {
-                        countryMap.put(listing.country(), countryMap.get(listing.country()) + 1);
-                    } else {
-                        countryMap.put(listing.country(), 1L);
-                    }
-                } else {
-                    Map<String, Long> countryMap = new HashMap<>();
-                    countryMap.put(listing.country(), 1L);
-                    res.put(host, countryMap);
-                }
-            }
-            dao.commitTransaction();
-            return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of listings per country per host", e);
-        }
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCountryPerHost", "An error occurred while trying to get number of listings per country per host",
+                () -> sumPerCountry(countListingsPerCityPerCountryPerHost(allListings)));
+    }
+
+    // The same counts for every listing, with the database doing the counting
+    public Map<User, Map<String, Long>> getNumberOfListingsPerCountryPerHost() throws ServiceException {
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCountryPerHost", "An error occurred while trying to get number of listings per country per host",
+                () -> sumPerCountry(dao.getNumberOfListingsPerCityPerCountryPerHost()));
     }
 
     public Map<User, Map<String, Map<String, Long>>> getNumberOfListingsPerCityPerCountryPerHost(List<Listing> allListings) throws ServiceException {
-        try {
-            dao.startTransaction();
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
-            Map<User, Map<String, Map<String, Long>>> res = new HashMap<>();
-            for (Listing listing : allListings) {
-                User host = dao.getUser(listing.users_sin());
-                if (res.containsKey(host)) {
-                    Map<String, Map<String, Long>> countryMap = res.get(host);
-                    if (countryMap.containsKey(listing.country())) {
-                        Map<String, Long> cityMap = countryMap.get(listing.country());
-                        if (cityMap.containsKey(listing.city())) {
-                            cityMap.put(listing.city(), cityMap.get(listing.city()) + 1);
-                        } else {
-                            cityMap.put(listing.city(), 1L);
-                        }
-                    } else {
-                        Map<String, Long> cityMap = new HashMap<>();
-                        cityMap.put(listing.city(), 1L);
-                        countryMap.put(listing.country(), cityMap);
-                    }
-                } else {
-                    Map<String, Map<String, Long>> countryMap = new HashMap<>();
-                    Map<String, Long> cityMap = new HashMap<>();
-                    cityMap.put(listing.city(), 1L);
-                    countryMap.put(listing.country(), cityMap);
-                    res.put(host, countryMap);
-                }
-            }
-            dao.commitTransaction();
-            return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of listings per city per country per host", e);
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCityPerCountryPerHost", "An error occurred while trying to get number of listings per city per country per host",
+                () -> countListingsPerCityPerCountryPerHost(allListings));
+    }
+
+    // The same counts for every listing, with the database returning one row per host and city
+    public Map<User, Map<String, Map<String, Long>>> getNumberOfListingsPerCityPerCountryPerHost() throws ServiceException {
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfListingsPerCityPerCountryPerHost", "An error occurred while trying to get number of listings per city per country per host",
+                dao::getNumberOfListingsPerCityPerCountryPerHost);
+    }
+
+    private static Map<User, Map<String, Long>> sumPerCountry(Map<User, Map<String, Map<String, Long>>> perCityPerHost) {
+        Map<User, Map<String, Long>> res = new HashMap<>();
+        perCityPerHost.forEach((host, countryMap) -> {
+            Map<String, Long> perCountry = new HashMap<>();
+            countryMap.forEach((country, cityMap) -> perCountry.put(country,
+                    cityMap.values().stream().mapToLong(Long::longValue).sum()));
+            res.put(host, perCountry);
+        });
+        return res;
+    }
+
+    // Must be used within a transaction
+    private Map<User, Map<String, Map<String, Long>>> countListingsPerCityPerCountryPerHost(List<Listing> allListings) {
+        // resolve every host with a few batched queries instead of one query per listing
+        Map<Long, User> hosts = dao.getUsersBySins(allListings.stream().map(Listing::users_sin).collect(Collectors.toSet()));
+        Map<User, Map<String, Map<String, Long>>> res = new HashMap<>();
+        for (Listing listing : allListings) {
+            res.computeIfAbsent(hosts.get(listing.users_sin()), host -> new HashMap<>())
+                    .computeIfAbsent(listing.country(), country -> new HashMap<>())
+                    .merge(listing.city(), 1L, Long::sum);
         }
+        return res;
     }
 
     // Map<String, Map<String, Map<String, Long>>>
@@ -246,97 +203,100 @@ public class ReportService {
     }
 
     public Map<User, Long> getNumberOfBookingsInDateRangePerRenter(LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfBookingsInDateRangePerRenter", "An error occurred while trying to get number of bookings in date range per renter", () -> {
             Map<User, Long> res = dao.getNumberOfBookingsInDateRangePerRenter(startDate, endDate);
-            dao.commitTransaction();
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of bookings in date range per renter", e);
-        }
+        });
     }
 
     public Map<String, Map<User, Long>> getNumberOfBookingsInDateRangePerRenterPerCity(LocalDate startDate, LocalDate endDate) throws ServiceException {
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfBookingsInDateRangePerRenterPerCity", "An error occurred while trying to get number of bookings in date range per renter per city", () -> {
             Map<String, Map<User, Long>> res = dao.getNumberOfBookingsInDateRangePerRenterPerCity(startDate, endDate);
-            dao.commitTransaction();
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of bookings in date range per renter per city", e);
-        }
+        });
     }
 
     public Map<User, Long> getNumberOfCancelledBookingsInDateRangePerRenter(LocalDate startDate, LocalDate endDate) throws ServiceException{
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfCancelledBookingsInDateRangePerRenter", "An error occurred while trying to get number of cancelled bookings in date range per renter", () -> {
             Map<User, Long> res = dao.getNumberOfCancelledBookingsInDateRangePerRenter(startDate, endDate);
-            dao.commitTransaction();
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of cancelled bookings in date range per renter", e);
-        }
+        });
     }
 
     public Map<User, Long> getNumberOfCancelledBookingsInDateRangePerHost(LocalDate startDate, LocalDate endDate) throws ServiceException{
-        try {
-            dao.startTransaction();
+        return transactions.inReadOnlyTransaction("ReportService.getNumberOfCancelledBookingsInDateRangePerHost", "An error occurred while trying to get number of cancelled bookings in date range per host", () -> {
             Map<User, Long> res = dao.getNumberOfCancelledBookingsInDateRangePerHost(startDate, endDate);
-            dao.commitTransaction();
             return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get number of cancelled bookings in date range per host", e);
-        }
+        });
     }
 
+    /*
+    Only comments that are new or changed since their noun phrases were last cached go through language processing.
+    The phrases of all other comments come from the review_noun_phrases table
+     */
     public Map<Listing, Map<String, Long>> getMostPopularNounPhrasesPerListing(List<Listing> allListings) throws ServiceException {
+        String errorMessage = "An error occurred while trying to get most popular noun phrases per listing";
+        // read everything in one short transaction, so that none is held open while the comments are processed
+        List<TenantComment> comments = new ArrayList<>();
+        List<Listing> listings = transactions.inReadOnlyTransaction("ReportService.getMostPopularNounPhrasesPerListing", errorMessage, () -> {
+            comments.clear(); // in case the transaction is retried
+            dao.forEachTenantComment(comments::add);
+            return allListings;
+        });
+
+        List<TenantComment> uncached = comments.stream().filter(comment -> comment.noun_phrases() == null).collect(Collectors.toList());
+        Map<Long, List<String>> extracted;
         try {
-            dao.startTransaction();
-            if (allListings == null) {
-                allListings = dao.getListings();
-            }
-            Map<Listing, Map<String, Long>> res = new LinkedHashMap<>(); // ensures order of listings
-            for (Listing listing : allListings) {
-                List<Review> reviews = dao.getReviewsOfListing(listing.listing_id());
-                List<String> commentsFromTenant = reviews.stream().map(Review::comment_from_tenant).collect(Collectors.toList());
-                // extract the noun phrases from the comments, and count the number of occurrences
-                Map<String, Long> nounPhrases = new HashMap<>(); // key: number of occurrences, value: noun phrase
-                for (String comment : commentsFromTenant) {
-                    if (comment != null && !comment.isEmpty()) {
-                        List<String> nounPhrasesInComment = new ArrayList<>();
-                        try {
-                            nounPhrasesInComment = languageProcessing.extractNounPhrases(comment);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            throw new ServiceException("An error occurred while trying to extract noun phrases from comment", e);
-                        }
-                        for (String nounPhrase : nounPhrasesInComment) {
-                            if (nounPhrases.containsKey(nounPhrase)) {
-                                nounPhrases.put(nounPhrase, nounPhrases.get(nounPhrase) + 1);
-                            } else {
-                                nounPhrases.put(nounPhrase, 1L);
-                            }
-                        }
-                    }
-                }
-                // sort the noun phrases by number of occurrences
-                nounPhrases = nounPhrases.entrySet().stream()
-                        .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                        .collect(Collectors.toMap(
-                                Map.Entry::getKey,
-                                Map.Entry::getValue,
-                                (oldValue, newValue) -> oldValue, LinkedHashMap::new));
-                res.put(listing, nounPhrases);
+            extracted = nounPhraseCounter.extract(uncached);
+        } catch (ServiceException e) {
+            throw new ServiceException(errorMessage, e);
+        }
+        cacheNounPhrases(uncached, extracted);
+
+        Map<Long, Map<String, Long>> nounPhrasesPerListing = new HashMap<>();
+        for (TenantComment comment : comments) {
+            List<String> nounPhrases = comment.noun_phrases() == null
+                    ? extracted.get(comment.review_id())
+                    : decodeNounPhrases(comment.noun_phrases());
+            Map<String, Long> listingCounts = nounPhrasesPerListing.computeIfAbsent(comment.listing_id(), key -> new HashMap<>());
+            for (String nounPhrase : nounPhrases) {
+                listingCounts.merge(nounPhrase, 1L, Long::sum);
             }
-            dao.commitTransaction();
-            return res;
-        } catch (Exception e) {
-            dao.rollbackTransaction();
-            throw new ServiceException("An error occurred while trying to get most popular noun phrases per listing", e);
         }
+
+        Map<Listing, Map<String, Long>> res = new LinkedHashMap<>(); // ensures order of listings
+        for (Listing listing : listings) {
+            Map<String, Long> nounPhrases = nounPhrasesPerListing.getOrDefault(listing.listing_id(), Map.of());
+            // sort the noun phrases by number of occurrences
+            res.put(listing, nounPhrases.entrySet().stream()
+                    .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
+                    .collect(Collectors.toMap(
+                            Map.Entry::getKey,
+                            Map.Entry::getValue,
+                            (oldValue, newValue) -> oldValue, LinkedHashMap::new)));
+        }
+        return res;
+    }
+
+    // The cache only saves work on the next run, so failing to write it doesn't fail the report
+    private void cacheNounPhrases(List<TenantComment> comments, Map<Long, List<String>> extracted) {
+        if (comments.isEmpty()) {
+            return;
+        }
+        List<TenantComment> entries = new ArrayList<>(comments.size());
+        for (TenantComment comment : comments) {
+            entries.add(new TenantComment(comment.review_id(), comment.listing_id(), comment.comment(),
+                    String.join("\n", extracted.get(comment.review_id()))));
+        }
+        try {
+            transactions.runInTransaction("ReportService.cacheNounPhrases", "Unable to cache noun phrases",
+                    () -> dao.saveReviewNounPhrases(entries));
+        } catch (ServiceException e) {
+            logger.warn("Unable to cache noun phrases of {} comments", entries.size(), e);
+        }
+    }
+
+    private static List<String> decodeNounPhrases(String nounPhrases) {
+        return nounPhrases.isEmpty() ? List.of() : Arrays.asList(nounPhrases.split("\n"));
     }
 }
@@ -0,0 +1,63 @@
+package service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Executors for the asynchronous service API.
+On a JDK with virtual threads, every call runs on its own virtual thread, so thousands of callers can wait on JDBC
+without holding a platform thread each. The project still compiles for Java 17, so the factory method is looked up
+at runtime, and on older JDKs calls run on a fixed pool of daemon platform threads instead.
+Either way, a call runs start to finish on a single thread, so the connection Dao keeps in its thread local
+belongs to exactly one call for the duration of its transaction.
+ */
+public final class ServiceExecutors {
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadPerTaskExecutor();
+
+    private ServiceExecutors() {}
+
+    public static boolean virtualThreadsAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    public static ExecutorService newPerTaskExecutor() {
+        return newPerTaskExecutor(Math.max(32, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    // fallbackThreads is the pool size used when virtual threads are not available
+    public static ExecutorService newPerTaskExecutor(int fallbackThreads) {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Unable to create virtual thread executor", e);
+            }
+        }
+        return Executors.newFixedThreadPool(fallbackThreads, new DaemonThreadFactory());
+    }
+
+    private static MethodHandle findVirtualThreadPerTaskExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "service-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package service;
+
+import data.Dao;
+import exception.ServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Runs service operations inside a dao transaction: starts it, commits when the work returns, and rolls back and
+wraps the failure in a ServiceException otherwise.
+Transactions that fail because InnoDB picked them as a deadlock victim or gave up waiting for a row lock are
+rolled back and run again from the start, after an exponentially growing, randomly jittered pause, as long as
+attempts and the total retry time budget allow. Any other failure is not retried.
+The work passed in may therefore run more than once and must not have effects outside the transaction
+before it commits.
+ */
+public class TransactionExecutor {
+    private static final Logger logger = LogManager.getLogger(TransactionExecutor.class);
+
+    private static final String SERIALIZATION_FAILURE_STATE = "40001";
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+
+    private final Dao dao;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long retryBudgetMillis;
+
+    private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> exhausted = new ConcurrentHashMap<>();
+
+    public TransactionExecutor(Dao dao) {
+        this(dao, 5, 20, 1000, 5000);
+    }
+
+    public TransactionExecutor(Dao dao, int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, long retryBudgetMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.dao = dao;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.retryBudgetMillis = retryBudgetMillis;
+    }
+
+    @FunctionalInterface
+    public interface TransactionWork<T> {
+        T execute() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface TransactionAction {
+        void execute() throws Exception;
+    }
+
+    public <T> T inTransaction(String operation, String errorMessage, TransactionWork<T> work) throws ServiceException {
+        return execute(operation, errorMessage, false, work);
+    }
+
+    public <T> T inReadOnlyTransaction(String operation, String errorMessage, TransactionWork<T> work) throws ServiceException {
+        return execute(operation, errorMessage, true, work);
+    }
+
+    public void runInTransaction(String operation, String errorMessage, TransactionAction action) throws ServiceException {
+        execute(operation, errorMessage, false, asWork(action));
+    }
+
+    public void runInReadOnlyTransaction(String operation, String errorMessage, TransactionAction action) throws ServiceException {
+        execute(operation, errorMessage, true, asWork(action));
+    }
+
+    // Number of retries per operation since startup
+    public Map<String, Long> getRetryCounts() {
+        return snapshot(retries);
+    }
+
+    // Number of operations per operation name that still failed after using up their retries
+    public Map<String, Long> getExhaustedRetryCounts() {
+        return snapshot(exhausted);
+    }
+
+    private <T> T execute(String operation, String errorMessage, boolean readOnly, TransactionWork<T> work) throws ServiceException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryBudgetMillis);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (readOnly) {
+                    dao.startReadOnlyTransaction();
+                } else {
+                    dao.startTransaction();
+                }
+                T result = work.execute();
+                dao.commitTransaction();
+                return result;
+            } catch (Exception e) {
+                dao.rollbackTransaction();
+                if (!isTransient(e)) {
+                    throw new ServiceException(errorMessage, e);
+                }
+                long backoffMillis = backoffMillis(attempt);
+                if (attempt >= maxAttempts
+                        || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) > deadline) {
+                    counter(exhausted, operation).increment();
+                    logger.warn("{} failed after {} attempts: {}", operation, attempt, e.getMessage());
+                    throw new ServiceException(errorMessage, e);
+                }
+                counter(retries, operation).increment();
+                logger.debug("Retrying {} in {} ms after attempt {} failed: {}", operation, backoffMillis, attempt, e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceException(errorMessage, e);
+                }
+            }
+        }
+    }
+
+    // "Full jitter": a random pause between zero and the exponential backoff for this attempt
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // Deadlocks and lock wait timeouts only fail the current attempt. The whole transaction can safely run again
+    static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException sqlException) {
+                if (SERIALIZATION_FAILURE_STATE.equals(sqlException.getSQLState())
+                        || sqlException.getErrorCode() == ER_LOCK_DEADLOCK
+                        || sqlException.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                    return true;
+                }
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private static TransactionWork<Void> asWork(TransactionAction action) {
+        return () -> {
+            action.execute();
+            return null;
+        };
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String operation) {
+        return counters.computeIfAbsent(operation, key -> new LongAdder());
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((operation, count) -> snapshot.put(operation, count.sum()));
+        return snapshot;
+    }
+}
@@ -8,19 +8,27 @@ import exception.ServiceException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class UserService {
     private final Dao dao;
+    private final TransactionExecutor transactions;
     private static final Logger logger = LogManager.getLogger(UserService.class);
 
     public UserService(Dao dao) {
+        this(dao, new TransactionExecutor(dao));
+    }
+
+    public UserService(Dao dao, TransactionExecutor transactions) {
         this.dao = dao;
+        this.transactions = transactions;
     }
 
     public Long addUser(User user) throws ServiceException{
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inTransaction("UserService.addUser", "An error occurred while trying to add user", () -> {
             if (dao.userExists(user.sin())) {
                 throw new ServiceException(
                         String.format(
@@ -29,17 +37,38 @@ public class UserService {
                 );
             }
             Long sin = dao.insertUser(user);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return sin;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to add user", e);
-        }
+        });
+    }
+
+    // Adds all users in one transaction, or none of them if any user is invalid. Returns the sins of the added users
+    public List<Long> addUsers(List<User> users) throws ServiceException{
+        return transactions.inTransaction("UserService.addUsers", "An error occurred while trying to add users", () -> {
+            Set<Long> sins = new LinkedHashSet<>();
+            for (User user : users) {
+                if (!sins.add(user.sin())) {
+                    throw new ServiceException(
+                            String.format(
+                                    "Unable to add users because user with SIN %d appears more than once", user.sin()
+                            )
+                    );
+                }
+            }
+            Set<Long> existingSins = dao.getExistingUserSins(sins);
+            if (!existingSins.isEmpty()) {
+                throw new ServiceException(
+                        String.format(
+                                "Unable to add users because users with SIN %s already exist", existingSins
+                        )
+                );
+            }
+            dao.insertUsers(users);
+            return new ArrayList<>(sins);
+        });
     }
 
     public void deleteUser(Long sin) throws ServiceException{
-        try {
-            dao.startTransaction();  // Begin transaction
+        transactions.runInTransaction("UserService.deleteUser", "An error occurred while trying to delete user", () -> {
             if (!dao.userExists(sin)) {
                 throw new ServiceException(
                         String.format(
@@ -64,34 +93,20 @@ public class UserService {
                 );
             }
             dao.deleteUser(sin);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to delete user", e);
-        }
+        });
     }
 
     public List<User> getUsers() throws ServiceException{
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("UserService.getUsers", "An error occurred while trying to show users", () -> {
             List<User> users = dao.getUsers();
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return users;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to show users", e);
-        }
+        });
     }
 
     public boolean userExists(Long sin) throws ServiceException{
-        try {
-            dao.startTransaction();  // Begin transaction
+        return transactions.inReadOnlyTransaction("UserService.userExists", "An error occurred while trying to check if user exists", () -> {
             boolean exists = dao.userExists(sin);
-            dao.commitTransaction();  // Commit transaction if all operations succeeded
             return exists;
-        } catch (Exception e) {
-            dao.rollbackTransaction();  // Rollback transaction if any operation failed
-            throw new ServiceException("An error occurred while trying to check if user exists", e);
-        }
+        });
     }
 }
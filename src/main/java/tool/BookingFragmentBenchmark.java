@@ -0,0 +1,133 @@
+package tool;
+
+import data.Dao;
+import data.DbConfig;
+import domain.Availability;
+import domain.Booking;
+import domain.Listing;
+import domain.User;
+import mylogger.ConsoleLogger;
+
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+Measures how booking latency grows with the number of availability fragments of a listing, by default 1, 10, 100
+and 1000. For each count, one listing gets that many two-night availabilities with a free night between them, and
+random nights are booked out of them. Every booking is rolled back, so the listing keeps its fragment count.
+Three steps are timed: finding the fragment that contains the stay by loading every availability of the listing, as
+booking used to, finding and locking it through the listing/dates index, and the whole add_booking procedure.
+Drops and recreates every table of the configured database, so it only runs when given --reset.
+Usage: BookingFragmentBenchmark --reset [fragment count...]
+ */
+public class BookingFragmentBenchmark {
+    private static final int BOOKINGS = 200;
+    private static final int WARMUP_BOOKINGS = 20;
+    private static final long HOST_SIN = 100_000_000L;
+    private static final long TENANT_SIN = 100_000_001L;
+    private static final LocalDate FIRST_NIGHT = LocalDate.now().plusDays(30);
+
+    private final Dao dao;
+    private final Random random = new Random(42);
+
+    @FunctionalInterface
+    private interface Step {
+        void run(long listingId, LocalDate night);
+    }
+
+    public BookingFragmentBenchmark(Dao dao) {
+        this.dao = dao;
+        dao.startTransaction();
+        dao.insertUser(new User(HOST_SIN, "Benchmark Host", "1 Benchmark St", LocalDate.of(1990, 1, 1), "Host"));
+        dao.insertUser(new User(TENANT_SIN, "Benchmark Tenant", "2 Benchmark St", LocalDate.of(1990, 1, 1), "Tenant"));
+        dao.commitTransaction();
+    }
+
+    // a new listing with fragmentCount availabilities, fragment i covering nights 3i and 3i + 1
+    public long listingWithFragments(int fragmentCount) {
+        dao.startTransaction();
+        Long listingId = dao.insertListing(new Listing(null, "House", fragmentCount + " Fragment Ave", "F" + fragmentCount,
+                new Point2D.Double(-79.4, 43.7), "Benchmark", "Benchmark", HOST_SIN));
+        List<Availability> availabilities = new ArrayList<>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            availabilities.add(new Availability(null, FIRST_NIGHT.plusDays(3L * i), FIRST_NIGHT.plusDays(3L * i + 2),
+                    new BigDecimal("100.00"), listingId));
+        }
+        dao.insertAvailabilities(availabilities);
+        dao.commitTransaction();
+        return listingId;
+    }
+
+    public void measure(int fragmentCount) {
+        long listingId = listingWithFragments(fragmentCount);
+        long[] scan = measure(listingId, fragmentCount, this::scanForFragment);
+        long[] indexed = measure(listingId, fragmentCount, (listing, night) -> dao.getAffectedAvailability(listing, night, night.plusDays(1)));
+        long[] booking = measure(listingId, fragmentCount, (listing, night) -> dao.addBooking(new Booking(null, night,
+                night.plusDays(1), LocalDate.now(), null, "visa", 1324567890123456L, TENANT_SIN, listing)));
+        System.out.printf("%,d fragments: scan p50 %.2f ms, p95 %.2f ms | indexed p50 %.2f ms, p95 %.2f ms | add_booking p50 %.2f ms, p95 %.2f ms%n",
+                fragmentCount, percentile(scan, 0.50), percentile(scan, 0.95), percentile(indexed, 0.50),
+                percentile(indexed, 0.95), percentile(booking, 0.50), percentile(booking, 0.95));
+    }
+
+    // the lookup booking did before it used the index: every availability of the listing, searched in Java
+    private void scanForFragment(long listingId, LocalDate night) {
+        for (Availability availability : dao.getAvailabilitiesOfListing(listingId, LocalDate.of(1000, 1, 1))) {
+            if (!availability.start_date().isAfter(night) && availability.end_date().isAfter(night)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("No availability contains " + night);
+    }
+
+    // sorted latencies of the step, each run in its own transaction and rolled back
+    private long[] measure(long listingId, int fragmentCount, Step step) {
+        long[] latencies = new long[BOOKINGS];
+        for (int i = -WARMUP_BOOKINGS; i < BOOKINGS; i++) {
+            LocalDate night = FIRST_NIGHT.plusDays(3L * random.nextInt(fragmentCount) + random.nextInt(2));
+            long start = System.nanoTime();
+            dao.startTransaction();
+            try {
+                step.run(listingId, night);
+            } finally {
+                dao.rollbackTransaction();
+            }
+            if (i >= 0) {
+                latencies[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static double percentile(long[] sortedNanos, double fraction) {
+        return sortedNanos[(int) Math.min(sortedNanos.length - 1, sortedNanos.length * fraction)] / 1e6;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0 || !args[0].equals("--reset")) {
+            System.out.println("Usage: BookingFragmentBenchmark --reset [fragment count...]");
+            System.out.println("Drops and recreates every table of the database before running");
+            return;
+        }
+        ConsoleLogger.setup();
+        int[] fragmentCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).sorted().toArray()
+                : new int[] {1, 10, 100, 1000};
+
+        new DbConfig().resetTables();
+        Dao dao = new Dao();
+        try {
+            BookingFragmentBenchmark benchmark = new BookingFragmentBenchmark(dao);
+            for (int fragmentCount : fragmentCounts) {
+                benchmark.measure(fragmentCount);
+            }
+        } finally {
+            dao.shutdown(5000);
+        }
+    }
+}
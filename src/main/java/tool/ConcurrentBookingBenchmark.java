@@ -0,0 +1,217 @@
+package tool;
+
+import data.Dao;
+import data.DbConfig;
+import domain.Availability;
+import domain.Booking;
+import domain.Listing;
+import domain.Review;
+import domain.User;
+import exception.ServiceException;
+import mylogger.ConsoleLogger;
+import service.BookingCoordinator;
+import service.BookingService;
+import service.TransactionExecutor;
+
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Books from many threads at once, first through the sequence of queries booking used to make, then through the
+add_booking procedure, then through the BookingCoordinator, which runs the bookings of a listing one at a time, and
+prints the throughput, latency percentiles and deadlock retries of each. The threads share a few listings, so
+bookings of the same listing contend for its locks, or for its coordinator stripe. Every booking takes the first
+night of its own two-night availability, so none of them fail for lack of availability and every run does the same
+work.
+Drops and recreates every table of the configured database, so it only runs when given --reset.
+Usage: ConcurrentBookingBenchmark --reset [threads, default 16] [bookings per thread, default 50] [listings, default 4]
+ */
+public class ConcurrentBookingBenchmark {
+    private static final long HOST_SIN = 100_000_000L;
+    private static final long FIRST_TENANT_SIN = 100_000_001L;
+    private static final LocalDate FIRST_NIGHT = LocalDate.now().plusDays(30);
+
+    private final Dao dao;
+    private final int threads;
+    private final int bookingsPerThread;
+    private final int listingCount;
+
+    @FunctionalInterface
+    private interface BookingPath {
+        Long book(Booking booking) throws ServiceException;
+    }
+
+    public ConcurrentBookingBenchmark(Dao dao, int threads, int bookingsPerThread, int listingCount) {
+        this.dao = dao;
+        this.threads = threads;
+        this.bookingsPerThread = bookingsPerThread;
+        this.listingCount = listingCount;
+        dao.startTransaction();
+        dao.insertUser(new User(HOST_SIN, "Benchmark Host", "1 Benchmark St", LocalDate.of(1990, 1, 1), "Host"));
+        for (int i = 0; i < threads; i++) {
+            dao.insertUser(new User(FIRST_TENANT_SIN + i, "Benchmark Tenant " + i, i + " Tenant St",
+                    LocalDate.of(1990, 1, 1), "Tenant"));
+        }
+        dao.commitTransaction();
+    }
+
+    // new listings with enough two-night availabilities, fragment i covering nights 3i and 3i + 1, for every booking
+    private long[] listings(String name) {
+        int fragments = threads * bookingsPerThread;
+        long[] listingIds = new long[listingCount];
+        dao.startTransaction();
+        for (int l = 0; l < listingCount; l++) {
+            listingIds[l] = dao.insertListing(new Listing(null, "House", l + " " + name + " Ave", "B" + l,
+                    new Point2D.Double(-79.4, 43.7), "Benchmark", "Benchmark", HOST_SIN));
+            List<Availability> availabilities = new ArrayList<>(fragments);
+            for (int i = 0; i < fragments; i++) {
+                availabilities.add(new Availability(null, FIRST_NIGHT.plusDays(3L * i), FIRST_NIGHT.plusDays(3L * i + 2),
+                        new BigDecimal("100.00"), listingIds[l]));
+            }
+            dao.insertAvailabilities(availabilities);
+        }
+        dao.commitTransaction();
+        return listingIds;
+    }
+
+    public void measure(String name, TransactionExecutor transactions, BookingPath path) throws InterruptedException {
+        long[] listingIds = listings(name);
+        AtomicInteger[] nextFragment = new AtomicInteger[listingCount];
+        for (int l = 0; l < listingCount; l++) {
+            nextFragment[l] = new AtomicInteger();
+        }
+        long[] latenciesNanos = new long[threads * bookingsPerThread];
+        LongAdder failedBookings = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                Random random = new Random(42 + thread);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < bookingsPerThread; i++) {
+                    int listing = random.nextInt(listingCount);
+                    LocalDate night = FIRST_NIGHT.plusDays(3L * nextFragment[listing].getAndIncrement());
+                    long startNanos = System.nanoTime();
+                    try {
+                        path.book(new Booking(null, night, night.plusDays(1), LocalDate.now(), null, "visa",
+                                1324567890123456L, FIRST_TENANT_SIN + thread, listingIds[listing]));
+                    } catch (ServiceException e) {
+                        failedBookings.increment();
+                    }
+                    latenciesNanos[thread * bookingsPerThread + i] = System.nanoTime() - startNanos;
+                }
+            });
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+
+        Arrays.sort(latenciesNanos);
+        long retries = transactions.getRetryCounts().values().stream().mapToLong(Long::longValue).sum();
+        System.out.printf("%s: %d bookings (%d failed, %d retried) in %.2f s: %.1f bookings/s%n",
+                name, latenciesNanos.length, failedBookings.sum(), retries, seconds, latenciesNanos.length / seconds);
+        System.out.printf("latency ms  p50: %.2f  p95: %.2f  p99: %.2f  max: %.2f%n",
+                percentile(latenciesNanos, 0.50), percentile(latenciesNanos, 0.95), percentile(latenciesNanos, 0.99),
+                percentile(latenciesNanos, 1.0));
+    }
+
+    // the queries booking made before the add_booking procedure, one round trip each
+    private static Long bookSequentially(Dao dao, TransactionExecutor transactions, Booking booking) throws ServiceException {
+        return transactions.inTransaction("ConcurrentBookingBenchmark.bookSequentially", "Unable to insert booking.", () -> {
+            if (dao.bookingExists(booking.listings_listing_id(), booking.start_date(), booking.end_date())) {
+                throw new ServiceException("Booking already exists for the given date range.");
+            }
+            if (!dao.listingIdExists(booking.listings_listing_id())) {
+                throw new ServiceException(String.format("listing with id, %d, does not exist.", booking.listings_listing_id()));
+            }
+            if (!dao.userExists(booking.tenant_sin())) {
+                throw new ServiceException(String.format("user with sin, %d, does not exist.", booking.tenant_sin()));
+            }
+            if (dao.getListingById(booking.listings_listing_id()).users_sin().equals(booking.tenant_sin())) {
+                throw new ServiceException(String.format("Cannot book! User with sin, %d, is a host.", booking.tenant_sin()));
+            }
+
+            Availability affected = dao.getAffectedAvailability(booking.listings_listing_id(), booking.start_date(), booking.end_date());
+            dao.deleteAvailability(affected.availability_id());
+            if (affected.start_date().isBefore(booking.start_date())) {
+                dao.insertAvailability(new Availability(null, affected.start_date(), booking.start_date(),
+                        affected.price_per_night(), booking.listings_listing_id()));
+            }
+            if (affected.end_date().isAfter(booking.end_date())) {
+                dao.insertAvailability(new Availability(null, booking.end_date(), affected.end_date(),
+                        affected.price_per_night(), booking.listings_listing_id()));
+            }
+
+            dao.getListingById(booking.listings_listing_id()); // read again and left unused, as booking did
+            BigDecimal amount = affected.price_per_night().multiply(
+                    BigDecimal.valueOf(ChronoUnit.DAYS.between(booking.start_date(), booking.end_date())));
+            Long bookingId = dao.insertBooking(new Booking(null, booking.start_date(), booking.end_date(), LocalDate.now(),
+                    amount, booking.payment_method(), booking.card_number(), booking.tenant_sin(), booking.listings_listing_id()));
+            dao.insertReview(new Review(null, null, null, null, null, null, bookingId));
+            return bookingId;
+        });
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0 || !args[0].equals("--reset")) {
+            System.out.println("Usage: ConcurrentBookingBenchmark --reset [threads] [bookings per thread] [listings]");
+            System.out.println("Drops and recreates every table of the database before running");
+            return;
+        }
+        ConsoleLogger.setup();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int bookingsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int listingCount = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        new DbConfig().resetTables();
+        Dao dao = new Dao();
+        try {
+            ConcurrentBookingBenchmark benchmark = new ConcurrentBookingBenchmark(dao, threads, bookingsPerThread, listingCount);
+            TransactionExecutor sequential = new TransactionExecutor(dao);
+            benchmark.measure("Sequential queries", sequential, booking -> bookSequentially(dao, sequential, booking));
+            TransactionExecutor procedure = new TransactionExecutor(dao);
+            benchmark.measure("add_booking procedure", procedure, new BookingService(dao, procedure)::addBooking);
+            TransactionExecutor coordinated = new TransactionExecutor(dao);
+            BookingCoordinator coordinator = new BookingCoordinator(new BookingService(dao, coordinated));
+            try {
+                benchmark.measure("BookingCoordinator", coordinated, coordinator::addBooking);
+                long rejected = coordinator.getStats().stream().mapToLong(BookingCoordinator.StripeStats::rejectedRequests).sum();
+                double queueWait = coordinator.getStats().stream().filter(stats -> stats.completedRequests() > 0)
+                        .mapToDouble(BookingCoordinator.StripeStats::averageQueueWaitMillis).average().orElse(0);
+                System.out.printf("coordinator: %d rejected, average queue wait %.2f ms%n", rejected, queueWait);
+            } finally {
+                coordinator.shutdown(5000);
+            }
+        } finally {
+            dao.shutdown(5000);
+        }
+    }
+}
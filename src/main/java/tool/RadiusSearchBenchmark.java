@@ -0,0 +1,115 @@
+package tool;
+
+import data.Dao;
+import data.DbConfig;
+import domain.Listing;
+import domain.User;
+import filter.ListingFilter;
+import mylogger.ConsoleLogger;
+
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+Measures the latency of radius searches for a growing number of listings, by default 100k and then 1M.
+Listings are spread uniformly over a 10 by 10 degree area and every search looks around a random point in it.
+Drops and recreates every table of the configured database, so it only runs when given --reset.
+Usage: RadiusSearchBenchmark --reset [listing count...]
+ */
+public class RadiusSearchBenchmark {
+    private static final int SEARCHES = 200;
+    private static final int WARMUP_SEARCHES = 20;
+    private static final BigDecimal SEARCH_RADIUS = BigDecimal.valueOf(5); // km
+    private static final long HOST_SIN = 100_000_000L;
+
+    private final Dao dao;
+    private final Random random = new Random(42);
+    private int listingCount = 0;
+
+    public RadiusSearchBenchmark(Dao dao) {
+        this.dao = dao;
+        dao.startTransaction();
+        dao.insertUser(new User(HOST_SIN, "Benchmark Host", "1 Benchmark St", LocalDate.of(1990, 1, 1), "Host"));
+        dao.commitTransaction();
+    }
+
+    // adds listings until there are count listings in total
+    public void growTo(int count) {
+        while (listingCount < count) {
+            int batchSize = Math.min(10_000, count - listingCount);
+            List<Listing> listings = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                int n = listingCount + i;
+                listings.add(new Listing(null, "House", n + " Benchmark Ave", "B" + n, randomPoint(),
+                        "Benchmark", "Benchmark", HOST_SIN));
+            }
+            dao.startTransaction();
+            dao.insertListings(listings);
+            dao.commitTransaction();
+            listingCount += batchSize;
+        }
+    }
+
+    public void measure() {
+        for (int i = 0; i < WARMUP_SEARCHES; i++) {
+            search();
+        }
+        long[] latencies = new long[SEARCHES];
+        long found = 0;
+        for (int i = 0; i < SEARCHES; i++) {
+            long start = System.nanoTime();
+            found += search();
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%,d listings: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, %.1f listings found per search%n",
+                listingCount, latencies[SEARCHES / 2] / 1e6, latencies[SEARCHES * 95 / 100] / 1e6,
+                latencies[SEARCHES * 99 / 100] / 1e6, (double) found / SEARCHES);
+    }
+
+    private int search() {
+        ListingFilter filter = new ListingFilter.Builder()
+                .withListing(new Listing(null, null, null, null, randomPoint(), null, null, null))
+                .withSearchRadius(SEARCH_RADIUS)
+                .build();
+        dao.startReadOnlyTransaction();
+        try {
+            return dao.getListingsByFilter(filter).size();
+        } finally {
+            dao.commitTransaction();
+        }
+    }
+
+    private Point2D randomPoint() {
+        return new Point2D.Double(-80 + random.nextDouble() * 10, 40 + random.nextDouble() * 10);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0 || !args[0].equals("--reset")) {
+            System.out.println("Usage: RadiusSearchBenchmark --reset [listing count...]");
+            System.out.println("Drops and recreates every table of the database before running");
+            return;
+        }
+        ConsoleLogger.setup();
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).sorted().toArray()
+                : new int[] {100_000, 1_000_000};
+
+        new DbConfig().resetTables();
+        Dao dao = new Dao();
+        try {
+            RadiusSearchBenchmark benchmark = new RadiusSearchBenchmark(dao);
+            for (int size : sizes) {
+                benchmark.growTo(size);
+                benchmark.measure();
+            }
+        } finally {
+            dao.shutdown(5000);
+        }
+    }
+}
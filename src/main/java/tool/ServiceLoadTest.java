@@ -0,0 +1,128 @@
+package tool;
+
+import data.Dao;
+import domain.Availability;
+import domain.Listing;
+import filter.ListingFilter;
+import mylogger.ConsoleLogger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import service.AsyncListingService;
+import service.AsyncUserService;
+import service.ListingService;
+import service.ServiceExecutors;
+import service.TransactionExecutor;
+import service.UserService;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Simulates many concurrent clients against the asynchronous service API and prints the achieved throughput and
+latency percentiles. Every client issues a sequence of read requests, each waiting for the previous one, the way a
+front end handling one user would. Expects the database to be populated, e.g. by the Emulator.
+Usage: ServiceLoadTest [clients, default 10000] [requests per client, default 5]
+ */
+public class ServiceLoadTest {
+    private static final Logger logger = LogManager.getLogger(ServiceLoadTest.class);
+
+    private final AsyncUserService userService;
+    private final AsyncListingService listingService;
+    private final int clients;
+    private final int requestsPerClient;
+
+    private final long[] latenciesNanos;
+    private final AtomicInteger completedRequests = new AtomicInteger();
+    private final LongAdder failedRequests = new LongAdder();
+
+    public ServiceLoadTest(Dao dao, ExecutorService executor, int clients, int requestsPerClient) {
+        TransactionExecutor transactions = new TransactionExecutor(dao);
+        this.userService = new AsyncUserService(new UserService(dao, transactions), executor);
+        this.listingService = new AsyncListingService(new ListingService(dao, transactions), executor);
+        this.clients = clients;
+        this.requestsPerClient = requestsPerClient;
+        this.latenciesNanos = new long[clients * requestsPerClient];
+    }
+
+    public void run() {
+        long startNanos = System.nanoTime();
+        CompletableFuture<?>[] sessions = new CompletableFuture<?>[clients];
+        for (int i = 0; i < clients; i++) {
+            sessions[i] = client(0);
+        }
+        CompletableFuture.allOf(sessions).join();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        int completed = completedRequests.get();
+        long[] latencies = Arrays.copyOf(latenciesNanos, completed);
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.printf("%d clients, %d requests (%d failed) in %.2f s: %.1f requests/s%n",
+                clients, completed, failedRequests.sum(), seconds, completed / seconds);
+        System.out.printf("latency ms  p50: %.2f  p95: %.2f  p99: %.2f  max: %.2f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                percentile(latencies, 1.0));
+    }
+
+    // runs the client's requests one after another, without blocking a thread between them
+    private CompletableFuture<Void> client(int request) {
+        if (request == requestsPerClient) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long startNanos = System.nanoTime();
+        return nextRequest()
+                .handle((result, e) -> {
+                    if (e != null) {
+                        failedRequests.increment();
+                    }
+                    latenciesNanos[completedRequests.getAndIncrement()] = System.nanoTime() - startNanos;
+                    return null;
+                })
+                .thenCompose(ignored -> client(request + 1));
+    }
+
+    private CompletableFuture<?> nextRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (random.nextInt(3)) {
+            case 0:
+                return userService.userExists(random.nextLong(100_000_000L, 1_000_000_000L));
+            case 1:
+                return listingService.doesCityExists("Toronto");
+            default:
+                return listingService.searchListingsByFilter(new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "Toronto", null, null))
+                        .withAvailability(new Availability(null, null, null, null, null))
+                        .withPageSize(20)
+                        .build());
+        }
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    public static void main(String[] args) {
+        ConsoleLogger.setup();
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Dao dao = new Dao();
+        logger.info("Running {} clients on {}", clients,
+                ServiceExecutors.virtualThreadsAvailable() ? "virtual threads" : "a platform thread pool");
+        ExecutorService executor = ServiceExecutors.newPerTaskExecutor();
+        try {
+            new ServiceLoadTest(dao, executor, clients, requestsPerClient).run();
+        } finally {
+            executor.shutdown();
+            dao.shutdown(5000);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ui;
 
 import data.Dao;
 import data.DbConfig;
+import data.ListingLocationCounts;
 import domain.Listing;
 import domain.User;
 import exception.ServiceException;
@@ -17,7 +18,9 @@ import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 import service.BookingService;
 import service.ListingService;
+import service.ReportOrchestrator;
 import service.ReportService;
+import service.ServiceExecutors;
 import service.UserService;
 import tool.Emulator;
 
@@ -25,8 +28,8 @@ import java.awt.*;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 
 public class ManagementCli {
@@ -57,7 +60,7 @@ public class ManagementCli {
                     .terminal(terminal)
                     .parser(new org.jline.reader.impl.DefaultParser())
                     .history(new DefaultHistory())
-                    .completer(new StringsCompleter("load", "reset", "run", "quit", "set"))
+                    .completer(new StringsCompleter("load", "reset", "migrate", "run", "quit", "set"))
                     .build();
 
             while (true) {
@@ -82,6 +85,9 @@ public class ManagementCli {
                     case "reset":
                         handleResetCommand(subCommand, commandArgs);
                         break;
+                    case "migrate":
+                        handleMigrateSchemaCommand();
+                        break;
                     case "run":
                         handleRunCommand(subCommand, commandArgs);
                         break;
@@ -90,6 +96,7 @@ public class ManagementCli {
                         break;
                     case "quit":
                         System.out.println("Exiting...");
+                        dao.shutdown(5000);
                         return;
                     case "set":
                         handleSetCommand(subCommand, commandArgs);
@@ -140,6 +147,17 @@ public class ManagementCli {
         }
     }
 
+    // Upgrades the schema of the existing database without dropping any data
+    private void handleMigrateSchemaCommand() {
+        System.out.println("Migrating database schema...");
+        try {
+            dbConfig.migrate();
+            System.out.println("Database schema is at version " + dbConfig.getSchemaVersion());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     private void handleRunCommand(String subCommand, String[] commandArgs) {
         switch (subCommand) {
             case "reports":
@@ -159,6 +177,9 @@ public class ManagementCli {
             @Override
             public void run() {
                 ReportWindow reportWindow = new ReportWindow();
+                // one thread per report that queries the database, so they all run at the same time
+                ExecutorService reportExecutor = ServiceExecutors.newPerTaskExecutor(12);
+                ReportOrchestrator reportOrchestrator = new ReportOrchestrator(reportExecutor);
 
                 EventQueue.invokeLater(new Runnable() {
                     @Override
@@ -169,54 +190,51 @@ public class ManagementCli {
 
                 try {
                     while (shouldRunReport) {
-                        final Map<String, Long> numberOfBookingsInDateRangePerCity
-                                = reportService.getNumberOfBookingsInDateRangePerCity(
-                                startDateRange, endDateRange);
-
-                        final Map<String, Map<String, Long>> numberOfBookingsInDateRangePerPostalCodePerCity
-                                = reportService.getNumberOfBookingsInDateRangePerPostalCodePerCity(startDateRange, endDateRange);
-
-                        final List<Listing> allListings = listingService.getListings();
-
-                        final Map<String, Long> numberOfListingsPerCountry
-                                = reportService.getNumberOfListingsPerCountry(allListings);
-
-                        final Map<String, Map<String, Long>> numberOfListingsPerCityPerCountry
-                                = reportService.getNumberOfListingsPerCityPerCountry(allListings);
-
-                        final Map<String, Map<String, Map<String, Long>>> numberOfListingsPerPostalCodePerCityPerCountry
-                                = reportService.getNumberOfListingsPerPostalCodePerCityPerCountry(allListings);
-
-                        final Map<User, Map<String, Long>> numberOfListingsPerCountryPerHost
-                                = reportService.getNumberOfListingsPerCountryPerHost(allListings);
-
-                        final Map<User, Map<String, Map<String, Long>>> numberOfListingsPerCityPerCountryPerHost
-                                = reportService.getNumberOfListingsPerCityPerCountryPerHost(allListings);
-
-                        final Map<User, Map<String, Map<String, Long>>> possibleCommercialHosts
-                                = reportService.getPossibleCommercialHosts(
-                                        numberOfListingsPerCityPerCountryPerHost,
-                                        numberOfListingsPerCityPerCountry,
-                                        10);
-
-                        final Map<User, Long> numberOfBookingsInDateRangePerRenter
-                                = reportService.getNumberOfBookingsInDateRangePerRenter(
-                                yearFilterStartDate, yearFilterStartDate.plusYears(1));
-
-                        final Map<String, Map<User, Long>> numberOfBookingsInDateRangePerRenterPerCity
-                                = reportService.getNumberOfBookingsInDateRangePerRenterPerCity(
-                                yearFilterStartDate, yearFilterStartDate.plusYears(1));
-
-                        final Map<User, Long> numberOfCancelledBookingsInDateRangePerRenter
-                                = reportService.getNumberOfCancelledBookingsInDateRangePerRenter(
-                                yearFilterStartDate, yearFilterStartDate.plusYears(1));
-
-                        final Map<User, Long> numberOfCancelledBookingsInDateRangePerHost
-                                = reportService.getNumberOfCancelledBookingsInDateRangePerHost(
-                                yearFilterStartDate, yearFilterStartDate.plusYears(1));
-
-                        final Map<Listing, Map<String, Long>> mostPopularNounPhrasesPerListing
-                                = reportService.getMostPopularNounPhrasesPerListing(allListings);
+                        final LocalDate yearStart = yearFilterStartDate;
+                        final LocalDate yearEnd = yearFilterStartDate.plusYears(1);
+
+                        ReportOrchestrator.Run run = reportOrchestrator.newRun();
+                        ReportOrchestrator.Report<Map<String, Long>> bookingsPerCity = run.query("bookings per city",
+                                () -> reportService.getNumberOfBookingsInDateRangePerCity(startDateRange, endDateRange));
+                        ReportOrchestrator.Report<Map<String, Map<String, Long>>> bookingsPerPostalCode = run.query("bookings per postal code",
+                                () -> reportService.getNumberOfBookingsInDateRangePerPostalCodePerCity(startDateRange, endDateRange));
+                        // listings per country, city and postal code all come from one aggregate query
+                        ReportOrchestrator.Report<ListingLocationCounts> listingsPerLocation = run.query("listings per location",
+                                reportService::getListingLocationCounts);
+                        ReportOrchestrator.Report<Map<User, Map<String, Long>>> listingsPerCountryPerHost = run.query("listings per country per host",
+                                () -> reportService.getNumberOfListingsPerCountryPerHost());
+                        ReportOrchestrator.Report<Map<User, Map<String, Map<String, Long>>>> listingsPerCityPerHost = run.query("listings per city per host",
+                                () -> reportService.getNumberOfListingsPerCityPerCountryPerHost());
+                        ReportOrchestrator.Report<Map<User, Map<String, Map<String, Long>>>> commercialHosts = run.compute("possible commercial hosts",
+                                listingsPerCityPerHost, listingsPerLocation,
+                                (perHost, perLocation) -> reportService.getPossibleCommercialHosts(perHost, perLocation.perCity(), 10));
+                        ReportOrchestrator.Report<Map<User, Long>> bookingsPerRenter = run.query("bookings per renter",
+                                () -> reportService.getNumberOfBookingsInDateRangePerRenter(yearStart, yearEnd));
+                        ReportOrchestrator.Report<Map<String, Map<User, Long>>> bookingsPerRenterPerCity = run.query("bookings per renter per city",
+                                () -> reportService.getNumberOfBookingsInDateRangePerRenterPerCity(yearStart, yearEnd));
+                        ReportOrchestrator.Report<Map<User, Long>> cancellationsPerRenter = run.query("cancelled bookings per renter",
+                                () -> reportService.getNumberOfCancelledBookingsInDateRangePerRenter(yearStart, yearEnd));
+                        ReportOrchestrator.Report<Map<User, Long>> cancellationsPerHost = run.query("cancelled bookings per host",
+                                () -> reportService.getNumberOfCancelledBookingsInDateRangePerHost(yearStart, yearEnd));
+                        ReportOrchestrator.Report<Map<Listing, Map<String, Long>>> nounPhrasesPerListing = run.query("noun phrases per listing",
+                                () -> reportService.getMostPopularNounPhrasesPerListing(listingService.getListings()));
+
+                        Map<String, Long> timings = run.await();
+                        logger.info("Report timings (ms): {}", timings);
+
+                        final Map<String, Long> numberOfBookingsInDateRangePerCity = bookingsPerCity.get();
+                        final Map<String, Map<String, Long>> numberOfBookingsInDateRangePerPostalCodePerCity = bookingsPerPostalCode.get();
+                        final Map<String, Long> numberOfListingsPerCountry = listingsPerLocation.get().perCountry();
+                        final Map<String, Map<String, Long>> numberOfListingsPerCityPerCountry = listingsPerLocation.get().perCity();
+                        final Map<String, Map<String, Map<String, Long>>> numberOfListingsPerPostalCodePerCityPerCountry = listingsPerLocation.get().perPostalCode();
+                        final Map<User, Map<String, Long>> numberOfListingsPerCountryPerHost = listingsPerCountryPerHost.get();
+                        final Map<User, Map<String, Map<String, Long>>> numberOfListingsPerCityPerCountryPerHost = listingsPerCityPerHost.get();
+                        final Map<User, Map<String, Map<String, Long>>> possibleCommercialHosts = commercialHosts.get();
+                        final Map<User, Long> numberOfBookingsInDateRangePerRenter = bookingsPerRenter.get();
+                        final Map<String, Map<User, Long>> numberOfBookingsInDateRangePerRenterPerCity = bookingsPerRenterPerCity.get();
+                        final Map<User, Long> numberOfCancelledBookingsInDateRangePerRenter = cancellationsPerRenter.get();
+                        final Map<User, Long> numberOfCancelledBookingsInDateRangePerHost = cancellationsPerHost.get();
+                        final Map<Listing, Map<String, Long>> mostPopularNounPhrasesPerListing = nounPhrasesPerListing.get();
 
                         EventQueue.invokeLater(new Runnable() {
                             @Override
@@ -359,6 +377,7 @@ public class ManagementCli {
                     if (e.getCause() != null)
                         System.out.println(e.getCause().getMessage());
                 } finally {
+                    reportExecutor.shutdownNow();
                     EventQueue.invokeLater(new Runnable() {
                         @Override
                         public void run() {
@@ -1,11 +1,17 @@
 package ui;
 
 import data.Dao;
+import data.ListingQueryPlanCache;
 import domain.*;
 import exception.ServiceException;
 import filter.ListingFilter;
+import filter.ListingPage;
+import service.AvailabilityCalendarIndex;
+import service.BookingCoordinator;
 import service.BookingService;
+import service.ListingLocationIndex;
 import service.ListingService;
+import service.TransactionExecutor;
 import service.UserService;
 import mylogger.ConsoleLogger;
 import org.apache.logging.log4j.LogManager;
@@ -34,12 +40,28 @@ public class ServiceCli {
             "jdbc:mysql://localhost:3307/mydb",
             "root",
             "");
-    private final UserService userService = new UserService(dao);
-    private final ListingService listingService = new ListingService(dao);
-    private final BookingService bookingService = new BookingService(dao);
+    private final TransactionExecutor transactions = new TransactionExecutor(dao);
+    private final UserService userService = new UserService(dao, transactions);
+    private final ListingLocationIndex locationIndex = new ListingLocationIndex();
+    private final AvailabilityCalendarIndex availabilityIndex = new AvailabilityCalendarIndex();
+    private final ListingService listingService = new ListingService(dao, transactions, locationIndex, availabilityIndex);
+    private final BookingService bookingService = new BookingService(dao, transactions, availabilityIndex);
+    private final BookingCoordinator bookingCoordinator = new BookingCoordinator(bookingService);
     private String logged_in_user_sin = "";
 
     public void start() {
+        dao.prewarmListingQueryPlans(commonListingSearches());
+        try {
+            listingService.buildLocationIndex();
+        } catch (ServiceException e) {
+            // searches still work without the index, they just all go to the database
+            logger.warn("Unable to build the listing location index", e);
+        }
+        try {
+            listingService.buildAvailabilityIndex();
+        } catch (ServiceException e) {
+            logger.warn("Unable to build the availability calendar", e);
+        }
         try {
             Terminal terminal = TerminalBuilder.terminal();
 
@@ -79,6 +101,15 @@ public class ServiceCli {
                         break;
                     case "quit":
                         System.out.println("Goodbye!");
+                        ListingQueryPlanCache.Stats planStats = dao.getListingQueryPlanStats();
+                        logger.info("Listing search plans cached: {}, hit ratio: {}",
+                                planStats.cachedPlans(), planStats.hitRatio());
+                        Map<String, Long> retries = transactions.getRetryCounts();
+                        if (!retries.isEmpty()) {
+                            logger.info("Transactions retried after deadlocks or lock wait timeouts: {}", retries);
+                        }
+                        bookingCoordinator.shutdown(5000);
+                        dao.shutdown(5000);
                         return;
                     case "add":
                         handleAddCommand(subCommand, commandArgs);
@@ -295,7 +326,7 @@ public class ServiceCli {
                     LocalDate.parse(availabilityEndDate), LocalDate.now(), null, paymentMethod, Long.parseLong(cardNumber),
                     Long.parseLong(logged_in_user_sin), Long.parseLong(listingId));
 
-            Long booking_id = bookingService.addBooking(booking);
+            Long booking_id = bookingCoordinator.addBooking(booking);
 
         System.out.printf("Created booking for listing: %s from: %s to %s\nPaid with card: %s using method: %s\n",
                 listingId, availabilityStartDate,
@@ -1001,11 +1032,63 @@ public class ServiceCli {
         }
     }
 
+    /*
+    Searches that "show listings" runs most often, used to compile their query plans at startup.
+    Only which fields are set matters, not their values. Each search is added for its first page and its next pages
+     */
+    private static List<ListingFilter> commonListingSearches() {
+        Point2D location = new Point2D.Double(0, 0);
+        BigDecimal radius = BigDecimal.ONE;
+        Availability anyAvailability = new Availability(null, null, null, null, null);
+        List<ListingFilter.Builder> searches = List.of(
+                // by city or country
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "city", null, null))
+                        .withAvailability(anyAvailability),
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "city", "country", null))
+                        .withAvailability(anyAvailability),
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, null, "country", null))
+                        .withAvailability(anyAvailability),
+                // around coordinates, or around an address once it has been resolved to coordinates
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, location, null, null, null))
+                        .withAvailability(anyAvailability)
+                        .withSearchRadius(radius),
+                // resolving an address to coordinates before searching around it
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, "address", "postal code", null, null, null, null)),
+                // by city, within dates
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "city", null, null))
+                        .withAvailability(anyAvailability)
+                        .withStartDateRange(LocalDate.MIN)
+                        .withEndDateRange(LocalDate.MAX),
+                // by city, sorted by price
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "city", null, null))
+                        .withAvailability(anyAvailability)
+                        .withGroupByPriceAscend(true),
+                new ListingFilter.Builder()
+                        .withListing(new Listing(null, null, null, null, null, "city", null, null))
+                        .withAvailability(anyAvailability)
+                        .withGroupByPriceDescend(true)
+        );
+        List<ListingFilter> filters = new ArrayList<>();
+        for (ListingFilter.Builder search : searches) {
+            filters.add(search.withPageSize(1).withContinuationToken(null).build());
+            filters.add(search.withPageSize(1).withContinuationToken("next").build());
+        }
+        return filters;
+    }
+
     private void handleShowListings(String[] args) {
         if (!checkUserLoggedIn())
             return;
 
         BigDecimal defaultSearchRadius = new BigDecimal(20);
+        int defaultPageSize = 20;
         try {
             Options options = new Options();
 
@@ -1028,7 +1111,7 @@ public class ServiceCli {
             options.addOption(Option.builder("s").longOpt("user-sin").hasArg()
                     .desc("user sin").build());
             options.addOption(Option.builder("rad").longOpt("search-radius").hasArg()
-                    .desc("Search radius. Defaults to 20 if address is not specified and is not set").build());
+                    .desc("Search radius in km. Defaults to 20 if address is not specified and is not set").build());
 
 
             // Availabilities filter options
@@ -1040,6 +1123,10 @@ public class ServiceCli {
                     .desc("availability start date range").build());
             options.addOption(Option.builder("edr").longOpt("end-date-range").hasArg()
                     .desc("availability end date range").build());
+            options.addOption(Option.builder("in").longOpt("check-in").hasArg()
+                    .desc("check-in date of a stay. Only listings that can be booked until check-out are shown").build());
+            options.addOption(Option.builder("out").longOpt("check-out").hasArg()
+                    .desc("check-out date of a stay").build());
             options.addOption(Option.builder("ppn").longOpt("price-per-night").hasArg()
                     .desc("price per night").build());
             options.addOption(Option.builder("ppnmin").longOpt("price-per-night-range-min").hasArg()
@@ -1055,6 +1142,9 @@ public class ServiceCli {
             options.addOption(Option.builder("amen").longOpt("amenities").hasArg()
                     .desc("amenities (A list of amenities, each separated by comma").build());
 
+            options.addOption(Option.builder("ps").longOpt("page-size").hasArg()
+                    .desc("number of listings shown at a time. Defaults to " + defaultPageSize).build());
+
             // add help
             options.addOption(Option.builder("h").longOpt("help").desc("show help").build());
             HelpFormatter formatter = new HelpFormatter();
@@ -1084,6 +1174,8 @@ public class ServiceCli {
             LocalDate endDate = cmd.getOptionValue("ed") != null ? LocalDate.parse(cmd.getOptionValue("ed")) : null;
             LocalDate startDateRange = cmd.getOptionValue("sdr") != null ? LocalDate.parse(cmd.getOptionValue("sdr")) : null;
             LocalDate endDateRange = cmd.getOptionValue("edr") != null ? LocalDate.parse(cmd.getOptionValue("edr")) : null;
+            LocalDate checkInDate = cmd.getOptionValue("in") != null ? LocalDate.parse(cmd.getOptionValue("in")) : null;
+            LocalDate checkOutDate = cmd.getOptionValue("out") != null ? LocalDate.parse(cmd.getOptionValue("out")) : null;
             BigDecimal pricePerNight = cmd.getOptionValue("ppn") != null ? new BigDecimal(cmd.getOptionValue("ppn")) : null;
             BigDecimal pricePerNightRangeMin = cmd.getOptionValue("ppnmin") != null ? new BigDecimal(cmd.getOptionValue("ppnmin")) : null;
             BigDecimal pricePerNightRangeMax = cmd.getOptionValue("ppnmax") != null ? new BigDecimal(cmd.getOptionValue("ppnmax")) : null;
@@ -1091,6 +1183,7 @@ public class ServiceCli {
             Boolean pricePerNightSortDesc = cmd.hasOption("ppnSortDesc") ? Boolean.parseBoolean(cmd.getOptionValue("ppnSortDesc")) : false;
 
             String amenities = cmd.getOptionValue("amen");
+            Integer pageSize = cmd.hasOption("ps") ? Integer.parseInt(cmd.getOptionValue("ps")) : defaultPageSize;
             // the listing types are separated by comma
             List<String> listingTypesList = listingType != null ? Arrays.asList(listingType.split(",")) : null;
             // The amenities are separated by comma
@@ -1122,18 +1215,34 @@ public class ServiceCli {
                     .withListingTypes(listingTypesList)
                     .withStartDateRange(startDateRange)
                     .withEndDateRange(endDateRange)
+                    .withStay(checkInDate, checkOutDate)
                     .withMinPricePerNight(pricePerNightRangeMin)
                     .withMaxPricePerNight(pricePerNightRangeMax)
                     .withSearchRadius(searchRadius)
                     .withGroupByPriceAscend(pricePerNightSortAsc)
                     .withGroupByPriceDescend(pricePerNightSortDesc)
+                    .withPageSize(pageSize)
                     .build();
 
-            List<Listing> listings = listingService.searchListingsByFilter(listingFilter);
-            System.out.println("Listings found: " + listings.size());
-            for (Listing listing : listings) {
-                 System.out.println(listing);
+            // fetch the next page only when the user asks for it
+            Scanner myScanner = new Scanner(System.in);
+            int listingsShown = 0;
+            while (true) {
+                ListingPage page = listingService.searchListingsByFilter(listingFilter);
+                for (Listing listing : page.listings()) {
+                     System.out.println(listing);
+                }
+                listingsShown += page.listings().size();
+                if (!page.hasNextPage()) {
+                    break;
+                }
+                System.out.println("Shown " + listingsShown + " listings. Press enter to show more, or type q to stop");
+                if (myScanner.nextLine().trim().equalsIgnoreCase("q")) {
+                    break;
+                }
+                listingFilter.updateContinuationToken(page.nextContinuationToken());
             }
+            System.out.println("Listings found: " + listingsShown);
         } catch (ServiceException e) {
             System.out.println(e.getMessage());
             if (e.getCause() != null) {
@@ -1177,10 +1286,10 @@ public class ServiceCli {
             LocalDate today = LocalDate.parse(bookingService.getCurrDate().toString());
             // check if user is tenant or host
             if (bookingService.isTenantOfBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin))) {
-                bookingService.tenantCancelBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin), today);
+                bookingCoordinator.tenantCancelBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin), today);
             }
             else if (bookingService.isHostOfBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin))) {
-                bookingService.hostCancelBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin), today);
+                bookingCoordinator.hostCancelBooking(Long.parseLong(bookingId), Long.parseLong(logged_in_user_sin), today);
             }
             else {
                 System.out.println("User is not tenant or host of booking");
@@ -0,0 +1,229 @@
+package data;
+
+import exception.DataAccessException;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+    // a connection that only knows whether it is closed or valid, and its session settings
+    private static class StubConnection {
+        boolean closed;
+        boolean valid = true;
+        int validations;
+        boolean readOnly;
+        int isolation = Connection.TRANSACTION_REPEATABLE_READ;
+
+        Connection proxy() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "close" -> {
+                            closed = true;
+                            yield null;
+                        }
+                        case "isClosed" -> closed;
+                        case "isValid" -> {
+                            validations++;
+                            yield valid && !closed;
+                        }
+                        case "setReadOnly" -> {
+                            readOnly = (boolean) args[0];
+                            yield null;
+                        }
+                        case "getTransactionIsolation" -> isolation;
+                        case "setTransactionIsolation" -> {
+                            isolation = (int) args[0];
+                            yield null;
+                        }
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+    }
+
+    private final List<StubConnection> opened = new ArrayList<>(); // every connection the pool opened, in order
+
+    private ConnectionPool.Builder pool() {
+        return new ConnectionPool.Builder("jdbc:stub", "user", "password")
+                .withMinSize(0)
+                .withConnectionFactory(() -> {
+                    synchronized (opened) {
+                        StubConnection connection = new StubConnection();
+                        opened.add(connection);
+                        return connection.proxy();
+                    }
+                });
+    }
+
+    @org.junit.jupiter.api.Test
+    void borrowTimesOutWhenEveryConnectionIsInUse() {
+        ConnectionPool pool = pool().withMaxSize(2).withBorrowTimeoutMillis(50).build();
+        PooledConnection first = pool.borrow();
+        pool.borrow();
+
+        long start = System.nanoTime();
+        DataAccessException e = assertThrows(DataAccessException.class, pool::borrow);
+        assertTrue(e.getMessage().startsWith("Timed out after 50 ms"), e.getMessage());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, pool.getStats().borrowTimeouts());
+
+        pool.release(first);
+        assertSame(first, pool.borrow()); // the returned connection, not a new one
+        assertEquals(2, pool.getStats().createdConnections());
+        assertEquals(2, pool.getStats().activeConnections());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void validatesIdleConnectionsOnBorrow() {
+        ConnectionPool pool = pool().withValidationIntervalMillis(0).build();
+        PooledConnection pooled = pool.borrow();
+        pool.release(pooled);
+        assertSame(pooled, pool.borrow());
+        assertEquals(1, opened.get(0).validations);
+
+        // a connection that is no longer valid is closed and replaced
+        pool.release(pooled);
+        opened.get(0).valid = false;
+        PooledConnection replacement = pool.borrow();
+        assertNotSame(pooled, replacement);
+        assertTrue(opened.get(0).closed);
+        assertEquals(1, pool.getStats().validationFailures());
+        assertEquals(1, pool.getStats().totalConnections());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void recentlyUsedConnectionsSkipValidation() {
+        ConnectionPool pool = pool().withValidationIntervalMillis(60_000).build();
+        PooledConnection pooled = pool.borrow();
+        pool.release(pooled);
+        assertSame(pooled, pool.borrow());
+        assertEquals(0, opened.get(0).validations);
+
+        // a closed connection is never handed out, however recently it was used
+        pool.release(pooled);
+        opened.get(0).closed = true;
+        assertNotSame(pooled, pool.borrow());
+        assertEquals(2, opened.size());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void evictsIdleConnectionsDownToTheMinimum() throws InterruptedException {
+        ConnectionPool pool = pool().withMinSize(1).withIdleTimeoutMillis(1).withEvictionIntervalMillis(10).build();
+        List<PooledConnection> borrowed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            borrowed.add(pool.borrow());
+        }
+        borrowed.forEach(pool::release);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getStats().totalConnections() > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getStats().totalConnections());
+        assertEquals(1, pool.getStats().idleConnections());
+        assertEquals(2, pool.getStats().evictedConnections());
+        assertEquals(2, opened.stream().filter(connection -> connection.closed).count());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void invalidateClosesTheConnectionAndReturnsThePermit() {
+        ConnectionPool pool = pool().withMaxSize(1).withBorrowTimeoutMillis(50).build();
+        PooledConnection broken = pool.borrow();
+        pool.invalidate(broken);
+        assertTrue(opened.get(0).closed);
+        assertEquals(0, pool.getStats().totalConnections());
+        assertEquals(0, pool.getStats().activeConnections());
+
+        assertNotSame(broken, pool.borrow()); // would time out if the permit had been kept
+        assertEquals(2, pool.getStats().createdConnections());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void failedConnectsReturnThePermit() {
+        ConnectionPool pool = new ConnectionPool.Builder("jdbc:stub", "user", "password")
+                .withMinSize(0).withMaxSize(1).withBorrowTimeoutMillis(50)
+                .withConnectionFactory(() -> {
+                    throw new SQLException("Connection refused");
+                })
+                .build();
+        for (int i = 0; i < 3; i++) {
+            DataAccessException e = assertThrows(DataAccessException.class, pool::borrow);
+            assertEquals("Connection refused", e.getCause().getMessage());
+        }
+        assertEquals(0, pool.getStats().borrowTimeouts());
+        assertEquals(0, pool.getStats().activeConnections());
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void releaseResetsTheSession() throws SQLException {
+        ConnectionPool pool = pool().build();
+        PooledConnection pooled = pool.borrow();
+        pooled.setReadOnly(Connection.TRANSACTION_READ_COMMITTED);
+        assertTrue(opened.get(0).readOnly);
+        assertEquals(Connection.TRANSACTION_READ_COMMITTED, opened.get(0).isolation);
+
+        pool.release(pooled);
+        assertFalse(opened.get(0).readOnly);
+        assertEquals(Connection.TRANSACTION_REPEATABLE_READ, opened.get(0).isolation);
+        pool.shutdown(0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void shutdownWaitsForBorrowedConnections() throws InterruptedException {
+        ConnectionPool pool = pool().withMaxSize(2).build();
+        PooledConnection idle = pool.borrow();
+        PooledConnection borrowed = pool.borrow();
+        pool.release(idle);
+
+        CountDownLatch shuttingDown = new CountDownLatch(1);
+        Thread borrower = new Thread(() -> {
+            try {
+                shuttingDown.await();
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pool.release(borrowed);
+        });
+        borrower.start();
+        shuttingDown.countDown();
+        pool.shutdown(5000);
+        borrower.join();
+
+        // returned while shutting down, so closed instead of kept
+        assertTrue(opened.stream().allMatch(connection -> connection.closed));
+        assertEquals(0, pool.getStats().totalConnections());
+        assertEquals(0, pool.getStats().activeConnections());
+        assertThrows(DataAccessException.class, pool::borrow);
+    }
+
+    @org.junit.jupiter.api.Test
+    void shutdownGivesUpOnConnectionsThatAreNotReturned() {
+        ConnectionPool pool = pool().withMaxSize(2).build();
+        PooledConnection idle = pool.borrow();
+        PooledConnection borrowed = pool.borrow();
+        pool.release(idle);
+
+        pool.shutdown(50);
+        assertTrue(opened.get(0).closed);
+        assertFalse(opened.get(1).closed); // still in use
+
+        pool.release(borrowed);
+        assertTrue(opened.get(1).closed);
+        assertEquals(0, pool.getStats().totalConnections());
+    }
+}
@@ -0,0 +1,90 @@
+package data;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeoEnvelopeTest {
+    private static final double EARTH_RADIUS = 6370986.0;
+
+    // the point distanceMeters from start in the direction of bearing, on the sphere of ST_Distance_Sphere
+    private static Point2D destination(Point2D start, double bearing, double distanceMeters) {
+        double latitude = Math.toRadians(start.getY());
+        double angle = distanceMeters / EARTH_RADIUS;
+        double destinationLatitude = Math.asin(Math.sin(latitude) * Math.cos(angle)
+                + Math.cos(latitude) * Math.sin(angle) * Math.cos(bearing));
+        double longitude = Math.toRadians(start.getX()) + Math.atan2(Math.sin(bearing) * Math.sin(angle) * Math.cos(latitude),
+                Math.cos(angle) - Math.sin(latitude) * Math.sin(destinationLatitude));
+        double degrees = Math.toDegrees(longitude);
+        degrees = ((degrees + 180) % 360 + 360) % 360 - 180;
+        return new Point2D.Double(degrees, Math.toDegrees(destinationLatitude));
+    }
+
+    private static boolean contains(GeoEnvelope envelope, Point2D point) {
+        return envelope.lowerCorner().getX() <= point.getX() && point.getX() <= envelope.upperCorner().getX()
+                && envelope.lowerCorner().getY() <= point.getY() && point.getY() <= envelope.upperCorner().getY();
+    }
+
+    private static boolean spansEveryLongitude(GeoEnvelope envelope) {
+        return envelope.lowerCorner().getX() == -180 && envelope.upperCorner().getX() == 180;
+    }
+
+    @org.junit.jupiter.api.Test
+    void containsEveryPointWithinTheRadius() {
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            Point2D center = new Point2D.Double(random.nextDouble() * 360 - 180, random.nextDouble() * 178 - 89);
+            double radius = Math.pow(10, 1 + random.nextDouble() * 6);
+            GeoEnvelope envelope = GeoEnvelope.around(center, radius);
+            assertTrue(contains(envelope, center));
+            for (int j = 0; j < 64; j++) {
+                double distance = j < 32 ? radius : radius * random.nextDouble(); // half of them right on the circle
+                Point2D point = destination(center, 2 * Math.PI * j / 32, distance);
+                assertTrue(contains(envelope, point),
+                        point + " is " + distance + " m from " + center + " but outside " + envelope);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void circlesAroundAPoleSpanEveryLongitude() {
+        GeoEnvelope north = GeoEnvelope.around(new Point2D.Double(30, 89.5), 100_000);
+        assertTrue(spansEveryLongitude(north));
+        assertEquals(90, north.upperCorner().getY());
+        assertTrue(north.lowerCorner().getY() < 89.5 && north.lowerCorner().getY() > 88);
+
+        GeoEnvelope south = GeoEnvelope.around(new Point2D.Double(-30, -90), 1);
+        assertTrue(spansEveryLongitude(south));
+        assertEquals(-90, south.lowerCorner().getY());
+
+        GeoEnvelope everything = GeoEnvelope.around(new Point2D.Double(0, 0), 30_000_000);
+        assertTrue(spansEveryLongitude(everything));
+        assertEquals(-90, everything.lowerCorner().getY());
+        assertEquals(90, everything.upperCorner().getY());
+    }
+
+    @org.junit.jupiter.api.Test
+    void circlesAcrossTheAntimeridianSpanEveryLongitude() {
+        assertTrue(spansEveryLongitude(GeoEnvelope.around(new Point2D.Double(179.99, 10), 5_000)));
+        assertTrue(spansEveryLongitude(GeoEnvelope.around(new Point2D.Double(-179.99, -10), 5_000)));
+        assertFalse(spansEveryLongitude(GeoEnvelope.around(new Point2D.Double(179, 10), 5_000)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void smallCirclesHaveSmallEnvelopes() {
+        Point2D toronto = new Point2D.Double(-79.38, 43.65);
+        GeoEnvelope envelope = GeoEnvelope.around(toronto, 1_000);
+        double latitudeDegrees = Math.toDegrees(1_000 / EARTH_RADIUS);
+        assertEquals(toronto.getY() - latitudeDegrees, envelope.lowerCorner().getY(), 1e-6);
+        assertEquals(toronto.getY() + latitudeDegrees, envelope.upperCorner().getY(), 1e-6);
+        // a degree of longitude is shorter away from the equator
+        double longitudeDegrees = latitudeDegrees / Math.cos(Math.toRadians(toronto.getY()));
+        assertEquals(toronto.getX() - longitudeDegrees, envelope.lowerCorner().getX(), 1e-6);
+        assertEquals(toronto.getX() + longitudeDegrees, envelope.upperCorner().getX(), 1e-6);
+
+        GeoEnvelope point = GeoEnvelope.around(toronto, -5); // a negative radius is an empty circle
+        assertTrue(contains(point, toronto));
+        assertTrue(point.upperCorner().getX() - point.lowerCorner().getX() < 1e-6);
+    }
+}
@@ -0,0 +1,53 @@
+package data;
+
+import exception.DataAccessException;
+
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeometryCodecTest {
+    private static final Point2D TORONTO = new Point2D.Double(-79.3832, 43.6532);
+
+    // the internal MySQL format: a 4 byte SRID in front of the WKB
+    private static byte[] withSrid(int srid, byte[] wkb) {
+        return ByteBuffer.allocate(4 + wkb.length).order(ByteOrder.LITTLE_ENDIAN).putInt(srid).put(wkb).array();
+    }
+
+    @org.junit.jupiter.api.Test
+    void roundTripsWkb() {
+        byte[] wkb = GeometryCodec.encodePoint(TORONTO);
+        assertEquals(21, wkb.length);
+        assertEquals(TORONTO, GeometryCodec.decodePoint(wkb));
+        for (Point2D point : new Point2D[]{new Point2D.Double(180, 90), new Point2D.Double(-180, -90), new Point2D.Double(0, 0)}) {
+            assertEquals(point, GeometryCodec.decodePoint(GeometryCodec.encodePoint(point)));
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void decodesTheInternalFormat() {
+        byte[] stored = withSrid(0, GeometryCodec.encodePoint(TORONTO));
+        assertEquals(25, stored.length);
+        assertEquals(TORONTO, GeometryCodec.decodePoint(stored));
+        assertEquals(TORONTO, GeometryCodec.decodePoint(withSrid(4326, GeometryCodec.encodePoint(TORONTO))));
+    }
+
+    @org.junit.jupiter.api.Test
+    void decodesBigEndianWkb() {
+        byte[] wkb = ByteBuffer.allocate(21).order(ByteOrder.BIG_ENDIAN)
+                .put((byte) 0).putInt(1).putDouble(TORONTO.getX()).putDouble(TORONTO.getY()).array();
+        assertEquals(TORONTO, GeometryCodec.decodePoint(wkb));
+        assertEquals(TORONTO, GeometryCodec.decodePoint(withSrid(0, wkb)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void rejectsValuesThatAreNotPoints() {
+        assertNull(GeometryCodec.decodePoint(null));
+        assertThrows(DataAccessException.class, () -> GeometryCodec.decodePoint(new byte[20]));
+        byte[] lineString = GeometryCodec.encodePoint(TORONTO);
+        lineString[1] = 2; // the type, little-endian
+        assertThrows(DataAccessException.class, () -> GeometryCodec.decodePoint(lineString));
+    }
+}
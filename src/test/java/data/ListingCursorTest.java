@@ -0,0 +1,63 @@
+package data;
+
+import java.math.BigDecimal;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingCursorTest {
+    @org.junit.jupiter.api.Test
+    void decodesWhatItEncodes() {
+        for (ListingCursor.SortOrder sortOrder : ListingCursor.SortOrder.values()) {
+            ListingCursor cursor = new ListingCursor(sortOrder, "123.45", 42);
+            assertEquals(cursor, ListingCursor.decode(cursor.encode(), sortOrder));
+        }
+        ListingCursor withoutSortValue = new ListingCursor(ListingCursor.SortOrder.LISTING_ID, null, Long.MAX_VALUE);
+        assertEquals(withoutSortValue, ListingCursor.decode(withoutSortValue.encode(), ListingCursor.SortOrder.LISTING_ID));
+    }
+
+    @org.junit.jupiter.api.Test
+    void tokensAreUrlSafe() {
+        String token = new ListingCursor(ListingCursor.SortOrder.DISTANCE, "99999.9999999", 1).encode();
+        assertTrue(token.matches("[A-Za-z0-9_-]+"), token);
+    }
+
+    @org.junit.jupiter.api.Test
+    void rejectsTokensOfAnotherSortOrder() {
+        String token = new ListingCursor(ListingCursor.SortOrder.PRICE_ASCEND, "10.00", 7).encode();
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ListingCursor.decode(token, ListingCursor.SortOrder.PRICE_DESCEND));
+        assertTrue(e.getMessage().startsWith("Invalid continuation token"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void rejectsMalformedTokens() {
+        for (String token : new String[]{"", "not base64!", encode("PRICE_ASCEND:1"), encode("UNKNOWN::1"),
+                encode("LISTING_ID::one"), encode("LISTING_ID::1:2")}) {
+            assertThrows(IllegalArgumentException.class, () -> ListingCursor.decode(token, ListingCursor.SortOrder.LISTING_ID),
+                    token);
+        }
+    }
+
+    // the sort value is bound as a number, so a bad one is caught here rather than when the next page is searched
+    @org.junit.jupiter.api.Test
+    void rejectsSortValuesThatAreNotNumbers() {
+        for (ListingCursor.SortOrder sortOrder : new ListingCursor.SortOrder[]{ListingCursor.SortOrder.PRICE_ASCEND,
+                ListingCursor.SortOrder.PRICE_DESCEND, ListingCursor.SortOrder.DISTANCE}) {
+            for (String sortValue : new String[]{"", "ten", "1,5", "NaN"}) {
+                String token = encode(sortOrder.name() + ":" + sortValue + ":1");
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                        () -> ListingCursor.decode(token, sortOrder), sortOrder + " " + sortValue);
+                assertTrue(e.getMessage().startsWith("Invalid continuation token"));
+            }
+        }
+        assertEquals(new BigDecimal("10.50"),
+                ListingCursor.decode(encode("PRICE_DESCEND:10.50:1"), ListingCursor.SortOrder.PRICE_DESCEND).price());
+        assertEquals(12.5, ListingCursor.decode(encode("DISTANCE:12.5:1"), ListingCursor.SortOrder.DISTANCE).distance());
+        assertNull(ListingCursor.decode(encode("LISTING_ID::1"), ListingCursor.SortOrder.LISTING_ID).sortValue());
+    }
+
+    private static String encode(String token) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes());
+    }
+}
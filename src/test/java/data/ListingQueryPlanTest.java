@@ -0,0 +1,159 @@
+package data;
+
+import domain.Availability;
+import domain.Listing;
+import filter.ListingFilter;
+
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingQueryPlanTest {
+    private static final Listing NO_LISTING_FIELDS = new Listing(null, null, null, null, null, null, null, null);
+
+    private static Listing at(double longitude, double latitude) {
+        return new Listing(null, null, null, null, new Point2D.Double(longitude, latitude), null, null, null);
+    }
+
+    // every filter shape the services search with, each built from the value it is given
+    private static final List<Function<Integer, ListingFilter>> SHAPES = List.of(
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS).build(),
+            v -> new ListingFilter.Builder().withListing(new Listing(null, "house", null, null, null, "City " + v, null, null)).build(),
+            v -> new ListingFilter.Builder().withListing(new Listing(null, "any", null, null, null, null, null, null))
+                    .withListingTypes(List.of("house", "room " + v)).build(),
+            v -> new ListingFilter.Builder().withListing(at(v, 40)).withSearchRadius(BigDecimal.valueOf(v)).build(),
+            v -> new ListingFilter.Builder().withListing(at(v, 40)).withSearchRadius(BigDecimal.valueOf(v)).withPageSize(v).build(),
+            v -> new ListingFilter.Builder().withListing(new Listing(null, null, "1 Main St", "A1A " + v, null, null, null, null)).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                    .withAvailability(new Availability(null, null, null, null, null))
+                    .withStartDateRange(LocalDate.of(2024, 1, v)).withEndDateRange(LocalDate.of(2024, 2, v)).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                    .withAvailability(new Availability(null, null, null, null, null))
+                    .withMinPricePerNight(BigDecimal.valueOf(v)).withMaxPricePerNight(BigDecimal.valueOf(v * 10L))
+                    .withGroupByPriceAscend(true).withPageSize(10).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                    .withAvailability(new Availability(null, null, null, null, null))
+                    .withGroupByPriceDescend(true).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS).withAmenities(List.of("Wifi", "Amenity " + v)).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                    .withStay(LocalDate.of(2024, 3, v), LocalDate.of(2024, 3, v + 3)).withPageSize(5).build(),
+            v -> new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                    .withContinuationToken(new ListingCursor(ListingCursor.SortOrder.LISTING_ID, null, v).encode())
+                    .withPageSize(5).build(),
+            v -> new ListingFilter.Builder().withListing(at(v, 40)).withSearchRadius(BigDecimal.TEN)
+                    .withContinuationToken(new ListingCursor(ListingCursor.SortOrder.DISTANCE, "12.5", v).encode())
+                    .withPageSize(5).build());
+
+    private static int placeholders(String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+
+    @org.junit.jupiter.api.Test
+    void filtersOfOneShapeShareTheirSql() {
+        ListingQueryPlanCache cache = new ListingQueryPlanCache();
+        Set<String> sqls = new HashSet<>();
+        for (Function<Integer, ListingFilter> shape : SHAPES) {
+            ListingFilter first = shape.apply(3);
+            ListingFilter second = shape.apply(7);
+            ListingQueryPlan plan = cache.plan(first);
+            assertSame(plan, cache.plan(second));
+            assertEquals(plan.sql(), ListingQueryPlan.compile(ListingQueryPlan.Shape.of(second)).sql());
+
+            SqlQuery firstQuery = plan.bind(first);
+            SqlQuery secondQuery = plan.bind(second);
+            assertEquals(placeholders(plan.sql()), firstQuery.parameters().length, plan.sql());
+            if (firstQuery.parameters().length > 0) {
+                assertFalse(Arrays.equals(firstQuery.parameters(), secondQuery.parameters()), plan.sql());
+            }
+            assertTrue(sqls.add(plan.sql()), "two shapes share " + plan.sql());
+        }
+        assertEquals(SHAPES.size(), cache.getStats().cachedPlans());
+        assertEquals(SHAPES.size(), cache.getStats().hits());
+    }
+
+    @org.junit.jupiter.api.Test
+    void sqlOfCommonShapes() {
+        assertEquals("SELECT DISTINCT listings.* FROM listings WHERE 1 = 1 AND listing_type = ? AND city = ? " +
+                        "ORDER BY listings.listing_id",
+                sql(SHAPES.get(1).apply(1)));
+        assertEquals("SELECT DISTINCT listings.*, ST_Distance_Sphere(location, ST_GeomFromWKB(?)) AS distance FROM listings " +
+                        "WHERE 1 = 1 AND MBRContains(ST_MakeEnvelope(ST_GeomFromWKB(?), ST_GeomFromWKB(?)), location) " +
+                        "AND ST_Distance_Sphere(location, ST_GeomFromWKB(?)) <= ? ORDER BY distance, listings.listing_id LIMIT ?",
+                sql(SHAPES.get(4).apply(1)));
+        assertEquals("SELECT DISTINCT listings.*, availabilities.price_per_night AS price_per_night FROM listings " +
+                        "JOIN availabilities ON listings.listing_id = availabilities.listings_listing_id " +
+                        "JOIN (SELECT BIT_OR(1 << (amenity_id - 1)) AS mask, COUNT(*) AS found FROM amenities " +
+                        "WHERE amenity_id <= 64 AND amenity_name IN (?, ?)) wanted_amenities ON wanted_amenities.found = ? " +
+                        "WHERE 1 = 1 AND price_per_night >= ? " +
+                        "AND (SELECT stay.end_date FROM availabilities stay WHERE stay.listings_listing_id = listings.listing_id " +
+                        "AND stay.start_date <= ? ORDER BY stay.start_date DESC LIMIT 1) >= ? " +
+                        "AND (listings.amenity_mask & wanted_amenities.mask) = wanted_amenities.mask " +
+                        "ORDER BY price_per_night, listings.listing_id",
+                sql(new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                        .withAvailability(new Availability(null, null, null, null, null))
+                        .withMinPricePerNight(BigDecimal.ONE).withAmenities(List.of("Wifi", "Kitchen"))
+                        .withStay(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 5))
+                        .withGroupByPriceAscend(true).build()));
+    }
+
+    @org.junit.jupiter.api.Test
+    void candidateListsArePaddedToAPowerOfTwo() {
+        assertEquals(List.of(1, 1, 2, 4, 4, 8, 8, 8, 8, 16),
+                List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9).stream().map(ListingQueryPlan::paddedCandidateCount).toList());
+
+        ListingFilter three = SHAPES.get(3).apply(1);
+        three.updateCandidateListingIds(List.of(5L, 6L, 7L));
+        ListingFilter four = SHAPES.get(3).apply(2);
+        four.updateCandidateListingIds(List.of(1L, 2L, 3L, 4L));
+        ListingFilter five = SHAPES.get(3).apply(3);
+        five.updateCandidateListingIds(List.of(1L, 2L, 3L, 4L, 5L));
+
+        assertEquals(sql(three), sql(four));
+        assertNotEquals(sql(four), sql(five));
+        assertTrue(sql(three).contains(" AND listings.listing_id IN (?, ?, ?, ?)"));
+        Object[] parameters = ListingQueryPlan.compile(ListingQueryPlan.Shape.of(three)).bind(three).parameters();
+        assertEquals(List.of(5L, 6L, 7L, 7L), Arrays.asList(parameters).subList(5, 9)); // the last id is repeated
+    }
+
+    // the wanted bits are those of the named amenities, and the row only joins if each name is a known amenity
+    @org.junit.jupiter.api.Test
+    void amenitiesAreMatchedAgainstTheirMaskBits() {
+        ListingFilter filter = new ListingFilter.Builder().withListing(NO_LISTING_FIELDS)
+                .withAmenities(List.of("wifi", "pool", "wifi")).build();
+        ListingQueryPlan plan = ListingQueryPlan.compile(ListingQueryPlan.Shape.of(filter));
+        assertEquals("SELECT DISTINCT listings.* FROM listings " +
+                        "JOIN (SELECT BIT_OR(1 << (amenity_id - 1)) AS mask, COUNT(*) AS found FROM amenities " +
+                        "WHERE amenity_id <= 64 AND amenity_name IN (?, ?, ?)) wanted_amenities ON wanted_amenities.found = ? " +
+                        "WHERE 1 = 1 AND (listings.amenity_mask & wanted_amenities.mask) = wanted_amenities.mask " +
+                        "ORDER BY listings.listing_id",
+                plan.sql());
+        // a repeated amenity is found once, so it counts once
+        assertEquals(List.of("wifi", "pool", "wifi", 2L), Arrays.asList(plan.bind(filter).parameters()));
+    }
+
+    // the radius is given in km and both the envelope and ST_Distance_Sphere take meters
+    @org.junit.jupiter.api.Test
+    void searchRadiusIsBoundInMeters() {
+        ListingFilter filter = new ListingFilter.Builder().withListing(at(0, 0)).withSearchRadius(new BigDecimal("2.5")).build();
+        assertEquals(0, new BigDecimal("2500").compareTo(filter.searchRadiusMeters()));
+        assertEquals(0, new BigDecimal("2.5").compareTo(new ListingFilter.Builder(filter)
+                .withSearchRadiusMeters(filter.searchRadiusMeters()).build().searchRadius()));
+
+        List<Object> parameters = Arrays.asList(ListingQueryPlan.compile(ListingQueryPlan.Shape.of(filter)).bind(filter).parameters());
+        assertTrue(parameters.stream().anyMatch(p -> p instanceof BigDecimal radius && radius.compareTo(new BigDecimal("2500")) == 0),
+                parameters.toString());
+        double maxLatitude = parameters.stream().filter(p -> p instanceof Point2D).mapToDouble(p -> ((Point2D) p).getY()).max().orElseThrow();
+        assertEquals(Math.toDegrees(2500 / 6370986.0), maxLatitude, 1e-6); // the envelope reaches 2.5 km, not 250 m
+    }
+
+    private static String sql(ListingFilter filter) {
+        return ListingQueryPlan.compile(ListingQueryPlan.Shape.of(filter)).sql();
+    }
+}
@@ -0,0 +1,179 @@
+package data;
+
+import domain.Listing;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import java.awt.geom.Point2D;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.RecordComponent;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+Compares binding listings to statement parameters and mapping rows back to listings through RecordMapper with the
+reflective path Dao used before it: RecordComponent accessors invoked through reflection for every value, and rows
+read with name-based getters. Both paths bind and decode the location the same way, so only the record mapping differs.
+Runs in memory, without a database: parameters go to a PreparedStatement stub that costs the same for both paths,
+and rows come from a CachedRowSet. Like JMH, every benchmark runs warmup iterations before the measured ones, and
+results go to a sink so the JIT can't drop the work. RecordMapper is package-private, so this lives next to its tests
+and runs from the test classpath.
+Usage: RecordMapperBenchmark [iterations, default 5] [milliseconds per iteration, default 1000]
+ */
+class RecordMapperBenchmark {
+    private static final int ROWS = 1000;
+
+    private static volatile Object sink;
+
+    private final Listing[] listings = new Listing[ROWS];
+    private final PreparedStatement statement = statementStub();
+    private final CachedRowSet rows;
+
+    RecordMapperBenchmark() throws SQLException {
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            listings[i] = new Listing((long) i, "House", i + " Benchmark Ave", "B" + i,
+                    new Point2D.Double(-80 + random.nextDouble() * 10, 40 + random.nextDouble() * 10),
+                    "Toronto", "Canada", 100_000_000L + i);
+        }
+        rows = listingRows();
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    // binds every listing, the way insertListings does
+    private Object bindWithMapper() throws SQLException {
+        RecordMapper<Listing> mapper = RecordMapper.of(Listing.class);
+        int next = 0;
+        for (Listing listing : listings) {
+            next += mapper.bind(statement, listing, 1);
+        }
+        return next;
+    }
+
+    private Object bindReflectively() throws Exception {
+        int next = 0;
+        for (Listing listing : listings) {
+            int index = 1;
+            for (RecordComponent component : listing.getClass().getRecordComponents()) {
+                RecordMapper.bindValue(statement, index++, component.getAccessor().invoke(listing));
+            }
+            next += index;
+        }
+        return next;
+    }
+
+    // reads every row, the way executeListingQuery does
+    private Object mapWithMapper() throws SQLException {
+        rows.beforeFirst();
+        RecordMapper.RowMapper<Listing> rowMapper = RecordMapper.of(Listing.class).rowMapper(rows);
+        long sum = 0;
+        while (rows.next()) {
+            sum += rowMapper.map(rows).listing_id();
+        }
+        return sum;
+    }
+
+    private Object mapReflectively() throws SQLException {
+        rows.beforeFirst();
+        long sum = 0;
+        while (rows.next()) {
+            Listing listing = new Listing(rows.getLong("listing_id"), rows.getString("listing_type"),
+                    rows.getString("address"), rows.getString("postal_code"), GeometryCodec.decodePoint(rows.getBytes("location")),
+                    rows.getString("city"), rows.getString("country"), rows.getLong("users_sin"));
+            sum += listing.listing_id();
+        }
+        return sum;
+    }
+
+    // a statement that accepts and drops every parameter
+    private static PreparedStatement statementStub() {
+        return (PreparedStatement) Proxy.newProxyInstance(RecordMapperBenchmark.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("set")) {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    // the listings as both paths select them, with the location as the internal geometry value
+    private CachedRowSet listingRows() throws SQLException {
+        String[] columns = {"listing_id", "listing_type", "address", "postal_code", "location", "city", "country",
+                "users_sin"};
+        int[] types = {Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARBINARY, Types.VARCHAR,
+                Types.VARCHAR, Types.BIGINT};
+        RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+        metaData.setColumnCount(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            metaData.setColumnName(i + 1, columns[i]);
+            metaData.setColumnType(i + 1, types[i]);
+            metaData.setNullable(i + 1, ResultSetMetaData.columnNullable);
+        }
+        CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+        rowSet.setMetaData(metaData);
+        for (Listing listing : listings) {
+            rowSet.moveToInsertRow();
+            rowSet.updateLong(1, listing.listing_id());
+            rowSet.updateString(2, listing.listing_type());
+            rowSet.updateString(3, listing.address());
+            rowSet.updateString(4, listing.postal_code());
+            byte[] wkb = GeometryCodec.encodePoint(listing.location());
+            byte[] stored = new byte[4 + wkb.length]; // SRID 0 in front of the WKB
+            System.arraycopy(wkb, 0, stored, 4, wkb.length);
+            rowSet.updateBytes(5, stored);
+            rowSet.updateString(6, listing.city());
+            rowSet.updateString(7, listing.country());
+            rowSet.updateLong(8, listing.users_sin());
+            rowSet.insertRow();
+            rowSet.moveToCurrentRow();
+        }
+        rowSet.beforeFirst();
+        return rowSet;
+    }
+
+    // rows per millisecond of each measured iteration
+    private static double[] measure(Operation operation, int iterations, long iterationMillis) throws Exception {
+        double[] throughput = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long end = System.nanoTime() + iterationMillis * 1_000_000;
+            long start = System.nanoTime();
+            long calls = 0;
+            while (System.nanoTime() < end) {
+                sink = operation.run();
+                calls++;
+            }
+            throughput[i] = calls * (double) ROWS / ((System.nanoTime() - start) / 1e6);
+        }
+        return throughput;
+    }
+
+    private static void run(String name, Operation operation, int iterations, long iterationMillis) throws Exception {
+        measure(operation, iterations, iterationMillis); // warmup
+        double[] throughput = measure(operation, iterations, iterationMillis);
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(throughput).map(t -> (t - mean) * (t - mean)).sum() / throughput.length);
+        System.out.printf("%-18s %,12.1f +- %,10.1f rows/ms%n", name, mean, deviation);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long iterationMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        RecordMapperBenchmark benchmark = new RecordMapperBenchmark();
+        if (!benchmark.mapWithMapper().equals(benchmark.mapReflectively())) {
+            throw new IllegalStateException("The two paths read different listings");
+        }
+        run("bind, mapper", benchmark::bindWithMapper, iterations, iterationMillis);
+        run("bind, reflective", benchmark::bindReflectively, iterations, iterationMillis);
+        run("map, mapper", benchmark::mapWithMapper, iterations, iterationMillis);
+        run("map, reflective", benchmark::mapReflectively, iterations, iterationMillis);
+    }
+}
@@ -0,0 +1,95 @@
+package data;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementCacheTest {
+    private final List<String> prepared = new ArrayList<>(); // the SQL of every statement prepared on the connection
+    private final Set<PreparedStatement> closed = new HashSet<>();
+
+    // a connection that hands out statements which only know whether they were closed
+    private Connection connection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("prepareStatement")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    prepared.add((String) args[0]);
+                    return statement();
+                });
+    }
+
+    private PreparedStatement statement() {
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "close" -> {
+                        closed.add((PreparedStatement) proxy);
+                        yield null;
+                    }
+                    case "isClosed" -> closed.contains((PreparedStatement) proxy);
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @org.junit.jupiter.api.Test
+    void evictsTheLeastRecentlyUsedStatement() throws SQLException {
+        LongAdder hits = new LongAdder();
+        LongAdder misses = new LongAdder();
+        StatementCache cache = new StatementCache(connection(), 2, hits, misses);
+
+        PreparedStatement a = cache.prepare("SELECT a", false);
+        PreparedStatement b = cache.prepare("SELECT b", false);
+        assertSame(a, cache.prepare("SELECT a", false)); // b is now the least recently used
+        PreparedStatement c = cache.prepare("SELECT c", false);
+
+        assertEquals(2, cache.size());
+        assertTrue(closed.contains(b));
+        assertFalse(closed.contains(a));
+        assertFalse(closed.contains(c));
+        assertSame(a, cache.prepare("SELECT a", false));
+        assertSame(c, cache.prepare("SELECT c", false));
+        assertNotSame(b, cache.prepare("SELECT b", false)); // prepared again, evicting a
+        assertTrue(closed.contains(a));
+
+        assertEquals(List.of("SELECT a", "SELECT b", "SELECT c", "SELECT b"), prepared);
+        assertEquals(3, hits.sum());
+        assertEquals(4, misses.sum());
+    }
+
+    @org.junit.jupiter.api.Test
+    void generatedKeysAreASeparateStatement() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 4, new LongAdder(), new LongAdder());
+        PreparedStatement plain = cache.prepare("INSERT INTO t VALUES (?)", false);
+        PreparedStatement withKeys = cache.prepare("INSERT INTO t VALUES (?)", true);
+        assertNotSame(plain, withKeys);
+        assertSame(withKeys, cache.prepare("INSERT INTO t VALUES (?)", true));
+        assertEquals(2, cache.size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void replacesClosedStatementsAndClosesEverything() throws SQLException {
+        StatementCache cache = new StatementCache(connection(), 4, new LongAdder(), new LongAdder());
+        PreparedStatement a = cache.prepare("SELECT a", false);
+        a.close(); // the server or driver dropped it
+        PreparedStatement again = cache.prepare("SELECT a", false);
+        assertNotSame(a, again);
+        assertEquals(1, cache.size());
+
+        PreparedStatement b = cache.prepare("SELECT b", false);
+        cache.close();
+        assertEquals(0, cache.size());
+        assertTrue(closed.contains(again));
+        assertTrue(closed.contains(b));
+    }
+}
@@ -0,0 +1,170 @@
+package service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AvailabilityCalendarIndexTest {
+    private static final LocalDate FIRST = LocalDate.of(2024, 1, 1);
+
+    private static LocalDate night(int i) {
+        return FIRST.plusDays(i);
+    }
+
+    @org.junit.jupiter.api.Test
+    void staysAcrossWordBoundaries() {
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex(200);
+        index.reset(FIRST);
+        index.addAvailability(1, night(60), night(130));
+
+        assertTrue(index.isAvailable(1, night(60), night(64)));
+        assertTrue(index.isAvailable(1, night(63), night(65)));
+        assertTrue(index.isAvailable(1, night(60), night(130)));
+        assertTrue(index.isAvailable(1, night(127), night(129)));
+        assertTrue(index.isAvailable(1, night(128), night(130)));
+        assertFalse(index.isAvailable(1, night(59), night(61)));
+        assertFalse(index.isAvailable(1, night(129), night(131)));
+
+        index.bookStay(1, night(64), night(65));
+        assertTrue(index.isAvailable(1, night(60), night(64)));
+        assertFalse(index.isAvailable(1, night(63), night(65)));
+        assertTrue(index.isAvailable(1, night(65), night(130)));
+        assertEquals(List.of(1L), index.availableListings(night(65), night(128)));
+        assertEquals(List.of(), index.availableListings(night(63), night(66)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void staysDoNotSpanAdjacentAvailabilities() {
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex(200);
+        index.reset(FIRST);
+        index.addAvailability(1, night(10), night(64));
+        index.addAvailability(1, night(64), night(80)); // adjacent, at another price
+
+        assertTrue(index.isAvailable(1, night(10), night(64)));
+        assertTrue(index.isAvailable(1, night(64), night(80)));
+        assertFalse(index.isAvailable(1, night(63), night(65)));
+        assertFalse(index.isAvailable(1, night(10), night(80)));
+        assertEquals(List.of(), index.availableListings(night(60), night(70)));
+
+        // merged back into one availability, as a cancellation does
+        index.addAvailability(1, night(10), night(80));
+        assertTrue(index.isAvailable(1, night(10), night(80)));
+
+        index.removeAvailability(1, night(10), night(80));
+        assertFalse(index.isAvailable(1, night(10), night(11)));
+        assertEquals(1, index.size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void bookingSplitsTheAvailability() {
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex(100);
+        index.reset(FIRST);
+        index.addAvailability(1, night(0), night(20));
+        index.addAvailability(1, night(20), night(30));
+
+        index.bookStay(1, night(5), night(8)); // leaves 0 to 5 and 8 to 20
+        assertTrue(index.isAvailable(1, night(0), night(5)));
+        assertTrue(index.isAvailable(1, night(8), night(20)));
+        assertFalse(index.isAvailable(1, night(4), night(9)));
+        assertFalse(index.isAvailable(1, night(8), night(21)));
+
+        index.bookStay(1, night(15), night(20)); // the availability from 20 still starts on the check-out night
+        assertTrue(index.isAvailable(1, night(8), night(15)));
+        assertTrue(index.isAvailable(1, night(20), night(30)));
+        assertFalse(index.isAvailable(1, night(14), night(21)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void edgeOfTheHorizon() {
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex(128);
+        index.reset(FIRST);
+        index.addAvailability(1, night(-10), night(500)); // clipped to the horizon
+
+        assertTrue(index.covers(night(0), night(128)));
+        assertFalse(index.covers(night(0), night(129)));
+        assertFalse(index.covers(night(-1), night(1)));
+        assertFalse(index.covers(night(5), night(5)));
+        assertTrue(index.isAvailable(1, night(0), night(128)));
+        assertTrue(index.isAvailable(1, night(127), night(128)));
+        assertThrows(IllegalArgumentException.class, () -> index.isAvailable(1, night(127), night(129)));
+        assertThrows(IllegalArgumentException.class, () -> index.availableListings(night(-1), night(2)));
+
+        index.addAvailability(2, night(200), night(300)); // entirely past the horizon
+        index.bookStay(1, night(120), night(128));
+        assertEquals(2, index.size());
+        assertFalse(index.isAvailable(2, night(0), night(128)));
+        assertFalse(index.isAvailable(3, night(0), night(1)));
+        assertTrue(index.isAvailable(1, night(0), night(120)));
+
+        index.reset(night(100));
+        assertEquals(0, index.size());
+        assertTrue(index.covers(night(100), night(228)));
+        assertFalse(index.covers(night(99), night(101)));
+    }
+
+    // availabilities as rows, booked and cancelled the way the services do, against a list of rows per listing
+    @org.junit.jupiter.api.Test
+    void matchesAvailabilityRows() {
+        Random random = new Random(3);
+        int horizon = 300;
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex(horizon);
+        index.reset(FIRST);
+        List<List<int[]>> rows = new ArrayList<>();
+        for (int listing = 0; listing < 20; listing++) {
+            rows.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 2000; i++) {
+            int listing = random.nextInt(rows.size());
+            List<int[]> listingRows = rows.get(listing);
+            int operation = random.nextInt(3);
+            if (operation == 0 || listingRows.isEmpty()) {
+                int start = random.nextInt(horizon);
+                int end = start + 1 + random.nextInt(Math.min(60, horizon - start));
+                if (listingRows.stream().noneMatch(row -> row[0] < end && start < row[1])) {
+                    listingRows.add(new int[]{start, end});
+                    index.addAvailability(listing, night(start), night(end));
+                }
+            } else if (operation == 1) {
+                int[] row = listingRows.remove(random.nextInt(listingRows.size()));
+                index.removeAvailability(listing, night(row[0]), night(row[1]));
+            } else {
+                int[] row = listingRows.remove(random.nextInt(listingRows.size()));
+                int checkIn = row[0] + random.nextInt(row[1] - row[0]);
+                int checkOut = checkIn + 1 + random.nextInt(row[1] - checkIn);
+                if (row[0] < checkIn) {
+                    listingRows.add(new int[]{row[0], checkIn});
+                }
+                if (checkOut < row[1]) {
+                    listingRows.add(new int[]{checkOut, row[1]});
+                }
+                index.bookStay(listing, night(checkIn), night(checkOut));
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            int checkIn = random.nextInt(horizon);
+            int checkOut = checkIn + 1 + random.nextInt(Math.min(70, horizon - checkIn));
+            List<Long> expected = new ArrayList<>();
+            for (int listing = 0; listing < rows.size(); listing++) {
+                if (rows.get(listing).stream().anyMatch(row -> row[0] <= checkIn && checkOut <= row[1])) {
+                    expected.add((long) listing);
+                }
+            }
+            assertEquals(expected, index.availableListings(night(checkIn), night(checkOut)),
+                    "stay from night " + checkIn + " to " + checkOut);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void removeForgetsTheListing() {
+        AvailabilityCalendarIndex index = new AvailabilityCalendarIndex();
+        index.reset(FIRST);
+        index.addAvailability(1, night(0), night(10));
+        index.remove(1);
+        assertEquals(0, index.size());
+        assertFalse(index.isAvailable(1, night(0), night(1)));
+        assertThrows(IllegalArgumentException.class, () -> new AvailabilityCalendarIndex(0));
+    }
+}
@@ -0,0 +1,163 @@
+package service;
+
+import domain.Booking;
+import exception.ServiceException;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookingCoordinatorTest {
+    // books without a database, recording the order of the bookings of every listing
+    private static class RecordingBookingService extends BookingService {
+        final Map<Long, List<Long>> booked = new ConcurrentHashMap<>(); // listing id -> tenant sins, in booking order
+        final Map<Long, AtomicInteger> running = new ConcurrentHashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0); // bookings wait for it to open
+
+        RecordingBookingService() {
+            super(null, null, null);
+        }
+
+        @Override
+        public Long addBooking(Booking booking) throws ServiceException {
+            AtomicInteger inProgress = running.computeIfAbsent(booking.listings_listing_id(), id -> new AtomicInteger());
+            if (inProgress.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                if (!gate.await(10, TimeUnit.SECONDS)) {
+                    throw new ServiceException("gate never opened");
+                }
+                booked.computeIfAbsent(booking.listings_listing_id(), id -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(booking.tenant_sin());
+                return booking.tenant_sin();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("interrupted", e);
+            } finally {
+                inProgress.decrementAndGet();
+            }
+        }
+    }
+
+    private static Booking booking(long listingId, long tenantSin) {
+        return new Booking(null, LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 2), null, null,
+                "Credit Card", null, tenantSin, listingId);
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    @org.junit.jupiter.api.Test
+    void runsTheBookingsOfAListingOneAtATimeInOrder() throws Exception {
+        RecordingBookingService bookingService = new RecordingBookingService();
+        BookingCoordinator coordinator = new BookingCoordinator(bookingService, 4, 1000, 1000);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (long sin = 0; sin < 600; sin++) {
+            results.add(coordinator.submitBooking(booking(sin % 7, sin)));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(0, bookingService.overlaps.get());
+        for (long listingId = 0; listingId < 7; listingId++) {
+            List<Long> sins = bookingService.booked.get(listingId);
+            assertEquals(600 / 7 + (listingId < 600 % 7 ? 1 : 0), sins.size());
+            for (int i = 0; i < sins.size(); i++) {
+                assertEquals(listingId + 7L * i, sins.get(i), "booking " + i + " of listing " + listingId);
+            }
+        }
+        long completed = coordinator.getStats().stream().mapToLong(BookingCoordinator.StripeStats::completedRequests).sum();
+        assertEquals(600, completed);
+        coordinator.shutdown(1000);
+    }
+
+    @org.junit.jupiter.api.Test
+    void otherListingsBookWhileOneIsBusy() throws Exception {
+        RecordingBookingService bookingService = new RecordingBookingService();
+        BookingCoordinator coordinator = new BookingCoordinator(bookingService, 2, 10, 1000);
+        bookingService.gate = new CountDownLatch(1);
+        CompletableFuture<Long> busy = coordinator.submitBooking(booking(1, 1)); // stripe 1
+        while (bookingService.running.get(1L) == null || bookingService.running.get(1L).get() == 0) {
+            Thread.onSpinWait();
+        }
+        bookingService.gate = new CountDownLatch(0);
+        assertEquals(2L, coordinator.submitBooking(booking(2, 2)).get(5, TimeUnit.SECONDS)); // stripe 0
+        assertFalse(busy.isDone());
+
+        coordinator.shutdown(0); // the busy booking is interrupted
+        assertInstanceOf(ServiceException.class, failure(busy));
+    }
+
+    @org.junit.jupiter.api.Test
+    void shutdownFailsQueuedBookings() throws Exception {
+        RecordingBookingService bookingService = new RecordingBookingService();
+        bookingService.gate = new CountDownLatch(1);
+        BookingCoordinator coordinator = new BookingCoordinator(bookingService, 1, 10, 1000);
+        CompletableFuture<Long> running = coordinator.submitBooking(booking(1, 1));
+        List<CompletableFuture<Long>> queued = new ArrayList<>();
+        for (long sin = 2; sin <= 5; sin++) {
+            queued.add(coordinator.submitBooking(booking(1, sin)));
+        }
+
+        coordinator.shutdown(50);
+
+        assertInstanceOf(ServiceException.class, failure(running));
+        for (CompletableFuture<Long> future : queued) {
+            assertEquals("Booking coordinator has been shut down", failure(future).getMessage());
+        }
+        assertEquals("Booking coordinator has been shut down",
+                failure(coordinator.submitBooking(booking(1, 6))).getMessage());
+        assertTrue(bookingService.booked.isEmpty());
+    }
+
+    @org.junit.jupiter.api.Test
+    void rejectsBookingsWhenTheQueueIsFull() throws Exception {
+        RecordingBookingService bookingService = new RecordingBookingService();
+        bookingService.gate = new CountDownLatch(1);
+        BookingCoordinator coordinator = new BookingCoordinator(bookingService, 1, 1, 10);
+        CompletableFuture<Long> running = coordinator.submitBooking(booking(1, 1));
+        while (bookingService.running.get(1L) == null || bookingService.running.get(1L).get() == 0) {
+            Thread.onSpinWait();
+        }
+        CompletableFuture<Long> queued = coordinator.submitBooking(booking(1, 2));
+
+        Throwable rejected = failure(coordinator.submitBooking(booking(1, 3)));
+        assertTrue(rejected.getMessage().startsWith("Too many bookings in progress"), rejected.getMessage());
+        assertEquals(1, coordinator.getStats().get(0).rejectedRequests());
+
+        bookingService.gate.countDown();
+        assertEquals(1L, running.get(5, TimeUnit.SECONDS));
+        assertEquals(2L, queued.get(5, TimeUnit.SECONDS));
+        coordinator.shutdown(1000);
+    }
+
+    @org.junit.jupiter.api.Test
+    void blockingCallsGiveUpAfterTheAwaitTimeout() throws Exception {
+        RecordingBookingService bookingService = new RecordingBookingService();
+        bookingService.gate = new CountDownLatch(1);
+        BookingCoordinator coordinator = new BookingCoordinator(bookingService, 1, 10, 1000, 50);
+
+        ServiceException e = assertThrows(ServiceException.class, () -> coordinator.addBooking(booking(1, 1)));
+        assertTrue(e.getMessage().startsWith("Timed out waiting for booking"), e.getMessage());
+
+        bookingService.gate.countDown(); // it still gets booked
+        assertEquals(2L, coordinator.addBooking(booking(1, 2)));
+        assertEquals(List.of(1L, 2L), bookingService.booked.get(1L));
+        coordinator.shutdown(1000);
+    }
+}
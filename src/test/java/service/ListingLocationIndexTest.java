@@ -0,0 +1,143 @@
+package service;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingLocationIndexTest {
+    // listings spread over the globe, and crowded around the poles and both sides of the antimeridian
+    private static Map<Long, Point2D> randomLocations(Random random, int count) {
+        Map<Long, Point2D> locations = new HashMap<>();
+        for (long id = 1; id <= count; id++) {
+            double longitude;
+            double latitude;
+            switch ((int) (id % 4)) {
+                case 0 -> {
+                    longitude = random.nextDouble() * 360 - 180;
+                    latitude = random.nextDouble() * 180 - 90;
+                }
+                case 1 -> {
+                    longitude = random.nextDouble() * 360 - 180;
+                    latitude = 89 + random.nextDouble(); // north pole
+                }
+                case 2 -> {
+                    longitude = random.nextDouble() * 360 - 180;
+                    latitude = -90 + random.nextDouble(); // south pole
+                }
+                default -> {
+                    longitude = random.nextBoolean() ? 179 + random.nextDouble() : -180 + random.nextDouble();
+                    latitude = random.nextDouble() * 20 - 10; // antimeridian
+                }
+            }
+            locations.put(id, new Point2D.Double(longitude, latitude));
+        }
+        return locations;
+    }
+
+    private static ListingLocationIndex index(Map<Long, Point2D> locations, double cellDegrees) {
+        ListingLocationIndex index = new ListingLocationIndex(cellDegrees);
+        locations.forEach(index::put);
+        return index;
+    }
+
+    private static List<ListingLocationIndex.Neighbour> bruteForce(Map<Long, Point2D> locations, Point2D center) {
+        List<ListingLocationIndex.Neighbour> all = new ArrayList<>();
+        locations.forEach((id, location) -> all.add(
+                new ListingLocationIndex.Neighbour(id, ListingLocationIndex.distanceMeters(center, location))));
+        all.sort(Comparator.comparingDouble(ListingLocationIndex.Neighbour::distanceMeters)
+                .thenComparingLong(ListingLocationIndex.Neighbour::listingId));
+        return all;
+    }
+
+    private static List<Long> bruteForceWithinRadius(Map<Long, Point2D> locations, Point2D center, double radiusMeters) {
+        List<Long> ids = new ArrayList<>();
+        for (ListingLocationIndex.Neighbour neighbour : bruteForce(locations, center)) {
+            if (neighbour.distanceMeters() <= radiusMeters) {
+                ids.add(neighbour.listingId());
+            }
+        }
+        return ids;
+    }
+
+    private static List<Point2D> centers(Random random) {
+        List<Point2D> centers = new ArrayList<>(List.of(
+                new Point2D.Double(0, 90), new Point2D.Double(0, -90), new Point2D.Double(123, 89.9),
+                new Point2D.Double(180, 0), new Point2D.Double(-180, 0), new Point2D.Double(179.99, 5),
+                new Point2D.Double(-179.99, -5), new Point2D.Double(-79.38, 43.65)));
+        for (int i = 0; i < 20; i++) {
+            centers.add(new Point2D.Double(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+        }
+        return centers;
+    }
+
+    @org.junit.jupiter.api.Test
+    void withinRadiusMatchesBruteForce() {
+        Random random = new Random(42);
+        Map<Long, Point2D> locations = randomLocations(random, 2000);
+        for (double cellDegrees : new double[]{0.1, 1, 7}) {
+            ListingLocationIndex index = index(locations, cellDegrees);
+            for (Point2D center : centers(random)) {
+                for (double radius : new double[]{1_000, 50_000, 300_000, 2_000_000, 20_016_000}) {
+                    assertEquals(bruteForceWithinRadius(locations, center, radius), index.withinRadius(center, radius),
+                            "radius " + radius + " around " + center + " with cells of " + cellDegrees);
+                }
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void nearestMatchesBruteForce() {
+        Random random = new Random(7);
+        Map<Long, Point2D> locations = randomLocations(random, 2000);
+        for (double cellDegrees : new double[]{0.1, 1, 7}) {
+            ListingLocationIndex index = index(locations, cellDegrees);
+            for (Point2D center : centers(random)) {
+                for (int k : new int[]{1, 5, 50, 2500}) {
+                    List<ListingLocationIndex.Neighbour> expected = bruteForce(locations, center);
+                    expected = expected.subList(0, Math.min(k, expected.size()));
+                    assertEquals(expected, index.nearest(center, k),
+                            k + " nearest to " + center + " with cells of " + cellDegrees);
+                }
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void findsListingsAcrossTheAntimeridianAndPoles() {
+        ListingLocationIndex index = new ListingLocationIndex();
+        index.put(1, new Point2D.Double(179.999, 0));
+        index.put(2, new Point2D.Double(-179.999, 0));
+        index.put(3, new Point2D.Double(0, 89.999));
+        index.put(4, new Point2D.Double(180, 89.999));
+        index.put(5, new Point2D.Double(0, 0));
+
+        assertEquals(List.of(1L, 2L), index.withinRadius(new Point2D.Double(179.9995, 0), 1_000));
+        assertEquals(List.of(2L, 1L), index.withinRadius(new Point2D.Double(-179.9999, 0), 1_000));
+        assertEquals(List.of(3L, 4L), index.withinRadius(new Point2D.Double(90, 90), 1_000));
+        assertEquals(2L, index.nearest(new Point2D.Double(179.9999, 1), 2).get(1).listingId());
+        assertEquals(1L, index.nearest(new Point2D.Double(-180, 0), 1).get(0).listingId());
+        assertEquals(List.of(3L, 4L), index.nearest(new Point2D.Double(0, 90), 2).stream()
+                .map(ListingLocationIndex.Neighbour::listingId).sorted().toList());
+    }
+
+    @org.junit.jupiter.api.Test
+    void putMovesAndRemoveForgetsListings() {
+        ListingLocationIndex index = new ListingLocationIndex();
+        index.put(1, new Point2D.Double(10, 10));
+        index.put(1, new Point2D.Double(-10, -10));
+        assertEquals(1, index.size());
+        assertTrue(index.withinRadius(new Point2D.Double(10, 10), 1_000).isEmpty());
+        assertEquals(List.of(1L), index.withinRadius(new Point2D.Double(-10, -10), 1_000));
+
+        index.remove(1);
+        assertEquals(0, index.size());
+        assertTrue(index.nearest(new Point2D.Double(-10, -10), 1).isEmpty());
+        assertTrue(index.nearest(new Point2D.Double(-10, -10), 0).isEmpty());
+    }
+}
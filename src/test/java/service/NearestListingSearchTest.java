@@ -0,0 +1,197 @@
+package service;
+
+import data.ConnectionPool;
+import data.Dao;
+import domain.Listing;
+import exception.ServiceException;
+import filter.ListingFilter;
+import filter.ListingPage;
+
+import java.awt.geom.Point2D;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NearestListingSearchTest {
+    // answers listing searches the way the database does, from a list of listings, and records each search
+    private static class ListingsDao extends Dao {
+        final List<Listing> listings = new ArrayList<>();
+        final List<ListingFilter> searches = new ArrayList<>();
+
+        ListingsDao() {
+            super((ConnectionPool) null);
+        }
+
+        @Override
+        public void startReadOnlyTransaction() {
+        }
+
+        @Override
+        public void commitTransaction() {
+        }
+
+        @Override
+        public void rollbackTransaction() {
+        }
+
+        @Override
+        public TableVersion getListingTableVersion() {
+            return new TableVersion("generation", LocalDateTime.of(2024, 1, 1, 0, 0));
+        }
+
+        @Override
+        public void forEachListing(Consumer<? super Listing> consumer) {
+            listings.forEach(consumer);
+        }
+
+        // within the radius, of the listing type if set and among the candidates if set, nearest first
+        @Override
+        public ListingPage getListingPageByFilter(ListingFilter filter) {
+            searches.add(filter);
+            Point2D center = filter.listing().location();
+            double radiusMeters = filter.searchRadiusMeters().doubleValue();
+            List<Listing> page = listings.stream()
+                    .filter(listing -> ListingLocationIndex.distanceMeters(center, listing.location()) <= radiusMeters)
+                    .filter(listing -> filter.listing().listing_type() == null
+                            || filter.listing().listing_type().equals(listing.listing_type()))
+                    .filter(listing -> filter.candidateListingIds() == null
+                            || filter.candidateListingIds().contains(listing.listing_id()))
+                    .sorted(byDistanceFrom(center))
+                    .limit(filter.pageSize())
+                    .toList();
+            return new ListingPage(page, null);
+        }
+    }
+
+    private static Comparator<Listing> byDistanceFrom(Point2D center) {
+        return Comparator.<Listing>comparingDouble(listing -> ListingLocationIndex.distanceMeters(center, listing.location()))
+                .thenComparing(Listing::listing_id);
+    }
+
+    private static Listing listing(long id, String type, double longitude, double latitude) {
+        return new Listing(id, type, null, null, new Point2D.Double(longitude, latitude), null, null, null);
+    }
+
+    private static ListingFilter nearest(String type, Point2D center, int k, BigDecimal radiusKm) {
+        return new ListingFilter.Builder()
+                .withListing(new Listing(null, type, null, null, center, null, null, null))
+                .withSearchRadius(radiusKm)
+                .withNearest(k)
+                .build();
+    }
+
+    private static List<Long> ids(ListingPage page) {
+        return page.listings().stream().map(Listing::listing_id).toList();
+    }
+
+    private static ListingService indexedService(ListingsDao dao) throws ServiceException {
+        ListingService service = new ListingService(dao, new TransactionExecutor(dao), new ListingLocationIndex());
+        service.buildLocationIndex();
+        return service;
+    }
+
+    @org.junit.jupiter.api.Test
+    void indexedAndDatabaseSearchesMatchBruteForce() throws ServiceException {
+        Random random = new Random(7);
+        ListingsDao dao = new ListingsDao();
+        for (long id = 1; id <= 3000; id++) {
+            // mostly rooms around Toronto, with a few houses among them and some listings far away
+            boolean far = random.nextInt(10) == 0;
+            dao.listings.add(listing(id, random.nextInt(20) == 0 ? "house" : "room",
+                    far ? random.nextDouble() * 360 - 180 : -79.4 + random.nextGaussian() * 0.2,
+                    far ? random.nextDouble() * 160 - 80 : 43.7 + random.nextGaussian() * 0.2));
+        }
+        ListingService indexed = indexedService(dao);
+        ListingService database = new ListingService(dao, new TransactionExecutor(dao));
+
+        for (int i = 0; i < 100; i++) {
+            Point2D center = new Point2D.Double(-79.4 + random.nextGaussian() * 0.3, 43.7 + random.nextGaussian() * 0.3);
+            String type = random.nextBoolean() ? "house" : null;
+            int k = 1 + random.nextInt(20);
+            BigDecimal radiusKm = random.nextBoolean() ? BigDecimal.valueOf(1 + random.nextInt(50)) : null;
+            double maxMeters = radiusKm != null ? radiusKm.doubleValue() * 1000 : Double.MAX_VALUE;
+            List<Long> expected = dao.listings.stream()
+                    .filter(listing -> type == null || type.equals(listing.listing_type()))
+                    .filter(listing -> ListingLocationIndex.distanceMeters(center, listing.location()) <= maxMeters)
+                    .sorted(byDistanceFrom(center))
+                    .limit(k)
+                    .map(Listing::listing_id)
+                    .toList();
+            String search = k + " nearest " + type + " within " + radiusKm + " km of " + center;
+            assertEquals(expected, ids(indexed.searchListingsByFilter(nearest(type, center, k, radiusKm))), search);
+            assertEquals(expected, ids(database.searchListingsByFilter(nearest(type, center, k, radiusKm))), search);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void indexAnswersWhenTheClosestListingsQualify() throws ServiceException {
+        ListingsDao dao = new ListingsDao();
+        for (long id = 1; id <= 10; id++) {
+            dao.listings.add(listing(id, id % 2 == 0 ? "house" : "room", -79.4 + id * 0.01, 43.7));
+        }
+        ListingService service = indexedService(dao);
+
+        // 2 of the 2 closest, then 2 of the 8 closest after widening the candidates
+        assertEquals(List.of(1L, 2L), ids(service.searchListingsByFilter(nearest(null, new Point2D.Double(-79.4, 43.7), 2, null))));
+        assertEquals(List.of(2L, 4L), ids(service.searchListingsByFilter(nearest("house", new Point2D.Double(-79.4, 43.7), 2, null))));
+        // fewer listings than asked for, all of them are candidates
+        assertEquals(List.of(8L, 6L, 10L, 4L, 2L),
+                ids(service.searchListingsByFilter(nearest("house", new Point2D.Double(-79.321, 43.7), 7, null))));
+        assertTrue(dao.searches.stream().allMatch(search -> search.candidateListingIds() != null));
+    }
+
+    @org.junit.jupiter.api.Test
+    void databaseConfirmsThatNothingIsInRange() throws ServiceException {
+        ListingsDao dao = new ListingsDao();
+        dao.listings.add(listing(1, "room", -79.4, 43.8)); // about 11 km north
+        ListingService service = indexedService(dao);
+
+        assertEquals(List.of(), ids(service.searchListingsByFilter(nearest(null, new Point2D.Double(-79.4, 43.7), 1, BigDecimal.TEN))));
+        // widened from the initial 1 km up to the 10 km limit
+        assertEquals(List.of(1000.0, 2000.0, 4000.0, 8000.0, 10000.0),
+                dao.searches.stream().map(search -> search.searchRadiusMeters().doubleValue()).toList());
+        assertTrue(dao.searches.stream().allMatch(search -> search.candidateListingIds() == null));
+        assertEquals(List.of(1L), ids(service.searchListingsByFilter(nearest(null, new Point2D.Double(-79.4, 43.7), 1, BigDecimal.valueOf(12)))));
+    }
+
+    @org.junit.jupiter.api.Test
+    void tooManyCandidatesWidenThroughTheDatabase() throws ServiceException {
+        ListingsDao dao = new ListingsDao();
+        for (long id = 1; id <= 2000; id++) {
+            dao.listings.add(listing(id, "room", -79.4 + id * 0.0001, 43.7));
+        }
+        dao.listings.add(listing(2001, "house", -79.4, 44.7)); // about 111 km north, farther than every room
+        ListingService service = indexedService(dao);
+
+        assertEquals(List.of(2001L), ids(service.searchListingsByFilter(nearest("house", new Point2D.Double(-79.4, 43.7), 1, null))));
+        ListingFilter last = dao.searches.get(dao.searches.size() - 1);
+        assertNull(last.candidateListingIds());
+        // the database search starts as far out as the closest listings reach, rather than from 1 km
+        ListingFilter firstUnindexed = dao.searches.stream().filter(search -> search.candidateListingIds() == null).findFirst().orElseThrow();
+        assertTrue(firstUnindexed.searchRadiusMeters().doubleValue() > 10_000, firstUnindexed.searchRadiusMeters().toString());
+    }
+
+    @org.junit.jupiter.api.Test
+    void nearestListingsAreASinglePageSortedByDistance() throws ServiceException {
+        Listing center = new Listing(null, null, null, null, new Point2D.Double(-79.4, 43.7), null, null, null);
+        assertThrows(IllegalArgumentException.class,
+                () -> new ListingFilter.Builder().withListing(center).withNearest(3).withGroupByPriceAscend(true).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> new ListingFilter.Builder().withListing(center).withNearest(3).withGroupByPriceDescend(true).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> new ListingFilter.Builder().withListing(center).withNearest(3).withContinuationToken("token").build());
+
+        ListingsDao dao = new ListingsDao();
+        ListingService service = indexedService(dao);
+        ListingFilter continued = nearest(null, center.location(), 3, null);
+        continued.updateContinuationToken("token");
+        assertThrows(ServiceException.class, () -> service.searchListingsByFilter(continued));
+        assertTrue(dao.searches.isEmpty());
+    }
+}
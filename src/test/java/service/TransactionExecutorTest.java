@@ -0,0 +1,150 @@
+package service;
+
+import data.ConnectionPool;
+import data.Dao;
+import exception.DataAccessException;
+import exception.ServiceException;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionExecutorTest {
+    // counts the transactions instead of running them against a database
+    private static class CountingDao extends Dao {
+        int started;
+        int startedReadOnly;
+        int committed;
+        int rolledBack;
+
+        CountingDao() {
+            super((ConnectionPool) null);
+        }
+
+        @Override
+        public void startTransaction() {
+            started++;
+        }
+
+        @Override
+        public void startReadOnlyTransaction() {
+            startedReadOnly++;
+        }
+
+        @Override
+        public void commitTransaction() {
+            committed++;
+        }
+
+        @Override
+        public void rollbackTransaction() {
+            rolledBack++;
+        }
+    }
+
+    private static SQLException deadlock() {
+        return new SQLException("Deadlock found when trying to get lock; try restarting transaction", "40001", 1213);
+    }
+
+    @org.junit.jupiter.api.Test
+    void transientFailuresAnywhereInTheCauseChain() {
+        assertTrue(TransactionExecutor.isTransient(deadlock()));
+        assertTrue(TransactionExecutor.isTransient(new SQLException("serialization failure", "40001")));
+        assertTrue(TransactionExecutor.isTransient(new SQLException("deadlock", "HY000", 1213)));
+        assertTrue(TransactionExecutor.isTransient(new SQLException("Lock wait timeout exceeded", "HY000", 1205)));
+        assertTrue(TransactionExecutor.isTransient(new DataAccessException("Error inserting booking", deadlock())));
+        assertTrue(TransactionExecutor.isTransient(
+                new ServiceException("outer", new RuntimeException(new SQLException("timeout", "HY000", 1205)))));
+
+        assertFalse(TransactionExecutor.isTransient(new SQLException("Duplicate entry", "23000", 1062)));
+        assertFalse(TransactionExecutor.isTransient(new DataAccessException("Error inserting booking",
+                new SQLException("Duplicate entry", "23000", 1062))));
+        assertFalse(TransactionExecutor.isTransient(new ServiceException("Listing doesn't exist")));
+    }
+
+    @org.junit.jupiter.api.Test
+    void retriesTransientFailuresUntilTheyPass() throws ServiceException {
+        CountingDao dao = new CountingDao();
+        TransactionExecutor transactions = new TransactionExecutor(dao, 5, 1, 2, 5000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        Long result = transactions.inTransaction("Test.retry", "failed", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new DataAccessException("Error adding booking", deadlock());
+            }
+            return 42L;
+        });
+
+        assertEquals(42L, result);
+        assertEquals(3, attempts.get());
+        assertEquals(3, dao.started);
+        assertEquals(2, dao.rolledBack);
+        assertEquals(1, dao.committed);
+        assertEquals(Map.of("Test.retry", 2L), transactions.getRetryCounts());
+        assertTrue(transactions.getExhaustedRetryCounts().isEmpty());
+    }
+
+    @org.junit.jupiter.api.Test
+    void givesUpAfterMaxAttempts() {
+        CountingDao dao = new CountingDao();
+        TransactionExecutor transactions = new TransactionExecutor(dao, 3, 1, 2, 5000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        ServiceException e = assertThrows(ServiceException.class, () ->
+                transactions.runInReadOnlyTransaction("Test.exhaust", "could not read", () -> {
+                    attempts.incrementAndGet();
+                    throw new SQLException("Lock wait timeout exceeded", "HY000", 1205);
+                }));
+
+        assertEquals("could not read", e.getMessage());
+        assertInstanceOf(SQLException.class, e.getCause());
+        assertEquals(3, attempts.get());
+        assertEquals(3, dao.startedReadOnly);
+        assertEquals(0, dao.started);
+        assertEquals(3, dao.rolledBack);
+        assertEquals(0, dao.committed);
+        assertEquals(Map.of("Test.exhaust", 2L), transactions.getRetryCounts());
+        assertEquals(Map.of("Test.exhaust", 1L), transactions.getExhaustedRetryCounts());
+    }
+
+    @org.junit.jupiter.api.Test
+    void doesNotRetryOtherFailures() {
+        CountingDao dao = new CountingDao();
+        TransactionExecutor transactions = new TransactionExecutor(dao, 5, 1, 2, 5000);
+        AtomicInteger attempts = new AtomicInteger();
+        ServiceException rejected = new ServiceException("Unable to add booking because listing doesn't exist");
+
+        ServiceException e = assertThrows(ServiceException.class, () ->
+                transactions.runInTransaction("Test.reject", "failed", () -> {
+                    attempts.incrementAndGet();
+                    throw rejected;
+                }));
+
+        assertSame(rejected, e.getCause());
+        assertEquals(1, attempts.get());
+        assertEquals(1, dao.rolledBack);
+        assertTrue(transactions.getRetryCounts().isEmpty());
+        assertTrue(transactions.getExhaustedRetryCounts().isEmpty());
+    }
+
+    @org.junit.jupiter.api.Test
+    void stopsRetryingWhenTheBudgetRunsOut() {
+        CountingDao dao = new CountingDao();
+        TransactionExecutor transactions = new TransactionExecutor(dao, 1000, 20, 20, 50);
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.nanoTime();
+
+        assertThrows(ServiceException.class, () ->
+                transactions.runInTransaction("Test.budget", "failed", () -> {
+                    attempts.incrementAndGet();
+                    throw deadlock();
+                }));
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(attempts.get() < 1000, "attempts: " + attempts.get());
+        assertTrue(elapsedMillis < 1000, "elapsed: " + elapsedMillis + " ms");
+        assertEquals(Map.of("Test.budget", 1L), transactions.getExhaustedRetryCounts());
+    }
+}
@@ -4,10 +4,13 @@ import data.Dao;
 import data.DbConfig;
 import domain.*;
 import exception.ServiceException;
+import filter.ListingFilter;
 
 import java.awt.geom.Point2D;
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -323,4 +326,140 @@ public class serviceTest {
         assertTrue(listings.size() == 1);
         dbConfig.resetTables();
     }
+
+    // a listing that a stay search returns must be bookable for that stay, and one it leaves out must not be
+    @org.junit.jupiter.api.Test
+    void staySearchTest() throws ServiceException {
+        DbConfig dbConfig = new DbConfig();
+        dbConfig.resetTables();
+        Dao dao = new Dao();
+        TransactionExecutor transactions = new TransactionExecutor(dao);
+        AvailabilityCalendarIndex availabilityIndex = new AvailabilityCalendarIndex();
+        UserService userService = new UserService(dao, transactions);
+        ListingService listingService = new ListingService(dao, transactions, null, availabilityIndex);
+        BookingService bookingService = new BookingService(dao, transactions, availabilityIndex);
+
+        LocalDate today = LocalDate.now();
+        LocalDate first = today.plusDays(30);
+        userService.addUser(new User(1L, "Donald Doe", null, LocalDate.parse("2001-03-12"), "Student"));
+        userService.addUser(new User(2L, "John Doe", null, LocalDate.parse("1976-01-09"), "Doctor"));
+        Long listingId = listingService.addListing(new Listing(null, "house", "123 Main St.", "M5S 1A1",
+                new Point2D.Double(-79.40, 43.66), "Toronto", "Canada", 1L));
+        listingService.addAvailability(new Availability(null, first, first.plusDays(9),
+                new BigDecimal("100.00"), listingId), 1L, today);
+
+        // leave two adjacent availabilities at different prices: nights 0 to 4 at 100 and 5 to 8 at 150
+        Long bookingId = bookingService.addBooking(new Booking(null, first.plusDays(3), first.plusDays(5), today,
+                null, "visa", 1324567890123456L, 2L, listingId));
+        listingService.changeListingAvailabilityPrice(listingId, 1L, first.plusDays(5), first.plusDays(9),
+                new BigDecimal("150.00"));
+        bookingService.tenantCancelBooking(bookingId, 2L, today);
+        List<Availability> availabilities = new ArrayList<>(listingService.getAvailabilitiesOfListing(listingId, today));
+        availabilities.sort(Comparator.comparing(Availability::start_date));
+        assertTrue(availabilities.size() == 2);
+        assertTrue(availabilities.get(0).end_date().equals(first.plusDays(5)));
+        assertTrue(availabilities.get(0).price_per_night().compareTo(new BigDecimal("100.00")) == 0);
+
+        // a stay across both availabilities can't be booked, so neither SQL nor the calendar finds it
+        ListingFilter across = stayFilter(first.plusDays(2), first.plusDays(7));
+        ListingFilter inside = stayFilter(first.plusDays(1), first.plusDays(4));
+        assertTrue(listingService.searchListingsByFilter(across).listings().isEmpty());
+        assertTrue(listingService.searchListingsByFilter(inside).listings().size() == 1);
+        listingService.buildAvailabilityIndex();
+        assertTrue(listingService.searchListingsByFilter(across).listings().isEmpty());
+        assertTrue(listingService.searchListingsByFilter(inside).listings().size() == 1);
+        assertThrows(ServiceException.class, () -> bookingService.addBooking(new Booking(null, first.plusDays(2),
+                first.plusDays(7), today, null, "visa", 1324567890123456L, 2L, listingId)));
+
+        bookingId = bookingService.addBooking(new Booking(null, first.plusDays(1), first.plusDays(4), today,
+                null, "visa", 1324567890123456L, 2L, listingId));
+        assertTrue(bookingService.getBooking(bookingId).amount().compareTo(new BigDecimal("300.00")) == 0);
+        assertTrue(listingService.searchListingsByFilter(inside).listings().isEmpty());
+        assertTrue(listingService.searchListingsByFilter(stayFilter(first.plusDays(5), first.plusDays(9))).listings().size() == 1);
+        dbConfig.resetTables();
+    }
+
+    // availabilities another process moves in place are loaded into the calendar before a stay search trusts it
+    @org.junit.jupiter.api.Test
+    void availabilityCalendarCatchUpTest() throws ServiceException {
+        DbConfig dbConfig = new DbConfig();
+        dbConfig.resetTables();
+        Dao dao = new Dao();
+        TransactionExecutor transactions = new TransactionExecutor(dao);
+        ListingService indexed = new ListingService(dao, transactions, null, new AvailabilityCalendarIndex());
+        ListingService other = new ListingService(dao, transactions); // another process, the calendar sees none of its writes
+
+        LocalDate today = LocalDate.now();
+        LocalDate first = today.plusDays(30);
+        new UserService(dao, transactions).addUser(new User(1L, "Donald Doe", null, LocalDate.parse("2001-03-12"), "Student"));
+        Long moved = other.addListing(new Listing(null, "house", "123 Main St.", "M5S 1A1",
+                new Point2D.Double(-79.40, 43.66), "Toronto", "Canada", 1L));
+        Long fixed = other.addListing(new Listing(null, "house", "456 Main St.", "M5S 1A2",
+                new Point2D.Double(-79.41, 43.66), "Toronto", "Canada", 1L));
+        other.addAvailability(new Availability(null, first, first.plusDays(5), new BigDecimal("100.00"), moved), 1L, today);
+        other.addAvailability(new Availability(null, first.plusDays(10), first.plusDays(15), new BigDecimal("100.00"), fixed), 1L, today);
+        indexed.buildAvailabilityIndex();
+
+        ListingFilter stay = stayFilter(first.plusDays(10), first.plusDays(12));
+        assertEquals(List.of(fixed), indexed.searchListingsByFilter(stay).listings().stream().map(Listing::listing_id).toList());
+
+        other.changeListingAvailability(moved, 1L, first, first.plusDays(5), first.plusDays(10), first.plusDays(15));
+        assertEquals(List.of(moved, fixed), indexed.searchListingsByFilter(stay).listings().stream().map(Listing::listing_id).toList());
+        dbConfig.resetTables();
+    }
+
+    // every amenity of the catalogue has a bit in listings.amenity_mask, which adding and removing amenities keeps current
+    @org.junit.jupiter.api.Test
+    void amenityMaskTest() throws ServiceException {
+        DbConfig dbConfig = new DbConfig();
+        dbConfig.resetTables();
+        Dao dao = new Dao();
+        ListingService listingService = new ListingService(dao);
+        new UserService(dao).addUser(new User(1L, "Donald Doe", null, LocalDate.parse("2001-03-12"), "Student"));
+        Long listing1 = listingService.addListing(new Listing(null, "house", "123 Main St.", "M5S 1A1",
+                new Point2D.Double(-79.40, 43.66), "Toronto", "Canada", 1L));
+        Long listing2 = listingService.addListing(new Listing(null, "house", "456 Main St.", "M5S 1A2",
+                new Point2D.Double(-79.41, 43.66), "Toronto", "Canada", 1L));
+
+        List<String> catalogue = listingService.getAllAllowedAmenities().stream().map(Amenity::amenity_name).toList();
+        assertFalse(catalogue.isEmpty());
+        assertTrue(listingService.getAllAllowedAmenities().stream().allMatch(amenity -> amenity.amenity_id() <= 64));
+        // the second listing gets every other amenity in one batch
+        List<String> secondHas = new ArrayList<>();
+        for (int i = 0; i < catalogue.size(); i += 2) {
+            secondHas.add(catalogue.get(i));
+        }
+        listingService.addAmenitiesToListing(listing2, 1L, secondHas);
+
+        for (String amenity : catalogue) {
+            listingService.addAmenityToListing(listing1, 1L, amenity);
+            List<Long> expected = secondHas.contains(amenity) ? List.of(listing1, listing2) : List.of(listing1);
+            assertEquals(expected, amenitySearch(listingService, List.of(amenity)), amenity);
+        }
+        assertEquals(List.of(listing1), amenitySearch(listingService, List.of(catalogue.get(0), catalogue.get(1))));
+        assertEquals(List.of(listing1, listing2), amenitySearch(listingService, List.of(catalogue.get(0), catalogue.get(2))));
+        assertEquals(List.of(), amenitySearch(listingService, List.of(catalogue.get(0), "no such amenity")));
+
+        for (String amenity : catalogue) {
+            listingService.removeAmenityFromListing(listing1, 1L, amenity);
+            List<Long> expected = secondHas.contains(amenity) ? List.of(listing2) : List.of();
+            assertEquals(expected, amenitySearch(listingService, List.of(amenity)), amenity);
+        }
+        dbConfig.resetTables();
+    }
+
+    private static List<Long> amenitySearch(ListingService listingService, List<String> amenities) throws ServiceException {
+        ListingFilter filter = new ListingFilter.Builder()
+                .withListing(new Listing(null, null, null, null, null, null, null, null))
+                .withAmenities(amenities)
+                .build();
+        return listingService.searchListingsByFilter(filter).listings().stream().map(Listing::listing_id).toList();
+    }
+
+    private static ListingFilter stayFilter(LocalDate checkIn, LocalDate checkOut) {
+        return new ListingFilter.Builder()
+                .withListing(new Listing(null, null, null, null, null, null, null, null))
+                .withStay(checkIn, checkOut)
+                .build();
+    }
 }